@@ -1,5 +1,7 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +13,25 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * consume bytes of the buffer until a message is complete or the buffer
+     * is exhausted, implementations may override it to consume in bulk
+     *
+     * @param buffer the bytes to decode, its position is advanced past the
+     * consumed bytes
+     * @return a message if the consumed bytes complete one or null if they
+     * dont.
+     */
+    default T decodeNext(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            T message = decodeNextByte(buffer.get());
+            if (message != null) {
+                return message;
+            }
+        }
+        return null;
+    }
+
     /**
      * encodes the given message to bytes array
      *
@@ -0,0 +1,124 @@
+package bgu.spl.net.impl.cluster;
+
+import bgu.spl.net.impl.rci.BinaryReader;
+import bgu.spl.net.impl.rci.BinaryWriter;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The messages nodes exchange: [length][type][fields], the fields written with the RCI binary writer.
+ */
+final class ClusterMessages {
+
+    static final int HELLO = 1;             //node id
+    static final int INTEREST_ADD = 2;      //destination
+    static final int INTEREST_REMOVE = 3;   //destination
+    static final int FORWARD = 4;           //destination, header count, header names and values, body
+    static final int LOGIN_CLAIM = 5;       //claim id, username, password
+    static final int LOGIN_RESULT = 6;      //claim id, login status ordinal
+    static final int LOGIN_RELEASE = 7;     //username
+
+    private static final int MAX_MESSAGE_BYTES = 16 << 20;
+    private static final int MAX_HEADERS = 1024;
+    private static final ThreadLocal<BinaryWriter> writers = ThreadLocal.withInitial(BinaryWriter::new);
+
+    private ClusterMessages() {}
+
+    static byte[] hello(int nodeId) {
+        BinaryWriter out = start(HELLO);
+        out.writeInt(nodeId);
+        return finish(out);
+    }
+
+    static byte[] interest(boolean add, String destination) {
+        BinaryWriter out = start(add ? INTEREST_ADD : INTEREST_REMOVE);
+        out.writeString(destination);
+        return finish(out);
+    }
+
+    static byte[] forward(String destination, Map<String, String> headers, String body) {
+        BinaryWriter out = start(FORWARD);
+        out.writeString(destination);
+        out.writeInt(headers.size());
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            out.writeString(header.getKey());
+            out.writeString(header.getValue());
+        }
+        out.writeString(body);
+        return finish(out);
+    }
+
+    /**
+     * Reads the headers of a FORWARD message
+     */
+    static Map<String, String> readHeaders(BinaryReader in) {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_HEADERS) {
+            throw new IllegalArgumentException("illegal header count " + count);
+        }
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            headers.put(in.readString(), in.readString());
+        }
+        return headers;
+    }
+
+    static byte[] loginClaim(long claimId, String username, String password) {
+        BinaryWriter out = start(LOGIN_CLAIM);
+        out.writeLong(claimId);
+        out.writeString(username);
+        out.writeString(password);
+        return finish(out);
+    }
+
+    static byte[] loginResult(long claimId, int status) {
+        BinaryWriter out = start(LOGIN_RESULT);
+        out.writeLong(claimId);
+        out.writeInt(status);
+        return finish(out);
+    }
+
+    static byte[] loginRelease(String username) {
+        BinaryWriter out = start(LOGIN_RELEASE);
+        out.writeString(username);
+        return finish(out);
+    }
+
+    /**
+     * @return a reader positioned at the message type
+     */
+    static BinaryReader read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 1 || length > MAX_MESSAGE_BYTES) {
+            throw new IOException("illegal cluster message length " + length);
+        }
+        byte[] bytes = new byte[length];
+        try {
+            in.readFully(bytes);
+        } catch (EOFException ex) {
+            throw new IOException("peer disconnected in the middle of a message", ex);
+        }
+        return new BinaryReader(bytes, length);
+    }
+
+    private static BinaryWriter start(int type) {
+        BinaryWriter out = writers.get();
+        out.reset();
+        out.writeInt(0); //placeholder for the length
+        out.writeByte(type);
+        return out;
+    }
+
+    private static byte[] finish(BinaryWriter out) {
+        byte[] message = out.toByteArray();
+        int length = message.length - 4;
+        message[0] = (byte) (length >>> 24);
+        message[1] = (byte) (length >>> 16);
+        message[2] = (byte) (length >>> 8);
+        message[3] = (byte) length;
+        return message;
+    }
+}
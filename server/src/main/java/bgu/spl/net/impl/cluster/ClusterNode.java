@@ -0,0 +1,395 @@
+package bgu.spl.net.impl.cluster;
+
+import bgu.spl.net.impl.data.LoginStatus;
+import bgu.spl.net.impl.rci.BinaryReader;
+import bgu.spl.net.impl.stomp.StompMessagingProtocolImpl;
+import bgu.spl.net.srv.ChannelListener;
+import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.ServerConfig;
+import bgu.spl.net.srv.ServerStats;
+import bgu.spl.net.srv.WorkStealingPool;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One STOMP server of a cluster.
+ * Every node tells its peers which destinations have local subscribers and forwards a SEND only to the peers
+ * interested in its destination; forwarded messages are delivered locally and never forwarded again.
+ * Logins are claimed at the node that owns the username (by hash over the sorted node ids) so a user is logged
+ * in at most once in the whole cluster. The claims of a node are released when the link from it breaks, and
+ * claimed again by the greeting of its next connection for the users still logged in at it.
+ * Each pair of nodes is connected twice, every node sends on the connection it opened and reads on the ones
+ * it accepted.
+ */
+public class ClusterNode implements ChannelListener {
+
+    private static final long CLAIM_TIMEOUT_MILLIS = 2000;
+
+    private static volatile ClusterNode instance;
+
+    private final int nodeId;
+    private final int port;
+    private final int[] members;
+    private final Map<Integer, PeerLink> links = new HashMap<>();
+    private final Connections<String> connections;
+    private final Set<String> localChannels = ConcurrentHashMap.newKeySet();
+    private final ConcurrentHashMap<Integer, Set<String>> remoteInterest = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Socket> inbound = new ConcurrentHashMap<>();
+    private final Map<String, Claim> claims = new HashMap<>(); //the usernames this node owns
+    private final ConcurrentHashMap<Integer, Login> logins = new ConcurrentHashMap<>(); //connection id -> login held here
+    private final ConcurrentHashMap<Long, CompletableFuture<LoginStatus>> pendingClaims = new ConcurrentHashMap<>();
+    private final AtomicLong nextClaimId = new AtomicLong();
+    private final LongAdder forwardedOut = new LongAdder();
+    private final LongAdder forwardedIn = new LongAdder();
+
+    private ClusterNode(int nodeId, int port, Map<Integer, InetSocketAddress> peers, Connections<String> connections) {
+        this.nodeId = nodeId;
+        this.port = port;
+        this.connections = connections;
+        this.members = new int[peers.size() + 1];
+        int i = 0;
+        members[i++] = nodeId;
+        for (Map.Entry<Integer, InetSocketAddress> peer : peers.entrySet()) {
+            members[i++] = peer.getKey();
+            int peerId = peer.getKey();
+            links.put(peerId, new PeerLink(peerId, peer.getValue(), () -> greeting(peerId)));
+        }
+        Arrays.sort(members);
+    }
+
+    /**
+     * @return the node of this server, or null if it is not part of a cluster
+     */
+    public static ClusterNode getInstance() {
+        return instance;
+    }
+
+    /**
+     * Joins the cluster described by the cluster.* settings, does nothing if cluster.nodeId is 0
+     */
+    public static ClusterNode start(ServerConfig config, Connections<String> connections) throws IOException {
+        int nodeId = config.getInt("cluster.nodeId");
+        if (nodeId <= 0) {
+            return null;
+        }
+        Map<Integer, InetSocketAddress> peers = parsePeers(config.getString("cluster.peers"), nodeId);
+        ClusterNode node = new ClusterNode(nodeId, config.getInt("cluster.port"), peers, connections);
+        node.listen();
+        connections.setChannelListener(node);
+        connections.addDisconnectListener(node::releaseLogin);
+        for (PeerLink link : node.links.values()) {
+            link.start();
+        }
+        ServerStats.register("cluster", node::report);
+        instance = node;
+        return node;
+    }
+
+    /**
+     * @param setting comma separated id@host:port entries
+     */
+    private static Map<Integer, InetSocketAddress> parsePeers(String setting, int nodeId) {
+        Map<Integer, InetSocketAddress> peers = new HashMap<>();
+        for (String entry : setting.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int at = entry.indexOf('@');
+            int colon = entry.lastIndexOf(':');
+            if (at < 0 || colon < at) {
+                throw new IllegalArgumentException("cluster peer " + entry + " is not id@host:port");
+            }
+            int id = Integer.parseInt(entry.substring(0, at));
+            if (id == nodeId || peers.containsKey(id)) {
+                throw new IllegalArgumentException("cluster node id " + id + " is used twice");
+            }
+            peers.put(id, new InetSocketAddress(entry.substring(at + 1, colon), Integer.parseInt(entry.substring(colon + 1))));
+        }
+        return peers;
+    }
+
+    // ----- subscriptions and messages
+
+    @Override
+    public void channelActive(String channel) {
+        localChannels.add(channel);
+        broadcastToPeers(ClusterMessages.interest(true, channel));
+    }
+
+    @Override
+    public void channelInactive(String channel) {
+        localChannels.remove(channel);
+        broadcastToPeers(ClusterMessages.interest(false, channel));
+    }
+
+    private void broadcastToPeers(byte[] message) {
+        for (PeerLink link : links.values()) {
+            link.sendControl(message);
+        }
+    }
+
+    /**
+     * Sends a SEND that was delivered locally to the peers that have subscribers for its destination
+     * @param headers the headers of the SEND, the peers match their subscription selectors against them
+     */
+    public void forward(String destination, Map<String, String> headers, String body) {
+        byte[] message = null;
+        for (PeerLink link : links.values()) {
+            Set<String> interest = remoteInterest.get(link.peerId());
+            if (interest != null && interest.contains(destination)) {
+                if (message == null) {
+                    message = ClusterMessages.forward(destination, headers, body);
+                }
+                if (link.send(message)) {
+                    forwardedOut.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * The messages that tell a peer all it keeps about this node, it forgets its previous state on the hello
+     */
+    private List<byte[]> greeting(int peerId) {
+        List<byte[]> messages = new ArrayList<>();
+        messages.add(ClusterMessages.hello(nodeId));
+        for (String channel : localChannels) {
+            messages.add(ClusterMessages.interest(true, channel));
+        }
+        for (Login login : logins.values()) {
+            if (ownerOf(login.username) == peerId) {
+                messages.add(ClusterMessages.loginClaim(0, login.username, login.password)); //no claim waits for id 0
+            }
+        }
+        return messages;
+    }
+
+    // ----- logins
+
+    /**
+     * Claims the username for a connection at the node that owns it, blocking until it answers
+     * @return LOGGED_IN_SUCCESSFULLY if the user is not logged in anywhere in the cluster and the password matches
+     * the one it was first claimed with, otherwise the reason it is refused
+     */
+    public LoginStatus claimLogin(int connectionId, String username, String password) {
+        LoginStatus status = claimAtOwner(username, password);
+        if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY) {
+            logins.put(connectionId, new Login(username, password));
+        }
+        return status;
+    }
+
+    private LoginStatus claimAtOwner(String username, String password) {
+        int owner = ownerOf(username);
+        if (owner == nodeId) {
+            return claim(username, password, nodeId);
+        }
+        long claimId = nextClaimId.incrementAndGet();
+        CompletableFuture<LoginStatus> result = new CompletableFuture<>();
+        pendingClaims.put(claimId, result);
+        PeerLink link = links.get(owner);
+        try {
+            if (!link.sendControl(ClusterMessages.loginClaim(claimId, username, password))) {
+                return LoginStatus.CLUSTER_UNAVAILABLE;
+            }
+            WorkStealingPool.beginBlocking(); //the owner answers over the cluster link
+            try {
+                return result.get(CLAIM_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } finally {
+                WorkStealingPool.endBlocking();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException | TimeoutException ex) {
+            //fall through
+        } finally {
+            pendingClaims.remove(claimId);
+        }
+        link.sendControl(ClusterMessages.loginRelease(username)); //in case the owner granted a claim we gave up on
+        return LoginStatus.CLUSTER_UNAVAILABLE;
+    }
+
+    /**
+     * Releases the username claimed for a connection, if any; called on DISCONNECT and again when it closes
+     */
+    public void releaseLogin(int connectionId) {
+        Login login = logins.remove(connectionId);
+        if (login == null) {
+            return;
+        }
+        int owner = ownerOf(login.username);
+        if (owner == nodeId) {
+            release(login.username, nodeId);
+        } else {
+            links.get(owner).sendControl(ClusterMessages.loginRelease(login.username));
+        }
+    }
+
+    private int ownerOf(String username) {
+        return members[Math.floorMod(username.hashCode(), members.length)];
+    }
+
+    private synchronized LoginStatus claim(String username, String password, int holder) {
+        Claim claim = claims.get(username);
+        if (claim == null) {
+            claims.put(username, new Claim(password, holder));
+            return LoginStatus.LOGGED_IN_SUCCESSFULLY;
+        }
+        if (!claim.password.equals(password)) {
+            return LoginStatus.WRONG_PASSWORD;
+        }
+        if (claim.holder >= 0) {
+            return LoginStatus.ALREADY_LOGGED_IN;
+        }
+        claim.holder = holder;
+        return LoginStatus.LOGGED_IN_SUCCESSFULLY;
+    }
+
+    private synchronized void release(String username, int holder) {
+        Claim claim = claims.get(username);
+        if (claim != null && claim.holder == holder) {
+            claim.holder = -1;
+        }
+    }
+
+    private synchronized void releaseAll(int holder) {
+        for (Claim claim : claims.values()) {
+            if (claim.holder == holder) {
+                claim.holder = -1;
+            }
+        }
+    }
+
+    // ----- incoming links
+
+    private void listen() throws IOException {
+        ServerSocket serverSock = new ServerSocket();
+        serverSock.bind(new InetSocketAddress(port));
+        Thread acceptor = new Thread(() -> {
+            while (true) {
+                try {
+                    Socket sock = serverSock.accept();
+                    Thread reader = new Thread(() -> readLoop(sock), "cluster-in-" + sock.getRemoteSocketAddress());
+                    reader.setDaemon(true);
+                    reader.start();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                    return;
+                }
+            }
+        }, "cluster-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("cluster: node " + nodeId + " listening on " + port + ", members " + Arrays.toString(members));
+    }
+
+    private void readLoop(Socket sock) {
+        int peerId = -1;
+        try (Socket s = sock) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream(), 1 << 16));
+            BinaryReader hello = ClusterMessages.read(in);
+            if (hello.readByte() != ClusterMessages.HELLO || !links.containsKey(peerId = hello.readInt())) {
+                throw new IOException("unexpected greeting from " + s.getRemoteSocketAddress());
+            }
+            Set<String> interest = ConcurrentHashMap.newKeySet();
+            remoteInterest.put(peerId, interest);
+            inbound.put(peerId, s);
+            releaseAll(peerId); //the greeting claims again what the peer still holds
+
+            while (true) {
+                handle(peerId, interest, ClusterMessages.read(in));
+            }
+        } catch (IOException | RuntimeException ex) {
+            //the peer went away, its writer reconnects and greets us again
+        } finally {
+            if (peerId >= 0 && inbound.remove(peerId, sock)) {
+                remoteInterest.remove(peerId);
+                releaseAll(peerId);
+            }
+        }
+    }
+
+    private void handle(int peerId, Set<String> interest, BinaryReader message) {
+        switch (message.readByte()) {
+            case ClusterMessages.INTEREST_ADD:
+                interest.add(message.readString());
+                break;
+            case ClusterMessages.INTEREST_REMOVE:
+                interest.remove(message.readString());
+                break;
+            case ClusterMessages.FORWARD:
+                forwardedIn.increment();
+                String destination = message.readString();
+                Map<String, String> headers = ClusterMessages.readHeaders(message);
+                StompMessagingProtocolImpl.announce(connections, destination, headers, message.readString());
+                break;
+            case ClusterMessages.LOGIN_CLAIM:
+                long claimId = message.readLong();
+                LoginStatus status = claim(message.readString(), message.readString(), peerId);
+                links.get(peerId).sendControl(ClusterMessages.loginResult(claimId, status.ordinal()));
+                break;
+            case ClusterMessages.LOGIN_RESULT:
+                CompletableFuture<LoginStatus> result = pendingClaims.get(message.readLong());
+                if (result != null) {
+                    result.complete(LoginStatus.values()[message.readInt()]);
+                }
+                break;
+            case ClusterMessages.LOGIN_RELEASE:
+                release(message.readString(), peerId);
+                break;
+            default:
+                throw new IllegalArgumentException("unknown cluster message");
+        }
+    }
+
+    private void report(PrintStream out) {
+        out.printf("  node               %d of %s%n", nodeId, Arrays.toString(members));
+        for (PeerLink link : links.values()) {
+            Set<String> interest = remoteInterest.get(link.peerId());
+            out.printf("  peer %-3d           %s, %d destinations, %d messages in %d batches, %d dropped, %d resyncs%n",
+                    link.peerId(), link.isConnected() ? "up" : "down", interest == null ? 0 : interest.size(),
+                    link.messages(), link.batches(), link.dropped(), link.resyncs());
+        }
+        out.printf("  forwarded out / in %d / %d%n", forwardedOut.sum(), forwardedIn.sum());
+    }
+
+    private static class Login {
+        final String username;
+        final String password;
+
+        Login(String username, String password) {
+            this.username = username;
+            this.password = password;
+        }
+    }
+
+    private static class Claim {
+        final String password;
+        int holder; //the node the user is logged in at, -1 when logged out
+
+        Claim(String password, int holder) {
+            this.password = password;
+            this.holder = holder;
+        }
+    }
+}
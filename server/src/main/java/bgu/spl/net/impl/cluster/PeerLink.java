@@ -0,0 +1,169 @@
+package bgu.spl.net.impl.cluster;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * The outgoing half of the link to one peer node.
+ * A writer thread keeps a connection open, reconnecting when it breaks, and writes everything that was queued
+ * since its last write as one batch. While the peer is unreachable the queue is dropped, the peer is brought
+ * up to date by the greeting that is sent on every (re)connection. A forwarded message may be dropped when the
+ * peer is too far behind; a control message never is, a full queue makes the writer reconnect and greet instead.
+ */
+class PeerLink {
+
+    private static final int QUEUE_LIMIT = 1 << 14;
+    private static final long RETRY_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+    private static final byte[] WAKE_UP = new byte[0];
+
+    private final int peerId;
+    private final InetSocketAddress address;
+    private final Supplier<List<byte[]>> greeting;
+    private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(QUEUE_LIMIT);
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder resyncs = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private volatile boolean connected = false;
+    private volatile boolean closed = false;
+    private volatile boolean resync = false; //a control message did not fit in the queue
+    private Thread writer;
+
+    /**
+     * @param greeting the first messages of every connection
+     */
+    PeerLink(int peerId, InetSocketAddress address, Supplier<List<byte[]>> greeting) {
+        this.peerId = peerId;
+        this.address = address;
+        this.greeting = greeting;
+    }
+
+    void start() {
+        writer = new Thread(this::writeLoop, "cluster-link-" + peerId);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Sends a message the peer can do without, such as a forwarded SEND
+     * @param message an encoded message, see {@link ClusterMessages}
+     * @return false if the peer is unreachable or too far behind
+     */
+    boolean send(byte[] message) {
+        if (connected && queue.offer(message)) {
+            return true;
+        }
+        dropped.increment();
+        return false;
+    }
+
+    /**
+     * Sends a message that changes the state the peer keeps about this node. If it does not fit in the queue the
+     * link is reconnected, the peer then forgets that state and the greeting sends all of it again.
+     * @return false if the message itself will not reach the peer
+     */
+    boolean sendControl(byte[] message) {
+        if (!connected) {
+            return false; //covered by the greeting of the next connection
+        }
+        if (queue.offer(message)) {
+            return true;
+        }
+        if (!resync) {
+            resync = true;
+            resyncs.increment();
+        }
+        queue.clear(); //the greeting supersedes what was queued
+        queue.offer(WAKE_UP);
+        return false;
+    }
+
+    boolean isConnected() {
+        return connected;
+    }
+
+    int peerId() {
+        return peerId;
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    long resyncs() {
+        return resyncs.sum();
+    }
+
+    long batches() {
+        return batches.sum();
+    }
+
+    long messages() {
+        return messages.sum();
+    }
+
+    void close() {
+        closed = true;
+        if (writer != null) {
+            writer.interrupt();
+        }
+    }
+
+    private void writeLoop() {
+        List<byte[]> batch = new ArrayList<>();
+        while (!closed) {
+            try (Socket sock = new Socket()) {
+                sock.connect(address, CONNECT_TIMEOUT_MILLIS);
+                sock.setTcpNoDelay(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(sock.getOutputStream(), 1 << 16));
+                queue.clear(); //the greeting supersedes whatever was queued before
+                resync = false;
+                connected = true; //before the greeting is built so no later change is missed
+                for (byte[] message : greeting.get()) {
+                    out.write(message);
+                }
+                out.flush();
+                System.out.println("cluster: connected to node " + peerId + " at " + address);
+
+                while (!closed) {
+                    batch.add(queue.take());
+                    queue.drainTo(batch);
+                    if (resync) {
+                        throw new IOException("a control message did not fit in the queue, reconnecting");
+                    }
+                    for (byte[] message : batch) {
+                        out.write(message);
+                    }
+                    out.flush();
+                    batches.increment();
+                    messages.add(batch.size());
+                    batch.clear();
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (IOException | RuntimeException ex) {
+                if (connected) {
+                    System.out.println("cluster: lost node " + peerId + ": " + ex.getMessage());
+                }
+            } finally {
+                connected = false;
+                batch.clear();
+            }
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch (InterruptedException ex) {
+                return;
+            }
+        }
+    }
+}
@@ -4,6 +4,7 @@ import java.io.BufferedReader;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class Database {
@@ -11,6 +12,7 @@ public class Database {
 	private final ConcurrentHashMap<Integer, User> connectionsIdMap;
 	private final String sqlHost;
 	private final int sqlPort;
+	private volatile SqlListener sqlListener = SqlListener.NONE;
 
 	private Database() {
 		userMap = new ConcurrentHashMap<>();
@@ -24,12 +26,18 @@ public class Database {
 		return Instance.instance;
 	}
 
+	public void setSqlListener(SqlListener listener) {
+		sqlListener = listener;
+	}
+
 	/**
 	 * Execute SQL query and return result
 	 * @param sql SQL query string
 	 * @return Result string from SQL server
 	 */
 	private String executeSQL(String sql) {
+		SqlListener listener = sqlListener;
+		Object token = listener.started(sql);
 		try (Socket socket = new Socket(sqlHost, sqlPort);
 			 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
 			 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
@@ -50,6 +58,8 @@ public class Database {
 		} catch (Exception e) {
 			System.err.println("SQL Error: " + e.getMessage());
 			return "ERROR:" + e.getMessage();
+		} finally {
+			listener.finished(token, sql);
 		}
 	}
 
@@ -161,6 +171,28 @@ public class Database {
 		executeSQL(sql);
 	}
 
+	/**
+	 * Track several file uploads of one user with a single SQL statement
+	 * @param username User who uploaded the files
+	 * @param uploads The files and the game channels they were reported to
+	 */
+	public void trackFileUploads(String username, List<FileUpload> uploads) {
+		if (uploads.isEmpty()) {
+			return;
+		}
+		StringBuilder sql = new StringBuilder(
+			"INSERT INTO file_tracking (username, filename, upload_time, game_channel) VALUES ");
+		for (int i = 0; i < uploads.size(); i++) {
+			FileUpload upload = uploads.get(i);
+			if (i > 0) {
+				sql.append(", ");
+			}
+			sql.append(String.format("('%s', '%s', datetime('now'), '%s')",
+				escapeSql(username), escapeSql(upload.filename), escapeSql(upload.gameChannel)));
+		}
+		executeSQL(sql.toString());
+	}
+
 	/**
 	 * Generate and print server report using SQL queries
 	 */
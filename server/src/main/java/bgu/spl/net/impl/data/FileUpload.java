@@ -0,0 +1,11 @@
+package bgu.spl.net.impl.data;
+
+public class FileUpload {
+	public final String filename;
+	public final String gameChannel;
+
+	public FileUpload(String filename, String gameChannel) {
+		this.filename = filename;
+		this.gameChannel = gameChannel;
+	}
+}
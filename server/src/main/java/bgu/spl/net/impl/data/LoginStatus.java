@@ -1,5 +1,5 @@
 package bgu.spl.net.impl.data;
 
 public enum LoginStatus {
-	CLIENT_ALREADY_CONNECTED, ADDED_NEW_USER, ALREADY_LOGGED_IN, LOGGED_IN_SUCCESSFULLY, WRONG_PASSWORD
+	CLIENT_ALREADY_CONNECTED, ADDED_NEW_USER, ALREADY_LOGGED_IN, LOGGED_IN_SUCCESSFULLY, WRONG_PASSWORD, CLUSTER_UNAVAILABLE
 }
@@ -0,0 +1,30 @@
+package bgu.spl.net.impl.data;
+
+/**
+ * Told about every statement the Database sends to the SQL server, e.g. to time it or to mark the calling
+ * thread as blocked. The server installs one with {@link Database#setSqlListener}.
+ */
+public interface SqlListener {
+
+	SqlListener NONE = new SqlListener() {
+		@Override
+		public Object started(String sql) {
+			return null;
+		}
+
+		@Override
+		public void finished(Object token, String sql) {
+		}
+	};
+
+	/**
+	 * Called before the statement is sent
+	 * @return a token handed back to {@link #finished}
+	 */
+	Object started(String sql);
+
+	/**
+	 * Called once the answer was read or the statement failed
+	 */
+	void finished(Object token, String sql);
+}
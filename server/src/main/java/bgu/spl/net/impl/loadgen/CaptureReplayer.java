@@ -0,0 +1,283 @@
+package bgu.spl.net.impl.loadgen;
+
+import bgu.spl.net.srv.TrafficCapture;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Plays a capture recorded by a server started with --capture.file=... back against a server: every captured
+ * connection gets its own connection that sends the same frames, at the captured times divided by the speed,
+ * and is closed where the captured one was. Replies are read and discarded. The replayed users log in again,
+ * so the target server should not have them logged in already.
+ *
+ * Usage: CaptureReplayer [--key=value]... (run with --help for the list of options)
+ */
+public class CaptureReplayer {
+
+    private static final String[][] OPTIONS = {
+            {"host", "127.0.0.1", "server host"},
+            {"port", "7777", "server port"},
+            {"file", "capture.bin", "capture file to replay"},
+            {"speed", "1", "1 keeps the captured timing, 2 replays twice as fast, 0 as fast as possible"},
+            {"drain", "2", "seconds to keep reading replies after the last frame"},
+    };
+
+    private final Map<String, String> options;
+    private final Map<Integer, Conn> conns = new HashMap<>();
+    private Selector selector;
+    private InetSocketAddress address;
+
+    private long framesSent = 0;
+    private long bytesSent = 0;
+    private long bytesReceived = 0;
+    private long maxLagNanos = 0;
+    private int opened = 0;
+    private int failed = 0;
+    private int broken = 0;
+
+    private CaptureReplayer(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        if (options == null) {
+            printUsage();
+            System.exit(2);
+            return;
+        }
+        boolean passed = new CaptureReplayer(options).run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run() throws IOException {
+        double speed = Double.parseDouble(options.get("speed"));
+        address = new InetSocketAddress(options.get("host"), Integer.parseInt(options.get("port")));
+        selector = Selector.open();
+
+        long start = System.nanoTime();
+        try (TrafficCapture.Reader reader = new TrafficCapture.Reader(options.get("file"))) {
+            System.out.println("replaying " + options.get("file") + " to " + address
+                    + (speed > 0 ? " at speed " + speed : " as fast as possible"));
+            while (reader.next()) {
+                if (speed > 0) {
+                    long due = start + (long) (reader.nanos() / speed);
+                    waitUntil(due);
+                    maxLagNanos = Math.max(maxLagNanos, System.nanoTime() - due);
+                } else {
+                    poll(0);
+                }
+                Conn conn = conns.get(reader.captureId());
+                if (reader.type() == TrafficCapture.CLOSE) {
+                    if (conn != null) {
+                        conn.closeWhenFlushed();
+                    }
+                    continue;
+                }
+                if (conn == null) {
+                    conn = open(reader.captureId());
+                    if (conn == null) {
+                        continue;
+                    }
+                }
+                conn.queue(reader.bytes());
+                framesSent++;
+                bytesSent += reader.bytes().length;
+            }
+        }
+        long replayed = System.nanoTime() - start;
+
+        waitUntil(System.nanoTime() + (long) (Double.parseDouble(options.get("drain")) * 1e9));
+        for (Conn conn : conns.values()) {
+            conn.close();
+        }
+        selector.close();
+
+        System.out.printf("replayed %d frames (%d bytes) on %d connections in %.2f s%n",
+                framesSent, bytesSent, opened, replayed / 1e9);
+        System.out.printf("received %d bytes, max lag behind the capture timing %.2f ms%n",
+                bytesReceived, maxLagNanos / 1e6);
+        if (broken > 0) {
+            System.out.println(broken + " connections were closed by an I/O error before their capture ended");
+        }
+        if (failed > 0) {
+            System.out.println("FAIL: " + failed + " connections could not be opened");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Serves the connections until the given System.nanoTime()
+     */
+    private void waitUntil(long due) throws IOException {
+        long left;
+        while ((left = due - System.nanoTime()) > 0) {
+            if (left >= 1_000_000) {
+                poll(left / 1_000_000);
+            } else {
+                poll(0); //less than a millisecond, spin
+            }
+        }
+    }
+
+    /**
+     * @param timeoutMillis 0 to return right away
+     */
+    private void poll(long timeoutMillis) throws IOException {
+        if (timeoutMillis == 0) {
+            selector.selectNow();
+        } else {
+            selector.select(timeoutMillis);
+        }
+        for (SelectionKey key : selector.selectedKeys()) {
+            Conn conn = (Conn) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    conn.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    conn.flush();
+                }
+            } catch (IOException ex) {
+                conn.broken();
+            }
+        }
+        selector.selectedKeys().clear();
+    }
+
+    private Conn open(int captureId) {
+        try {
+            SocketChannel chan = SocketChannel.open(address);
+            Conn conn = new Conn(chan);
+            conns.put(captureId, conn);
+            opened++;
+            return conn;
+        } catch (IOException ex) {
+            System.out.println("cannot open the connection of capture id " + captureId + ": " + ex.getMessage());
+            failed++;
+            return null;
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String[] option : OPTIONS) {
+            options.put(option[0], option[1]);
+        }
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0 || !options.containsKey(arg.substring(2, eq))) {
+                return null;
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        try {
+            if (Double.parseDouble(options.get("speed")) < 0) {
+                return null;
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return options;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: CaptureReplayer [--key=value]...");
+        for (String[] option : OPTIONS) {
+            System.err.printf("  --%-16s %s%s%n", option[0], option[2],
+                    option[1].isEmpty() ? "" : " (default " + option[1] + ")");
+        }
+    }
+
+    private class Conn {
+
+        final SocketChannel chan;
+        final SelectionKey key;
+        final ByteBuffer readBuf = ByteBuffer.allocate(1 << 16);
+        final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+        boolean closing = false;
+
+        Conn(SocketChannel chan) throws IOException {
+            this.chan = chan;
+            chan.configureBlocking(false);
+            this.key = chan.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        void queue(byte[] frame) {
+            if (!key.isValid()) {
+                return;
+            }
+            writeQueue.add(ByteBuffer.wrap(frame));
+            try {
+                flush();
+            } catch (IOException ex) {
+                broken();
+            }
+        }
+
+        void flush() throws IOException {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer top = writeQueue.peek();
+                chan.write(top);
+                if (top.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.remove();
+            }
+            if (closing) {
+                close();
+            } else {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        void closeWhenFlushed() {
+            closing = true;
+            if (!key.isValid()) {
+                return;
+            }
+            try {
+                flush();
+            } catch (IOException ex) {
+                broken();
+            }
+        }
+
+        void read() throws IOException {
+            readBuf.clear();
+            int read = chan.read(readBuf);
+            if (read < 0) {
+                close();
+            } else {
+                bytesReceived += read;
+            }
+        }
+
+        /**
+         * Closes the connection after an I/O error, the others keep replaying
+         */
+        void broken() {
+            broken++;
+            close();
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                chan.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package bgu.spl.net.impl.loadgen;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A game events file in the format of client/data/events1.json.
+ * Every event is rendered into the SEND body format used by the client.
+ */
+public class EventFile {
+
+    public final String teamA;
+    public final String teamB;
+    public final List<String> bodies;
+
+    private EventFile(String teamA, String teamB, List<String> bodies) {
+        this.teamA = teamA;
+        this.teamB = teamB;
+        this.bodies = bodies;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static EventFile load(String path, String user) throws IOException {
+        String json = new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8);
+        Map<String, Object> root = (Map<String, Object>) new JsonParser(json).parse();
+        String teamA = String.valueOf(root.get("team a"));
+        String teamB = String.valueOf(root.get("team b"));
+
+        List<String> bodies = new ArrayList<>();
+        for (Object o : (List<Object>) root.get("events")) {
+            Map<String, Object> event = (Map<String, Object>) o;
+            StringBuilder sb = new StringBuilder();
+            sb.append("user: ").append(user).append('\n');
+            sb.append("team a: ").append(teamA).append('\n');
+            sb.append("team b: ").append(teamB).append('\n');
+            sb.append("event name: ").append(event.get("event name")).append('\n');
+            sb.append("time: ").append(event.get("time")).append('\n');
+            appendUpdates(sb, "general game updates", event);
+            appendUpdates(sb, "team a updates", event);
+            appendUpdates(sb, "team b updates", event);
+            sb.append("description:\n").append(event.get("description")).append('\n');
+            bodies.add(sb.toString());
+        }
+        if (bodies.isEmpty()) {
+            throw new IOException("no events in " + path);
+        }
+        return new EventFile(teamA, teamB, bodies);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void appendUpdates(StringBuilder sb, String name, Map<String, Object> event) {
+        sb.append(name).append(":\n");
+        Object updates = event.get(name);
+        if (updates instanceof Map) {
+            for (Map.Entry<String, Object> e : ((Map<String, Object>) updates).entrySet()) {
+                sb.append(e.getKey()).append(':').append(e.getValue()).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Just enough JSON to read the event files, numbers are kept as their literal text.
+     */
+    private static class JsonParser {
+
+        private final String s;
+        private int pos = 0;
+
+        JsonParser(String s) {
+            this.s = s;
+        }
+
+        Object parse() throws IOException {
+            Object value = value();
+            skipWhitespace();
+            if (pos != s.length()) {
+                throw error("trailing characters");
+            }
+            return value;
+        }
+
+        private Object value() throws IOException {
+            skipWhitespace();
+            if (pos >= s.length()) {
+                throw error("unexpected end");
+            }
+            char c = s.charAt(pos);
+            switch (c) {
+                case '{':
+                    return object();
+                case '[':
+                    return array();
+                case '"':
+                    return string();
+                default:
+                    return literal();
+            }
+        }
+
+        private Map<String, Object> object() throws IOException {
+            Map<String, Object> map = new LinkedHashMap<>();
+            pos++; // {
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return map;
+            }
+            while (true) {
+                skipWhitespace();
+                String key = string();
+                skipWhitespace();
+                expect(':');
+                map.put(key, value());
+                skipWhitespace();
+                char c = next();
+                if (c == '}') {
+                    return map;
+                } else if (c != ',') {
+                    throw error("expected , or }");
+                }
+            }
+        }
+
+        private List<Object> array() throws IOException {
+            List<Object> list = new ArrayList<>();
+            pos++; // [
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+                return list;
+            }
+            while (true) {
+                list.add(value());
+                skipWhitespace();
+                char c = next();
+                if (c == ']') {
+                    return list;
+                } else if (c != ',') {
+                    throw error("expected , or ]");
+                }
+            }
+        }
+
+        private String string() throws IOException {
+            expect('"');
+            StringBuilder sb = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return sb.toString();
+                } else if (c == '\\') {
+                    char e = next();
+                    switch (e) {
+                        case 'n': sb.append('\n'); break;
+                        case 't': sb.append('\t'); break;
+                        case 'r': sb.append('\r'); break;
+                        case 'b': sb.append('\b'); break;
+                        case 'f': sb.append('\f'); break;
+                        case 'u':
+                            if (pos + 4 > s.length()) {
+                                throw error("bad unicode escape");
+                            }
+                            sb.append((char) Integer.parseInt(s.substring(pos, pos + 4), 16));
+                            pos += 4;
+                            break;
+                        default: sb.append(e);
+                    }
+                } else {
+                    sb.append(c);
+                }
+            }
+        }
+
+        private Object literal() throws IOException {
+            int start = pos;
+            while (pos < s.length() && ",}] \t\r\n".indexOf(s.charAt(pos)) < 0) {
+                pos++;
+            }
+            String text = s.substring(start, pos);
+            if (text.equals("true") || text.equals("false")) {
+                return Boolean.valueOf(text);
+            } else if (text.equals("null")) {
+                return null;
+            } else if (text.isEmpty()) {
+                throw error("expected a value");
+            }
+            return text;
+        }
+
+        private void skipWhitespace() {
+            while (pos < s.length() && Character.isWhitespace(s.charAt(pos))) {
+                pos++;
+            }
+        }
+
+        private char peek() throws IOException {
+            if (pos >= s.length()) {
+                throw error("unexpected end");
+            }
+            return s.charAt(pos);
+        }
+
+        private char next() throws IOException {
+            char c = peek();
+            pos++;
+            return c;
+        }
+
+        private void expect(char c) throws IOException {
+            if (next() != c) {
+                throw error("expected " + c);
+            }
+        }
+
+        private IOException error(String what) {
+            return new IOException("bad json at " + pos + ": " + what);
+        }
+    }
+}
@@ -0,0 +1,438 @@
+package bgu.spl.net.impl.loadgen;
+
+import bgu.spl.net.srv.ActorThreadPool;
+import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.ConnectionsImpl;
+import bgu.spl.net.srv.MessageAttributes;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+
+/**
+ * Runs fixed in-process workloads against ConnectionsImpl and ActorThreadPool with 1, 2, 4 and N threads and
+ * reports their throughput and scaling efficiency (the throughput with T threads over min(T, cores) times the
+ * throughput with one). Only the efficiencies are stored and compared, as they do not depend on how fast the
+ * machine is; with more threads than cores they show what the extra threads cost. Exits with status 1 when an
+ * efficiency is lower than the stored baseline by more than the tolerance or there is no baseline, so it can be
+ * used as a regression gate; --update-baseline=true stores the measured values instead. mvn verify -Pscalability
+ * runs it against scalability-baseline.properties.
+ *
+ * Usage: ScalabilitySuite [--key=value]... (run with --help for the list of options)
+ */
+public class ScalabilitySuite {
+
+    private static final String[][] OPTIONS = {
+            {"workloads", "subscribe-churn,publish-fanout,connect-disconnect,actor-pool", "workloads to run"},
+            {"threads", "1,2,4,N", "thread counts, N is the number of cores"},
+            {"warmup", "1", "seconds of every run that are not measured"},
+            {"duration", "3", "measured seconds of every run"},
+            {"baseline", "scalability-baseline.properties", "file of the stored efficiencies"},
+            {"tolerance", "0.25", "fraction of a baseline value a result may lose before it is a regression"},
+            {"update-baseline", "false", "store the results as the new baseline instead of comparing"},
+    };
+
+    private static final int CHANNELS = 16;
+    private static final int FANOUT_SUBSCRIBERS = 1000;
+    private static final int ACTORS_PER_THREAD = 16;
+    private static final int TASKS_IN_FLIGHT = 256;
+
+    private final Map<String, String> options;
+    private final Map<String, Workload> workloads = new LinkedHashMap<>();
+
+    private ScalabilitySuite(Map<String, String> options) {
+        this.options = options;
+        workloads.put("subscribe-churn", new SubscribeChurn());
+        workloads.put("publish-fanout", new PublishFanOut());
+        workloads.put("connect-disconnect", new ConnectDisconnect());
+        workloads.put("actor-pool", new ActorPool());
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        if (options == null) {
+            printUsage();
+            System.exit(2);
+            return;
+        }
+        boolean passed = new ScalabilitySuite(options).run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        List<Integer> threadCounts = threadCounts(options.get("threads"));
+        long warmup = secondsOption("warmup");
+        long duration = secondsOption("duration");
+        int cores = Runtime.getRuntime().availableProcessors();
+        Map<String, String> results = new TreeMap<>();
+
+        System.out.printf("%-20s %7s %16s %10s%n", "workload", "threads", "ops/s", "efficiency");
+        for (String name : options.get("workloads").split(",")) {
+            Workload workload = workloads.get(name.trim());
+            double single = 0;
+            for (int threads : threadCounts) {
+                double throughput = measure(workload, threads, warmup, duration);
+                if (threads == 1 || single == 0) {
+                    single = throughput / threads;
+                }
+                double efficiency = single == 0 ? 0 : throughput / (Math.min(threads, cores) * single);
+                System.out.printf("%-20s %7d %16.0f %10.2f%n", workload.name, threads, throughput, efficiency);
+                if (threads > 1) { //1 by definition
+                    results.put(workload.name + "." + threads + ".efficiency",
+                            String.format(Locale.ROOT, "%.3f", efficiency));
+                }
+            }
+        }
+
+        File baselineFile = new File(options.get("baseline"));
+        if (Boolean.parseBoolean(options.get("update-baseline"))) {
+            List<String> lines = new ArrayList<>();
+            lines.add("#ScalabilitySuite baseline, " + cores + " cores");
+            for (Map.Entry<String, String> result : results.entrySet()) {
+                double efficiency = Math.min(Double.parseDouble(result.getValue()), 1); //above 1 is noise
+                lines.add(result.getKey() + "=" + String.format(Locale.ROOT, "%.3f", efficiency));
+            }
+            Files.write(baselineFile.toPath(), lines, StandardCharsets.ISO_8859_1);
+            System.out.println("baseline written to " + baselineFile);
+            return true;
+        }
+        if (!baselineFile.isFile()) {
+            System.out.println("FAIL: no baseline at " + baselineFile + ", run with --update-baseline=true to store one");
+            return false;
+        }
+        Properties baseline = new Properties();
+        try (InputStream in = new FileInputStream(baselineFile)) {
+            baseline.load(in);
+        }
+        return compare(results, baseline, Double.parseDouble(options.get("tolerance")));
+    }
+
+    /**
+     * @return whether no result is below its baseline by more than the tolerance
+     */
+    private static boolean compare(Map<String, String> results, Properties baseline, double tolerance) {
+        boolean passed = true;
+        for (Map.Entry<String, String> result : results.entrySet()) {
+            String stored = baseline.getProperty(result.getKey());
+            if (stored == null) {
+                continue; //not measured before
+            }
+            double expected = Double.parseDouble(stored);
+            double measured = Double.parseDouble(result.getValue());
+            if (measured < expected * (1 - tolerance)) {
+                System.out.printf("FAIL: %s is %s, baseline %s%n", result.getKey(), result.getValue(), stored);
+                passed = false;
+            }
+        }
+        if (passed) {
+            System.out.println("PASS");
+        }
+        return passed;
+    }
+
+    /**
+     * Runs the workload with the given number of threads
+     * @return operations per second after the warmup
+     */
+    private static double measure(Workload workload, int threads, long warmupNanos, long durationNanos)
+            throws InterruptedException {
+        workload.setUp(threads);
+        LongAdder ops = new LongAdder();
+        AtomicBoolean stop = new AtomicBoolean(false);
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            int thread = t;
+            workers[t] = new Thread(() -> {
+                int iteration = 0;
+                while (!stop.get()) {
+                    ops.add(workload.step(thread, iteration++));
+                }
+            }, workload.name + "-" + t);
+            workers[t].start();
+        }
+
+        sleepNanos(warmupNanos);
+        long startOps = ops.sum();
+        long start = System.nanoTime();
+        sleepNanos(durationNanos);
+        long endOps = ops.sum();
+        long end = System.nanoTime();
+
+        stop.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        workload.tearDown();
+        return (endOps - startOps) * 1e9 / (end - start);
+    }
+
+    private static void sleepNanos(long nanos) throws InterruptedException {
+        Thread.sleep(nanos / 1_000_000, (int) (nanos % 1_000_000));
+    }
+
+    private static List<Integer> threadCounts(String setting) {
+        TreeSet<Integer> counts = new TreeSet<>();
+        for (String count : setting.split(",")) {
+            count = count.trim();
+            counts.add(count.equals("N") ? Runtime.getRuntime().availableProcessors() : Integer.parseInt(count));
+        }
+        return new ArrayList<>(counts);
+    }
+
+    private long secondsOption(String name) {
+        return (long) (Double.parseDouble(options.get(name)) * 1e9);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String[] option : OPTIONS) {
+            options.put(option[0], option[1]);
+        }
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0 || !options.containsKey(arg.substring(2, eq))) {
+                return null;
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        List<String> known = Arrays.asList("subscribe-churn", "publish-fanout", "connect-disconnect", "actor-pool");
+        for (String workload : options.get("workloads").split(",")) {
+            if (!known.contains(workload.trim())) {
+                return null;
+            }
+        }
+        try {
+            threadCounts(options.get("threads"));
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return options;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: ScalabilitySuite [--key=value]...");
+        for (String[] option : OPTIONS) {
+            System.err.printf("  --%-16s %s%s%n", option[0], option[2],
+                    option[1].isEmpty() ? "" : " (default " + option[1] + ")");
+        }
+    }
+
+    private static String[] channels(String prefix) {
+        String[] channels = new String[CHANNELS];
+        for (int i = 0; i < CHANNELS; i++) {
+            channels[i] = prefix + i;
+        }
+        return channels;
+    }
+
+    /**
+     * A fixed amount of work repeated by every thread of a run
+     */
+    private abstract static class Workload {
+
+        final String name;
+
+        Workload(String name) {
+            this.name = name;
+        }
+
+        void setUp(int threads) {}
+
+        /**
+         * @return the number of operations done
+         */
+        abstract long step(int thread, int iteration);
+
+        void tearDown() {}
+    }
+
+    /**
+     * Every thread subscribes its own connection to the shared channels and unsubscribes it again
+     */
+    private static class SubscribeChurn extends Workload {
+
+        private final String[] channels = channels("/churn-");
+        private ConnectionsImpl<String> connections;
+        private int[] connectionIds;
+
+        SubscribeChurn() {
+            super("subscribe-churn");
+        }
+
+        @Override
+        void setUp(int threads) {
+            connections = new ConnectionsImpl<>();
+            connectionIds = new int[threads];
+            for (int t = 0; t < threads; t++) {
+                connectionIds[t] = connections.addConnection(new NullHandler());
+            }
+        }
+
+        @Override
+        long step(int thread, int iteration) {
+            int connectionId = connectionIds[thread];
+            String channel = channels[iteration & (CHANNELS - 1)];
+            connections.reserve(connectionId, "1", channel);
+            connections.subscribe(channel, connectionId, "1");
+            connections.unsubscribe(connectionId, "1");
+            return 1;
+        }
+
+        @Override
+        void tearDown() {
+            for (int connectionId : connectionIds) {
+                connections.disconnect(connectionId);
+            }
+        }
+    }
+
+    /**
+     * Every thread broadcasts to the shared channels, which have 1000 subscribers between them; an operation
+     * is one delivery
+     */
+    private static class PublishFanOut extends Workload {
+
+        private final String[] channels = channels("/fanout-");
+        private final BiFunction<String, String, byte[]> encoder = (subscriptionId, encoding) ->
+                ("MESSAGE\nsubscription:" + subscriptionId + "\ndestination:/fanout\n\nbody\u0000")
+                        .getBytes(StandardCharsets.UTF_8);
+        private ConnectionsImpl<String> connections;
+
+        PublishFanOut() {
+            super("publish-fanout");
+        }
+
+        @Override
+        void setUp(int threads) {
+            connections = new ConnectionsImpl<>();
+            for (int i = 0; i < FANOUT_SUBSCRIBERS; i++) {
+                int connectionId = connections.addConnection(new NullHandler());
+                connections.subscribe(channels[i & (CHANNELS - 1)], connectionId, String.valueOf(i & 3));
+            }
+        }
+
+        @Override
+        long step(int thread, int iteration) {
+            return connections.broadcastEncoded(channels[(iteration + thread) & (CHANNELS - 1)],
+                    MessageAttributes.NONE, encoder);
+        }
+    }
+
+    /**
+     * Every thread registers a connection, subscribes it and disconnects it
+     */
+    private static class ConnectDisconnect extends Workload {
+
+        private final String[] channels = channels("/connect-");
+        private final NullHandler handler = new NullHandler();
+        private ConnectionsImpl<String> connections;
+
+        ConnectDisconnect() {
+            super("connect-disconnect");
+        }
+
+        @Override
+        void setUp(int threads) {
+            connections = new ConnectionsImpl<>();
+        }
+
+        @Override
+        long step(int thread, int iteration) {
+            int connectionId = connections.addConnection(handler);
+            String channel = channels[iteration & (CHANNELS - 1)];
+            connections.reserve(connectionId, "1", channel);
+            connections.subscribe(channel, connectionId, "1");
+            connections.disconnect(connectionId);
+            return 1;
+        }
+    }
+
+    /**
+     * Every thread submits small tasks to its own actors of a pool with as many workers as threads, keeping a
+     * bounded number of them in flight; an operation is one task
+     */
+    private static class ActorPool extends Workload {
+
+        private ActorThreadPool pool;
+        private Object[][] actors;
+        private Semaphore[] inFlight;
+
+        ActorPool() {
+            super("actor-pool");
+        }
+
+        @Override
+        void setUp(int threads) {
+            pool = new ActorThreadPool(threads);
+            actors = new Object[threads][ACTORS_PER_THREAD];
+            inFlight = new Semaphore[threads];
+            for (int t = 0; t < threads; t++) {
+                for (int a = 0; a < ACTORS_PER_THREAD; a++) {
+                    actors[t][a] = new Object();
+                }
+                inFlight[t] = new Semaphore(TASKS_IN_FLIGHT);
+            }
+        }
+
+        @Override
+        long step(int thread, int iteration) {
+            Semaphore permits = inFlight[thread];
+            permits.acquireUninterruptibly();
+            pool.submit(actors[thread][iteration & (ACTORS_PER_THREAD - 1)], permits::release);
+            return 1;
+        }
+
+        @Override
+        void tearDown() {
+            for (Semaphore permits : inFlight) {
+                permits.acquireUninterruptibly(TASKS_IN_FLIGHT); //let the last tasks finish
+            }
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A connection that discards what is sent to it
+     */
+    private static class NullHandler implements ConnectionHandler<String> {
+
+        @Override
+        public void send(String msg) {
+        }
+
+        @Override
+        public byte[] encode(String msg) {
+            return msg.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Runnable sendEncoded(byte[] encoded) {
+            return null;
+        }
+
+        @Override
+        public void pauseReading(long nanos) {
+        }
+
+        @Override
+        public void close() throws IOException {
+        }
+    }
+}
@@ -0,0 +1,444 @@
+package bgu.spl.net.impl.loadgen;
+
+import bgu.spl.net.impl.stomp.StompServer;
+import bgu.spl.net.srv.LatencyHistogram;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * Opens many STOMP connections against a StompServer (tpc, reactor or percore), subscribes them to game channels
+ * and replays a game events file at a fixed rate, then reports publish-to-delivery latency and throughput.
+ * Exits with status 1 when one of the configured thresholds is violated so it can be used as a regression gate.
+ *
+ * Usage: StompLoadGenerator [--key=value]... (run with --help for the list of options)
+ */
+public class StompLoadGenerator {
+
+    private static final String SENT_MARKER = "load-sent:";
+
+    private static final String[][] OPTIONS = {
+            {"host", "127.0.0.1", "server host"},
+            {"port", "7777", "server port"},
+            {"server", "none", "start an in-process StompServer first: none|tpc|reactor|percore"},
+            {"events", "../client/data/events1.json", "game events file to replay"},
+            {"connections", "1000", "number of STOMP connections"},
+            {"publishers", "4", "how many of the connections publish events"},
+            {"games", "4", "number of game channels the connections are spread over"},
+            {"rate", "200", "SEND frames per second, over all publishers"},
+            {"duration", "30", "publishing time in seconds"},
+            {"warmup", "5", "seconds at the start that are excluded from the report"},
+            {"drain", "10", "seconds to wait for outstanding deliveries after publishing"},
+            {"setup-timeout", "60", "seconds allowed for connecting and subscribing"},
+            {"max-p50-ms", "", "fail when the median delivery latency is above this"},
+            {"max-p99-ms", "", "fail when the 99th percentile delivery latency is above this"},
+            {"max-p999-ms", "", "fail when the 99.9th percentile delivery latency is above this"},
+            {"min-throughput", "", "fail when fewer deliveries per second were measured"},
+            {"max-loss", "0", "fail when a larger fraction of the expected deliveries is missing"},
+    };
+
+    private final Map<String, String> options;
+    private final List<Conn> conns = new ArrayList<>();
+    private final List<Conn> publishers = new ArrayList<>();
+    private final Map<String, Integer> subscribersPerGame = new HashMap<>();
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private Selector selector;
+    private EventFile events;
+
+    private long measureFrom;
+    private long expected = 0;
+    private long delivered = 0;
+    private long measuredDeliveries = 0;
+    private long measuredPublishes = 0;
+    private long errors = 0;
+    private int connectedCount = 0;
+    private int subscribedCount = 0;
+
+    private StompLoadGenerator(Map<String, String> options) {
+        this.options = options;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        if (options == null) {
+            printUsage();
+            System.exit(2);
+            return;
+        }
+        boolean passed = new StompLoadGenerator(options).run();
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        String mode = options.get("server");
+        if (!mode.equals("none")) {
+            startInProcessServer(options.get("port"), mode);
+        }
+
+        String runId = Long.toString(System.currentTimeMillis(), 36);
+        events = EventFile.load(options.get("events"), "load-" + runId);
+        int connections = intOption("connections");
+        int publisherCount = Math.min(intOption("publishers"), connections);
+        int games = intOption("games");
+
+        selector = Selector.open();
+        InetSocketAddress address = new InetSocketAddress(options.get("host"), intOption("port"));
+        System.out.println("opening " + connections + " connections to " + address);
+        long setupDeadline = System.nanoTime() + secondsOption("setup-timeout");
+
+        for (int i = 0; i < connections; i++) {
+            String game = "/" + events.teamA + "_" + events.teamB + (games > 1 ? "_" + (i % games) : "");
+            Conn conn = new Conn(i, game, open(address, i == 0 ? setupDeadline : 0));
+            conns.add(conn);
+            if (i < publisherCount) {
+                publishers.add(conn);
+            }
+            subscribersPerGame.merge(game, 1, Integer::sum);
+            conn.queue("CONNECT\naccept-version:1.2\nhost:stomp.cs.bgu.ac.il\n"
+                    + "login:load-" + runId + "-" + i + "\npasscode:load\n\n");
+        }
+
+        while (subscribedCount < connections) {
+            if (System.nanoTime() > setupDeadline) {
+                System.out.println("FAIL: only " + connectedCount + " connected and " + subscribedCount
+                        + " subscribed within the setup timeout");
+                return false;
+            }
+            poll(10);
+        }
+        System.out.println("all connections subscribed, publishing for " + options.get("duration") + "s at "
+                + options.get("rate") + " frames/s");
+
+        publish();
+        drain();
+        disconnect();
+        return report();
+    }
+
+    private void publish() throws IOException {
+        long interval = (long) (1e9 / Double.parseDouble(options.get("rate")));
+        long start = System.nanoTime();
+        long end = start + secondsOption("duration");
+        measureFrom = start + secondsOption("warmup");
+        long nextSend = start;
+        long seq = 0;
+
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+            while (nextSend <= now) {
+                Conn publisher = publishers.get((int) (seq % publishers.size()));
+                String body = events.bodies.get((int) (seq % events.bodies.size()));
+                publisher.queue("SEND\ndestination:" + publisher.game + "\n\n"
+                        + SENT_MARKER + System.nanoTime() + "\n" + body);
+                if (nextSend >= measureFrom) {
+                    measuredPublishes++;
+                }
+                expected += subscribersPerGame.get(publisher.game);
+                nextSend += interval;
+                seq++;
+            }
+            long waitMillis = (nextSend - System.nanoTime()) / 1_000_000;
+            poll(Math.max(waitMillis, 0));
+        }
+    }
+
+    private void drain() throws IOException {
+        long deadline = System.nanoTime() + secondsOption("drain");
+        while (delivered < expected && System.nanoTime() < deadline) {
+            poll(10);
+        }
+    }
+
+    private void disconnect() {
+        for (Conn conn : conns) {
+            try {
+                conn.queue("DISCONNECT\nreceipt:bye\n\n");
+            } catch (IOException ignored) {
+            }
+        }
+        long deadline = System.nanoTime() + 2_000_000_000L;
+        try {
+            while (System.nanoTime() < deadline && selector.keys().size() > 0) {
+                poll(10);
+            }
+        } catch (IOException ignored) {
+        }
+        for (Conn conn : conns) {
+            conn.close();
+        }
+    }
+
+    private boolean report() {
+        double seconds = (secondsOption("duration") - secondsOption("warmup")) / 1e9;
+        double throughput = seconds > 0 ? measuredDeliveries / seconds : 0;
+        double loss = expected == 0 ? 0 : 1.0 - (double) delivered / expected;
+
+        System.out.println();
+        System.out.println("=== Load report ===");
+        System.out.println("connections:      " + conns.size() + " (" + publishers.size() + " publishers, "
+                + subscribersPerGame.size() + " games)");
+        System.out.printf("publishes/s:      %.1f%n", seconds > 0 ? measuredPublishes / seconds : 0);
+        System.out.printf("deliveries/s:     %.1f%n", throughput);
+        System.out.println("delivered:        " + delivered + " of " + expected + " expected");
+        System.out.printf("loss:             %.4f%n", loss);
+        System.out.println("errors:           " + errors);
+        System.out.printf("latency mean:     %.3f ms%n", latencies.mean() / 1000);
+        System.out.printf("latency p50:      %.3f ms%n", latencies.percentile(50) / 1000.0);
+        System.out.printf("latency p90:      %.3f ms%n", latencies.percentile(90) / 1000.0);
+        System.out.printf("latency p99:      %.3f ms%n", latencies.percentile(99) / 1000.0);
+        System.out.printf("latency p99.9:    %.3f ms%n", latencies.percentile(99.9) / 1000.0);
+        System.out.printf("latency max:      %.3f ms%n", latencies.max() / 1000.0);
+
+        boolean passed = true;
+        passed &= checkMax("max-p50-ms", latencies.percentile(50) / 1000.0);
+        passed &= checkMax("max-p99-ms", latencies.percentile(99) / 1000.0);
+        passed &= checkMax("max-p999-ms", latencies.percentile(99.9) / 1000.0);
+        passed &= checkMax("max-loss", loss);
+        if (!options.get("min-throughput").isEmpty()
+                && throughput < Double.parseDouble(options.get("min-throughput"))) {
+            System.out.println("FAIL: deliveries/s " + throughput + " is below min-throughput "
+                    + options.get("min-throughput"));
+            passed = false;
+        }
+        if (errors > 0) {
+            System.out.println("FAIL: the server sent " + errors + " ERROR frames");
+            passed = false;
+        }
+        System.out.println(passed ? "PASS" : "FAIL");
+        return passed;
+    }
+
+    private boolean checkMax(String option, double measured) {
+        String limit = options.get(option);
+        if (limit.isEmpty() || measured <= Double.parseDouble(limit)) {
+            return true;
+        }
+        System.out.println("FAIL: " + option.substring(4) + " " + measured + " is above " + limit);
+        return false;
+    }
+
+    private void poll(long timeoutMillis) throws IOException {
+        if (timeoutMillis == 0) {
+            selector.selectNow();
+        } else {
+            selector.select(timeoutMillis);
+        }
+        Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+        while (it.hasNext()) {
+            SelectionKey key = it.next();
+            it.remove();
+            Conn conn = (Conn) key.attachment();
+            try {
+                if (key.isValid() && key.isReadable()) {
+                    conn.read();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    conn.flush();
+                }
+            } catch (IOException ex) {
+                conn.close();
+            }
+        }
+    }
+
+    private void onFrame(Conn conn, String frame) throws IOException {
+        int start = 0;
+        while (start < frame.length() && frame.charAt(start) == '\n') {
+            start++;
+        }
+        if (start == frame.length()) {
+            return; //the server terminates its frames twice
+        }
+        int eol = frame.indexOf('\n', start);
+        String command = eol < 0 ? frame.substring(start) : frame.substring(start, eol);
+
+        switch (command) {
+            case "CONNECTED":
+                connectedCount++;
+                conn.queue("SUBSCRIBE\ndestination:" + conn.game + "\nid:" + conn.index
+                        + "\nreceipt:subscribed\n\n");
+                break;
+            case "RECEIPT":
+                if (frame.contains("receipt-id:subscribed")) {
+                    subscribedCount++;
+                } else {
+                    conn.close();
+                }
+                break;
+            case "MESSAGE":
+                onMessage(frame);
+                break;
+            case "ERROR":
+                if (errors++ < 5) {
+                    System.out.println("server error on connection " + conn.index + ":\n" + frame);
+                }
+                break;
+            default:
+        }
+    }
+
+    private void onMessage(String frame) {
+        long now = System.nanoTime();
+        delivered++;
+        int bodyStart = frame.indexOf("\n\n");
+        if (bodyStart < 0 || !frame.startsWith(SENT_MARKER, bodyStart + 2)) {
+            return;
+        }
+        int from = bodyStart + 2 + SENT_MARKER.length();
+        int to = frame.indexOf('\n', from);
+        long sent = Long.parseLong(frame.substring(from, to < 0 ? frame.length() : to));
+        if (sent >= measureFrom) {
+            measuredDeliveries++;
+            latencies.record((now - sent) / 1000);
+        }
+    }
+
+    private static SocketChannel open(InetSocketAddress address, long retryUntil) throws IOException {
+        while (true) {
+            try {
+                return SocketChannel.open(address);
+            } catch (ConnectException ex) {
+                if (System.nanoTime() > retryUntil) {
+                    throw ex;
+                }
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    private static void startInProcessServer(String port, String mode) {
+        Thread server = new Thread(() -> StompServer.main(new String[]{port, mode}), "stomp-server");
+        server.setDaemon(true);
+        server.start();
+    }
+
+    private int intOption(String name) {
+        return Integer.parseInt(options.get(name));
+    }
+
+    private long secondsOption(String name) {
+        return (long) (Double.parseDouble(options.get(name)) * 1e9);
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String[] option : OPTIONS) {
+            options.put(option[0], option[1]);
+        }
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0 || !options.containsKey(arg.substring(2, eq))) {
+                return null;
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        if (!Arrays.asList("none", "tpc", "reactor", "percore").contains(options.get("server"))) {
+            return null;
+        }
+        if (!options.get("server").equals("none")) {
+            options.put("host", "127.0.0.1");
+        }
+        return options;
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: StompLoadGenerator [--key=value]...");
+        for (String[] option : OPTIONS) {
+            System.err.printf("  --%-16s %s%s%n", option[0], option[2],
+                    option[1].isEmpty() ? "" : " (default " + option[1] + ")");
+        }
+    }
+
+    private class Conn {
+
+        final int index;
+        final String game;
+        final SocketChannel chan;
+        final SelectionKey key;
+        final ByteBuffer readBuf = ByteBuffer.allocate(1 << 16);
+        final Queue<ByteBuffer> writeQueue = new ArrayDeque<>();
+        byte[] frame = new byte[1 << 10];
+        int frameLen = 0;
+
+        Conn(int index, String game, SocketChannel chan) throws IOException {
+            this.index = index;
+            this.game = game;
+            this.chan = chan;
+            chan.configureBlocking(false);
+            this.key = chan.register(selector, SelectionKey.OP_READ, this);
+        }
+
+        void queue(String frame) throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+            writeQueue.add(ByteBuffer.wrap((frame + '\u0000').getBytes(StandardCharsets.UTF_8)));
+            flush();
+        }
+
+        void flush() throws IOException {
+            while (!writeQueue.isEmpty()) {
+                ByteBuffer top = writeQueue.peek();
+                chan.write(top);
+                if (top.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writeQueue.remove();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void read() throws IOException {
+            readBuf.clear();
+            if (chan.read(readBuf) < 0) {
+                close();
+                return;
+            }
+            readBuf.flip();
+            while (readBuf.hasRemaining()) {
+                byte b = readBuf.get();
+                if (b == 0) {
+                    String text = new String(frame, 0, frameLen, StandardCharsets.UTF_8);
+                    frameLen = 0;
+                    onFrame(this, text);
+                } else {
+                    if (frameLen == frame.length) {
+                        frame = Arrays.copyOf(frame, frameLen * 2);
+                    }
+                    frame[frameLen++] = b;
+                }
+            }
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                chan.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
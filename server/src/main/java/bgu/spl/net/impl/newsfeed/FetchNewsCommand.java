@@ -1,19 +1,53 @@
 package bgu.spl.net.impl.newsfeed;
 
 import bgu.spl.net.impl.rci.Command;
+import bgu.spl.net.impl.rci.Schema;
 import java.io.Serializable;
 
 public class FetchNewsCommand implements Command<NewsFeed> {
 
+    static final Schema<FetchNewsCommand> SCHEMA = Schema.of(
+            (cmd, out) -> {
+                out.writeString(cmd.channel);
+                out.writeBoolean(cmd.paged);
+                if (cmd.paged) {
+                    out.writeLong(cmd.since);
+                    out.writeInt(cmd.max);
+                }
+            },
+            in -> {
+                String channel = in.readString();
+                return in.readBoolean()
+                        ? new FetchNewsCommand(channel, in.readLong(), in.readInt())
+                        : new FetchNewsCommand(channel);
+            });
+
     private String channel;
+    private boolean paged;
+    private long since;
+    private int max;
 
+    /**
+     * Fetches every retained item of the channel, the result is an ArrayList&lt;String&gt;
+     */
     public FetchNewsCommand(String channel) {
         this.channel = channel;
     }
 
+    /**
+     * Fetches at most max items published after the item with the sequence number since, the result is a
+     * {@link NewsPage}
+     */
+    public FetchNewsCommand(String channel, long since, int max) {
+        this.channel = channel;
+        this.paged = true;
+        this.since = since;
+        this.max = max;
+    }
+
     @Override
     public Serializable execute(NewsFeed feed) {
-        return feed.fetch(channel);
+        return paged ? feed.fetch(channel, since, max) : feed.fetch(channel);
     }
 
 }
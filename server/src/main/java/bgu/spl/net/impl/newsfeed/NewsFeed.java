@@ -2,27 +2,89 @@ package bgu.spl.net.impl.newsfeed;
 
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 
+/**
+ * Keeps the latest news of every channel in a fixed capacity ring, older news are overwritten.
+ * Every published item gets the next sequence number of its channel, starting at 1, so a reader can ask for
+ * what was published after the last item it saw without copying the rest of the history.
+ */
 public class NewsFeed {
 
-    private ConcurrentHashMap<String, ConcurrentLinkedQueue<String>> channels = new ConcurrentHashMap<>();
+    public static final int DEFAULT_CAPACITY = 1024;
 
+    private final int capacity;
+    private final ConcurrentHashMap<String, Ring> channels = new ConcurrentHashMap<>();
+
+    public NewsFeed() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity how many items every channel retains
+     */
+    public NewsFeed(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * @return every retained item of the channel
+     */
     public ArrayList<String> fetch(String channel) {
-        ConcurrentLinkedQueue<String> queue = channels.get(channel);
-        if (queue == null) {
-            return new ArrayList<>(0); //empty
-        } else {
-            return new ArrayList<>(queue); //copy of the queue, arraylist is serializable
+        return fetch(channel, 0, capacity).items();
+    }
+
+    /**
+     * @param since the sequence number of the last item the caller saw, 0 for none
+     * @param max the maximum number of items to return
+     * @return the oldest retained items published after since
+     */
+    public NewsPage fetch(String channel, long since, int max) {
+        Ring ring = channels.get(channel);
+        if (ring == null) {
+            return new NewsPage(new ArrayList<>(0), since, 0);
         }
+        return ring.fetch(since, max);
     }
 
-    public void publish(String channel, String news) {
-        ConcurrentLinkedQueue<String> queue = channels.computeIfAbsent(channel, k -> new ConcurrentLinkedQueue<>());
-        queue.add(news);
+    /**
+     * @return the sequence number of the published item
+     */
+    public long publish(String channel, String news) {
+        return channels.computeIfAbsent(channel, k -> new Ring(capacity)).publish(news);
     }
 
     public void clear() {
         channels.clear();
     }
+
+    private static class Ring {
+
+        private final String[] items;
+        private long nextSequence = 1;
+
+        Ring(int capacity) {
+            items = new String[capacity];
+        }
+
+        synchronized long publish(String news) {
+            long sequence = nextSequence++;
+            items[(int) ((sequence - 1) % items.length)] = news;
+            return sequence;
+        }
+
+        synchronized NewsPage fetch(long since, int max) {
+            long oldest = Math.max(1, nextSequence - items.length);
+            long from = Math.max(since + 1, oldest);
+            int count = (int) Math.max(0, Math.min(max, nextSequence - from));
+            ArrayList<String> page = new ArrayList<>(count);
+            for (long sequence = from; sequence < from + count; sequence++) {
+                page.add(items[(int) ((sequence - 1) % items.length)]);
+            }
+            long last = count == 0 ? Math.max(since, from - 1) : from + count - 1;
+            return new NewsPage(page, last, Math.max(0, from - since - 1));
+        }
+    }
 }
@@ -1,6 +1,8 @@
 package bgu.spl.net.impl.newsfeed;
 
 import bgu.spl.net.impl.rci.RCIClient;
+import java.io.Serializable;
+import java.util.concurrent.CompletableFuture;
 
 public class NewsFeedClientMain {
 
@@ -10,6 +12,7 @@ public class NewsFeedClientMain {
         }
 
 //        System.out.println("running clients");
+        NewsFeedSchemas.register();
         runFirstClient(args[0]);
         runSecondClient(args[0]);
         runThirdClient(args[0]);
@@ -17,23 +20,20 @@ public class NewsFeedClientMain {
 
     private static void runFirstClient(String host) throws Exception {
         try (RCIClient c = new RCIClient(host, 7777)) {
-            c.send(new PublishNewsCommand(
+            //all three are in flight together, the results arrive in order
+            CompletableFuture<Serializable> jobs = c.call(new PublishNewsCommand(
                     "jobs",
                     "System Programmer, knowledge in C++, Java and Python required. call 0x134693F"));
 
-            c.receive(); //ok
-
-            c.send(new PublishNewsCommand(
+            CompletableFuture<Serializable> first = c.call(new PublishNewsCommand(
                     "headlines",
                     "new SPL assignment is out soon!!"));
 
-            c.receive(); //ok
-
-            c.send(new PublishNewsCommand(
+            CompletableFuture<Serializable> second = c.call(new PublishNewsCommand(
                     "headlines",
                     "THE CAKE IS A LIE!"));
 
-            c.receive(); //ok
+            CompletableFuture.allOf(jobs, first, second).get(); //ok
         }
 
     }
@@ -47,8 +47,15 @@ public class NewsFeedClientMain {
 
     private static void runThirdClient(String host) throws Exception {
         try (RCIClient c = new RCIClient(host, 7777)) {
-            c.send(new FetchNewsCommand("headlines"));
-            System.out.println("third client received: " + c.receive());
+            //polls one item at a time, every poll only returns what is new since the previous one
+            long since = 0;
+            NewsPage page;
+            do {
+                c.send(new FetchNewsCommand("headlines", since, 1));
+                page = (NewsPage) c.receive();
+                since = page.lastSequence();
+                System.out.println("third client received: " + page);
+            } while (!page.items().isEmpty());
         }
     }
 }
@@ -0,0 +1,18 @@
+package bgu.spl.net.impl.newsfeed;
+
+import bgu.spl.net.impl.rci.SchemaRegistry;
+
+/**
+ * Registers the news feed commands with the binary RCI codec, both the server and its clients call it once
+ * before connecting.
+ */
+public final class NewsFeedSchemas {
+
+    private NewsFeedSchemas() {}
+
+    public static void register() {
+        SchemaRegistry.register(SchemaRegistry.FIRST_USER_TAG, PublishNewsCommand.class, PublishNewsCommand.SCHEMA);
+        SchemaRegistry.register(SchemaRegistry.FIRST_USER_TAG + 1, FetchNewsCommand.class, FetchNewsCommand.SCHEMA);
+        SchemaRegistry.register(SchemaRegistry.FIRST_USER_TAG + 2, NewsPage.class, NewsPage.SCHEMA);
+    }
+}
@@ -0,0 +1,61 @@
+package bgu.spl.net.impl.newsfeed;
+
+import bgu.spl.net.impl.rci.Schema;
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * The result of an incremental fetch: the items, the sequence number to pass as "since" on the next fetch and
+ * how many items were overwritten before the reader got to them.
+ */
+public class NewsPage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final Schema<NewsPage> SCHEMA = Schema.of(
+            (page, out) -> {
+                out.writeLong(page.lastSequence);
+                out.writeLong(page.missed);
+                out.writeInt(page.items.size());
+                for (String item : page.items) {
+                    out.writeString(item);
+                }
+            },
+            in -> {
+                long lastSequence = in.readLong();
+                long missed = in.readLong();
+                int size = in.readInt();
+                ArrayList<String> items = new ArrayList<>(Math.max(0, Math.min(size, 1024)));
+                for (int i = 0; i < size; i++) {
+                    items.add(in.readString());
+                }
+                return new NewsPage(items, lastSequence, missed);
+            });
+
+    private final ArrayList<String> items;
+    private final long lastSequence;
+    private final long missed;
+
+    public NewsPage(ArrayList<String> items, long lastSequence, long missed) {
+        this.items = items;
+        this.lastSequence = lastSequence;
+        this.missed = missed;
+    }
+
+    public ArrayList<String> items() {
+        return items;
+    }
+
+    public long lastSequence() {
+        return lastSequence;
+    }
+
+    public long missed() {
+        return missed;
+    }
+
+    @Override
+    public String toString() {
+        return items + (missed > 0 ? " (" + missed + " missed)" : "");
+    }
+}
@@ -1,9 +1,17 @@
 package bgu.spl.net.impl.newsfeed;
 
 import bgu.spl.net.impl.rci.Command;
+import bgu.spl.net.impl.rci.Schema;
 import java.io.Serializable;
 
 public class PublishNewsCommand implements Command<NewsFeed> {
+
+    static final Schema<PublishNewsCommand> SCHEMA = Schema.of(
+            (cmd, out) -> {
+                out.writeString(cmd.channel);
+                out.writeString(cmd.news);
+            },
+            in -> new PublishNewsCommand(in.readString(), in.readString()));
  
     private String channel;
     private String news;
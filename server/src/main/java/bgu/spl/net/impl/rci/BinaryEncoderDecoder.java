@@ -0,0 +1,101 @@
+package bgu.spl.net.impl.rci;
+
+import bgu.spl.net.api.MessageEncoderDecoder;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A compact alternative to {@link ObjectEncoderDecoder}: every message is a {@link TaggedMessage} written as
+ * [length][request id][type tag][fields] where the fields are written by the schema registered for the tag
+ * in {@link SchemaRegistry}, so no class descriptors go on the wire.
+ * Encoding reuses a buffer per thread and decoding reuses the connection's buffer.
+ */
+public class BinaryEncoderDecoder implements MessageEncoderDecoder<Serializable> {
+
+    private static final int MAX_MESSAGE_BYTES = 16 << 20;
+    private static final ThreadLocal<BinaryWriter> writers = ThreadLocal.withInitial(BinaryWriter::new);
+
+    private final byte[] lengthBytes = new byte[4];
+    private int lengthIndex = 0;
+    private byte[] messageBytes = new byte[256];
+    private int messageLength = -1;
+    private int messageIndex = 0;
+    private final BinaryReader reader = new BinaryReader(messageBytes, 0);
+
+    @Override
+    public Serializable decodeNextByte(byte nextByte) {
+        if (messageLength < 0) { //still reading the length
+            lengthBytes[lengthIndex++] = nextByte;
+            if (lengthIndex == lengthBytes.length) {
+                startMessage();
+            }
+            return null;
+        }
+
+        messageBytes[messageIndex++] = nextByte;
+        return messageIndex == messageLength ? finishMessage() : null;
+    }
+
+    @Override
+    public Serializable decodeNext(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (messageLength < 0) {
+                decodeNextByte(buffer.get()); //a length never completes a message
+                continue;
+            }
+            int n = Math.min(messageLength - messageIndex, buffer.remaining());
+            buffer.get(messageBytes, messageIndex, n);
+            messageIndex += n;
+            if (messageIndex == messageLength) {
+                return finishMessage();
+            }
+        }
+        return null;
+    }
+
+    private void startMessage() {
+        int length = ((lengthBytes[0] & 0xff) << 24) | ((lengthBytes[1] & 0xff) << 16)
+                | ((lengthBytes[2] & 0xff) << 8) | (lengthBytes[3] & 0xff);
+        lengthIndex = 0;
+        if (length < 5 || length > MAX_MESSAGE_BYTES) { //at least a request id and a type tag
+            throw new IllegalArgumentException("illegal message length " + length);
+        }
+        if (length > messageBytes.length) {
+            messageBytes = Arrays.copyOf(messageBytes, Math.max(length, messageBytes.length * 2));
+        }
+        messageLength = length;
+        messageIndex = 0;
+    }
+
+    private Serializable finishMessage() {
+        reader.reset(messageBytes, messageLength);
+        messageLength = -1;
+        int requestId = reader.readInt();
+        Object payload = reader.readValue();
+        if (payload != null && !(payload instanceof Serializable)) {
+            throw new IllegalArgumentException("cannot decode " + payload.getClass().getName());
+        }
+        return new TaggedMessage(requestId, (Serializable) payload);
+    }
+
+    /**
+     * Encodes a {@link TaggedMessage}, any other message is sent with request id 0
+     */
+    @Override
+    public byte[] encode(Serializable message) {
+        BinaryWriter out = writers.get();
+        out.reset();
+        out.writeInt(0); //placeholder for the length
+        if (message instanceof TaggedMessage) {
+            TaggedMessage tagged = (TaggedMessage) message;
+            out.writeInt(tagged.requestId());
+            out.writeValue(tagged.payload());
+        } else {
+            out.writeInt(0);
+            out.writeValue(message);
+        }
+        out.putInt(0, out.size() - 4);
+        return out.toByteArray();
+    }
+}
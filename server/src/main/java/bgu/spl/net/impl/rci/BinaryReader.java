@@ -0,0 +1,82 @@
+package bgu.spl.net.impl.rci;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Reads what a {@link BinaryWriter} wrote. Reading past the end throws an IllegalArgumentException.
+ */
+public final class BinaryReader {
+
+    private byte[] buf;
+    private int pos;
+    private int limit;
+    /*package*/ int depth; //of the list being read, see SchemaRegistry
+
+    public BinaryReader(byte[] buf, int length) {
+        reset(buf, length);
+    }
+
+    /*package*/ void reset(byte[] buf, int length) {
+        this.buf = buf;
+        this.pos = 0;
+        this.limit = length;
+        this.depth = 0;
+    }
+
+    public int readByte() {
+        require(1);
+        return buf[pos++];
+    }
+
+    public boolean readBoolean() {
+        return readByte() != 0;
+    }
+
+    public int readInt() {
+        require(4);
+        int value = ((buf[pos] & 0xff) << 24) | ((buf[pos + 1] & 0xff) << 16)
+                | ((buf[pos + 2] & 0xff) << 8) | (buf[pos + 3] & 0xff);
+        pos += 4;
+        return value;
+    }
+
+    public long readLong() {
+        return ((long) readInt() << 32) | (readInt() & 0xffffffffL);
+    }
+
+    public byte[] readBytes() {
+        int length = readInt();
+        if (length < 0) {
+            return null;
+        }
+        require(length);
+        byte[] bytes = Arrays.copyOfRange(buf, pos, pos + length);
+        pos += length;
+        return bytes;
+    }
+
+    public String readString() {
+        int length = readInt();
+        if (length < 0) {
+            return null;
+        }
+        require(length);
+        String value = new String(buf, pos, length, StandardCharsets.UTF_8);
+        pos += length;
+        return value;
+    }
+
+    /**
+     * Reads a value written by {@link BinaryWriter#writeValue}
+     */
+    public Object readValue() {
+        return SchemaRegistry.readValue(this);
+    }
+
+    private void require(int n) {
+        if (n < 0 || limit - pos < n) {
+            throw new IllegalArgumentException("message is shorter than its schema");
+        }
+    }
+}
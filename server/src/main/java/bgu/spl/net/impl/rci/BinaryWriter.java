@@ -0,0 +1,85 @@
+package bgu.spl.net.impl.rci;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A growable big endian byte buffer, reused between messages by the thread that owns it.
+ */
+public final class BinaryWriter {
+
+    private byte[] buf = new byte[256];
+    private int len = 0;
+
+    public void writeByte(int value) {
+        ensureCapacity(1);
+        buf[len++] = (byte) value;
+    }
+
+    public void writeBoolean(boolean value) {
+        writeByte(value ? 1 : 0);
+    }
+
+    public void writeInt(int value) {
+        ensureCapacity(4);
+        buf[len++] = (byte) (value >>> 24);
+        buf[len++] = (byte) (value >>> 16);
+        buf[len++] = (byte) (value >>> 8);
+        buf[len++] = (byte) value;
+    }
+
+    public void writeLong(long value) {
+        writeInt((int) (value >>> 32));
+        writeInt((int) value);
+    }
+
+    /**
+     * Writes the byte length (-1 for null) followed by the bytes
+     */
+    public void writeBytes(byte[] bytes) {
+        if (bytes == null) {
+            writeInt(-1);
+            return;
+        }
+        writeInt(bytes.length);
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buf, len, bytes.length);
+        len += bytes.length;
+    }
+
+    public void writeString(String value) {
+        writeBytes(value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Writes a value of any registered type, preceded by its type tag
+     */
+    public void writeValue(Object value) {
+        SchemaRegistry.writeValue(value, this);
+    }
+
+    /*package*/ void putInt(int index, int value) {
+        buf[index] = (byte) (value >>> 24);
+        buf[index + 1] = (byte) (value >>> 16);
+        buf[index + 2] = (byte) (value >>> 8);
+        buf[index + 3] = (byte) value;
+    }
+
+    public int size() {
+        return len;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buf, len);
+    }
+
+    public void reset() {
+        len = 0;
+    }
+
+    private void ensureCapacity(int more) {
+        if (len + more > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(len + more, buf.length * 2));
+        }
+    }
+}
@@ -1,32 +1,86 @@
 package bgu.spl.net.impl.rci;
 
+import bgu.spl.net.api.MessageEncoderDecoder;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.Serializable;
 import java.net.Socket;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
+/**
+ * A client of a {@link RemoteCommandInvocationProtocol} server.
+ * Either use {@link #send} and {@link #receive} for one round trip at a time, or {@link #call} to keep many
+ * commands in flight and get their results asynchronously; once call was used, receive is not available.
+ */
 public class RCIClient implements Closeable {
 
-    private final ObjectEncoderDecoder encdec;
+    private final MessageEncoderDecoder<Serializable> encdec;
     private final Socket sock;
     private final BufferedInputStream in;
     private final BufferedOutputStream out;
+    private final AtomicInteger nextRequestId = new AtomicInteger(1);
+    private final ConcurrentHashMap<Integer, CompletableFuture<Serializable>> inFlight = new ConcurrentHashMap<>();
+    private volatile Thread responseReader;
+    private volatile IOException readFailure;
 
     public RCIClient(String host, int port) throws IOException {
+        this(host, port, new BinaryEncoderDecoder());
+    }
+
+    /**
+     * @param encdec the codec the server uses, e.g. {@link ObjectEncoderDecoder} for plain java serialization
+     */
+    public RCIClient(String host, int port, MessageEncoderDecoder<Serializable> encdec) throws IOException {
         sock = new Socket(host, port);
-        encdec = new ObjectEncoderDecoder();
+        this.encdec = encdec;
         in = new BufferedInputStream(sock.getInputStream());
         out = new BufferedOutputStream(sock.getOutputStream());
     }
 
     public void send(Command<?> cmd) throws IOException {
-        out.write(encdec.encode(cmd));
-        out.flush();
+        write(encdec.encode(new TaggedMessage(0, cmd)));
     }
 
     public Serializable receive() throws IOException {
+        if (responseReader != null) {
+            throw new IllegalStateException("responses are delivered to the futures returned by call");
+        }
+        return untag(readMessage());
+    }
+
+    /**
+     * Sends the command without waiting for the results of the commands sent before it
+     * @return the result of the command, completed exceptionally if the connection fails first
+     */
+    public CompletableFuture<Serializable> call(Command<?> cmd) throws IOException {
+        startResponseReader();
+        int requestId = nextRequestId.getAndIncrement();
+        CompletableFuture<Serializable> result = new CompletableFuture<>();
+        inFlight.put(requestId, result);
+        try {
+            write(encdec.encode(new TaggedMessage(requestId, cmd)));
+        } catch (IOException ex) {
+            inFlight.remove(requestId);
+            throw ex;
+        }
+        if (readFailure != null) {
+            failInFlight(readFailure); //the reader may have stopped before the future was added
+        }
+        return result;
+    }
+
+    private void write(byte[] bytes) throws IOException {
+        synchronized (out) {
+            out.write(bytes);
+            out.flush();
+        }
+    }
+
+    private Serializable readMessage() throws IOException {
         int read;
         while ((read = in.read()) >= 0) {
             Serializable msg = encdec.decodeNextByte((byte) read);
@@ -38,6 +92,45 @@ public class RCIClient implements Closeable {
         throw new IOException("disconnected before complete reading message");
     }
 
+    private static Serializable untag(Serializable msg) {
+        return msg instanceof TaggedMessage ? ((TaggedMessage) msg).payload() : msg;
+    }
+
+    private synchronized void startResponseReader() {
+        if (responseReader != null) {
+            return;
+        }
+        responseReader = new Thread(() -> {
+            try {
+                while (true) {
+                    Serializable msg = readMessage();
+                    if (!(msg instanceof TaggedMessage)) {
+                        throw new IOException("the server does not tag its responses");
+                    }
+                    TaggedMessage response = (TaggedMessage) msg;
+                    CompletableFuture<Serializable> result = inFlight.remove(response.requestId());
+                    if (result != null) {
+                        result.complete(response.payload());
+                    }
+                }
+            } catch (IOException | RuntimeException ex) {
+                readFailure = ex instanceof IOException ? (IOException) ex : new IOException(ex);
+                failInFlight(readFailure);
+            }
+        }, "rci-responses");
+        responseReader.setDaemon(true);
+        responseReader.start();
+    }
+
+    private void failInFlight(IOException cause) {
+        for (Integer requestId : inFlight.keySet()) {
+            CompletableFuture<Serializable> result = inFlight.remove(requestId);
+            if (result != null) {
+                result.completeExceptionally(cause);
+            }
+        }
+    }
+
     @Override
     public void close() throws IOException {
         out.close();
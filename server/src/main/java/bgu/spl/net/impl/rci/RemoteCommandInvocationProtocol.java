@@ -13,7 +13,16 @@ public class RemoteCommandInvocationProtocol<T> implements MessagingProtocol<Ser
 
     @Override
     public Serializable process(Serializable msg) {
-        return ((Command) msg).execute(arg);
+        if (msg instanceof TaggedMessage) {
+            TaggedMessage request = (TaggedMessage) msg;
+            return new TaggedMessage(request.requestId(), execute(request.payload()));
+        }
+        return execute(msg);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Serializable execute(Serializable command) {
+        return ((Command<T>) command).execute(arg);
     }
 
     @Override
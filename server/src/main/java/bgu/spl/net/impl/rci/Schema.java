@@ -0,0 +1,29 @@
+package bgu.spl.net.impl.rci;
+
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Writes and reads the fields of one message type for the {@link BinaryEncoderDecoder}.
+ * A schema is registered under a numeric tag with {@link SchemaRegistry#register}.
+ */
+public interface Schema<T> {
+
+    void write(T value, BinaryWriter out);
+
+    T read(BinaryReader in);
+
+    static <T> Schema<T> of(BiConsumer<T, BinaryWriter> writer, Function<BinaryReader, T> reader) {
+        return new Schema<T>() {
+            @Override
+            public void write(T value, BinaryWriter out) {
+                writer.accept(value, out);
+            }
+
+            @Override
+            public T read(BinaryReader in) {
+                return reader.apply(in);
+            }
+        };
+    }
+}
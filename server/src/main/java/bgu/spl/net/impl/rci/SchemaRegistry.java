@@ -0,0 +1,110 @@
+package bgu.spl.net.impl.rci;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The type tags known to the {@link BinaryEncoderDecoder}.
+ * Tags below {@link #FIRST_USER_TAG} are taken by the built in types: null, String, Integer, Long, Boolean,
+ * byte[] and ArrayList (of registered types). Both ends of a connection must register the same tags, before
+ * the first message is encoded or decoded.
+ */
+public final class SchemaRegistry {
+
+    public static final int FIRST_USER_TAG = 16;
+    public static final int MAX_DEPTH = 16; //lists inside one another
+    private static final int NULL_TAG = 0;
+
+    private static final ConcurrentHashMap<Class<?>, Entry<?>> byType = new ConcurrentHashMap<>();
+    private static final Entry<?>[] byTag = new Entry<?>[256];
+
+    static {
+        define(1, String.class, Schema.of((value, out) -> out.writeString(value), BinaryReader::readString));
+        define(2, Integer.class, Schema.of((value, out) -> out.writeInt(value), BinaryReader::readInt));
+        define(3, Long.class, Schema.of((value, out) -> out.writeLong(value), BinaryReader::readLong));
+        define(4, Boolean.class, Schema.of((value, out) -> out.writeBoolean(value), BinaryReader::readBoolean));
+        define(5, byte[].class, Schema.of((value, out) -> out.writeBytes(value), BinaryReader::readBytes));
+        define(6, ArrayList.class, Schema.of(SchemaRegistry::writeList, SchemaRegistry::readList));
+    }
+
+    private SchemaRegistry() {}
+
+    /**
+     * @param tag a tag between {@link #FIRST_USER_TAG} and 255, unique among the registered types
+     */
+    public static <T> void register(int tag, Class<T> type, Schema<T> schema) {
+        if (tag < FIRST_USER_TAG || tag >= byTag.length) {
+            throw new IllegalArgumentException("tag " + tag + " is out of the user range");
+        }
+        define(tag, type, schema);
+    }
+
+    private static synchronized <T> void define(int tag, Class<T> type, Schema<T> schema) {
+        Entry<?> existing = byTag[tag];
+        if (existing != null && existing.type != type) {
+            throw new IllegalArgumentException("tag " + tag + " is already used by " + existing.type.getName());
+        }
+        Entry<T> entry = new Entry<>(tag, type, schema);
+        byTag[tag] = entry;
+        byType.put(type, entry);
+    }
+
+    @SuppressWarnings("unchecked")
+    /*package*/ static void writeValue(Object value, BinaryWriter out) {
+        if (value == null) {
+            out.writeByte(NULL_TAG);
+            return;
+        }
+        Entry<Object> entry = (Entry<Object>) byType.get(value.getClass());
+        if (entry == null) {
+            throw new IllegalArgumentException("no schema registered for " + value.getClass().getName());
+        }
+        out.writeByte(entry.tag);
+        entry.schema.write(value, out);
+    }
+
+    /*package*/ static Object readValue(BinaryReader in) {
+        int tag = in.readByte() & 0xff;
+        if (tag == NULL_TAG) {
+            return null;
+        }
+        Entry<?> entry = byTag[tag];
+        if (entry == null) {
+            throw new IllegalArgumentException("unknown type tag " + tag);
+        }
+        return entry.schema.read(in);
+    }
+
+    private static void writeList(ArrayList<?> list, BinaryWriter out) {
+        out.writeInt(list.size());
+        for (Object item : list) {
+            out.writeValue(item);
+        }
+    }
+
+    @SuppressWarnings("rawtypes")
+    private static ArrayList readList(BinaryReader in) {
+        if (++in.depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("lists may nest at most " + MAX_DEPTH + " levels deep");
+        }
+        int size = in.readInt();
+        ArrayList<Object> list = new ArrayList<>(Math.max(0, Math.min(size, 1024))); //the size is not trusted
+        for (int i = 0; i < size; i++) {
+            list.add(in.readValue());
+        }
+        in.depth--;
+        return list;
+    }
+
+    private static class Entry<T> {
+        final int tag;
+        final Class<T> type;
+        final Schema<T> schema;
+
+        Entry(int tag, Class<T> type, Schema<T> schema) {
+            this.tag = tag;
+            this.type = type;
+            this.schema = schema;
+        }
+    }
+}
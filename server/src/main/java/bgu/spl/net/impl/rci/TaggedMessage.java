@@ -0,0 +1,28 @@
+package bgu.spl.net.impl.rci;
+
+import java.io.Serializable;
+
+/**
+ * A command or a result tagged with the id of the request it belongs to, so a client can keep several
+ * commands in flight on one connection and match the results as they arrive.
+ */
+public final class TaggedMessage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int requestId;
+    private final Serializable payload;
+
+    public TaggedMessage(int requestId, Serializable payload) {
+        this.requestId = requestId;
+        this.payload = payload;
+    }
+
+    public int requestId() {
+        return requestId;
+    }
+
+    public Serializable payload() {
+        return payload;
+    }
+}
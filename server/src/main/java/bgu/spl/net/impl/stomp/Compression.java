@@ -0,0 +1,88 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * The "deflate" content encoding of MESSAGE bodies, zlib format.
+ * A client opts in with an "accept-encoding:deflate" header on CONNECT. A body at least as long as the
+ * threshold is compressed once per SEND and the compressed frame is shared by every subscriber that opted in;
+ * such frames carry "content-encoding:deflate" and a content-length of the compressed bytes.
+ */
+public final class Compression {
+
+    public static final String DEFLATE = "deflate";
+
+    private static volatile int threshold = 512;
+    private static volatile int level = Deflater.DEFAULT_COMPRESSION;
+
+    private static final ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(level));
+    private static final ThreadLocal<byte[]> scratch = ThreadLocal.withInitial(() -> new byte[1 << 12]);
+
+    private static final LongAdder compressed = new LongAdder();
+    private static final LongAdder skipped = new LongAdder();
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder nanos = new LongAdder();
+
+    private Compression() {}
+
+    /**
+     * @param minBodyBytes bodies shorter than this are sent as is
+     * @param deflateLevel 0-9, or -1 for the default
+     */
+    public static void configure(int minBodyBytes, int deflateLevel) {
+        threshold = minBodyBytes;
+        level = deflateLevel;
+    }
+
+    /**
+     * @return the compressed body, or null if it is below the threshold or does not get smaller
+     */
+    public static byte[] compress(String body) {
+        byte[] raw = body.getBytes(StandardCharsets.ISO_8859_1); //the bytes of the body, see MessageEncoderDecoderImpl
+        if (raw.length < threshold) {
+            skipped.increment();
+            return null;
+        }
+
+        long start = System.nanoTime();
+        Deflater deflater = deflaters.get();
+        deflater.setLevel(level);
+        deflater.setInput(raw);
+        deflater.finish();
+        byte[] out = scratch.get();
+        int len = 0;
+        while (!deflater.finished()) {
+            if (len == out.length) {
+                out = Arrays.copyOf(out, out.length * 2);
+                scratch.set(out);
+            }
+            len += deflater.deflate(out, len, out.length - len);
+        }
+        deflater.reset();
+        nanos.add(System.nanoTime() - start);
+
+        if (len >= raw.length) {
+            skipped.increment();
+            return null;
+        }
+        compressed.increment();
+        bytesIn.add(raw.length);
+        bytesOut.add(len);
+        return Arrays.copyOf(out, len);
+    }
+
+    public static void report(PrintStream out) {
+        long in = bytesIn.sum();
+        long outBytes = bytesOut.sum();
+        long count = compressed.sum();
+        out.printf("  compressed bodies  %d (%d skipped)%n", count, skipped.sum());
+        out.printf("  bytes in / out     %d / %d (ratio %.2f)%n", in, outBytes, outBytes == 0 ? 0 : (double) in / outBytes);
+        out.printf("  compression time   %.3f ms total, %.1f us per body%n",
+                nanos.sum() / 1e6, count == 0 ? 0 : nanos.sum() / 1e3 / count);
+    }
+}
@@ -0,0 +1,410 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.MessageAttributes;
+import bgu.spl.net.srv.ServerConfig;
+import bgu.spl.net.srv.ServerStats;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+
+/**
+ * Subscriptions that outlive the connection that made them, named by username and subscription id
+ * (a SUBSCRIBE with the header durable:true).
+ * While its user is offline a durable subscription keeps the messages of its destination that its selector
+ * accepts: the first ones in memory, the following ones appended to a spill file, and past a cap new messages
+ * are dropped. When the user subscribes again with the same id the backlog is sent at a limited rate, and
+ * never past half of the connection's queue limit so the replay itself is not dropped by the DROP policy; the
+ * subscription joins the live fan-out only once the backlog is empty, so the messages keep their order.
+ * Delivery is at least once: a message published while the backlog runs out may arrive twice.
+ * Only messages that reach this server are kept, a cluster does not forward a destination that has no live
+ * subscriber here.
+ */
+public final class DurableSubscriptions {
+
+    private static final long TICK_MILLIS = 10;
+    private static final String SPILL_SUFFIX = ".spill";
+
+    private static volatile DurableSubscriptions instance;
+
+    private final Connections<String> connections;
+    private final int memoryLimit;
+    private final int maxMessages;
+    private final int drainPerTick;
+    private final int drainQueueLimit; //queued messages past which a connection gets no more of its backlog
+    private final File dir;
+    private final ConcurrentHashMap<String, Durable> byKey = new ConcurrentHashMap<>();
+    // destination -> the subscriptions of the destination that are not live and collect its messages
+    private final ConcurrentHashMap<String, Set<Durable>> collecting = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, Set<Durable>> byConnection = new ConcurrentHashMap<>();
+    private final Set<Durable> draining = ConcurrentHashMap.newKeySet();
+    private final ScheduledExecutorService drainer = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "durable-drain");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final AtomicLong nextFile = new AtomicLong();
+    private final LongAdder collected = new LongAdder();
+    private final LongAdder spilled = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+
+    private DurableSubscriptions(ServerConfig config, Connections<String> connections) {
+        this.connections = connections;
+        this.memoryLimit = Math.max(1, config.getInt("durable.memory"));
+        this.maxMessages = Math.max(memoryLimit, config.getInt("durable.max"));
+        this.drainPerTick = (int) Math.max(1, config.getLong("durable.drainRate") * TICK_MILLIS / 1000);
+        this.drainQueueLimit = Math.max(1, config.getInt("queue.limit") / 2);
+        this.dir = new File(config.getString("durable.dir"));
+    }
+
+    /**
+     * @return the durable subscriptions of this server, or null if it was not started
+     */
+    public static DurableSubscriptions getInstance() {
+        return instance;
+    }
+
+    /**
+     * Starts keeping durable subscriptions as described by the durable.* settings; the spill files of a
+     * previous run are deleted since the subscriptions themselves only live in memory
+     */
+    public static DurableSubscriptions start(ServerConfig config, Connections<String> connections) {
+        DurableSubscriptions durables = new DurableSubscriptions(config, connections);
+        File[] stale = durables.dir.listFiles((d, name) -> name.endsWith(SPILL_SUFFIX));
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+        connections.addDisconnectListener(durables::detach);
+        durables.drainer.scheduleWithFixedDelay(durables::drainTick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        ServerStats.register("durable", durables::report);
+        instance = durables;
+        return durables;
+    }
+
+    /**
+     * Attaches the connection to the user's durable subscription, creating it if there is none. The connection
+     * is subscribed to the destination right away if nothing was kept for it, otherwise once its backlog was sent.
+     * @param filter replaces the one the subscription had, null to keep every message
+     * @throws IllegalArgumentException if the user's subscription with that id is for another destination
+     */
+    public void subscribe(String username, String subscriptionId, String destination,
+            Predicate<MessageAttributes> filter, int connectionId) {
+        Durable durable = byKey.computeIfAbsent(key(username, subscriptionId), k -> {
+            Durable created = new Durable(username, subscriptionId, destination);
+            collecting.computeIfAbsent(destination, d -> ConcurrentHashMap.newKeySet()).add(created);
+            return created;
+        });
+        if (!durable.destination.equals(destination)) {
+            throw new IllegalArgumentException("Durable subscription " + subscriptionId + " is for "
+                    + durable.destination);
+        }
+        byConnection.computeIfAbsent(connectionId, k -> ConcurrentHashMap.newKeySet()).add(durable);
+        if (!durable.attach(connectionId, filter)) {
+            draining.add(durable);
+        }
+    }
+
+    /**
+     * Ends the user's durable subscription and discards what it kept
+     * @return false if the user has no durable subscription with that id
+     */
+    public boolean unsubscribe(String username, String subscriptionId) {
+        Durable durable = byKey.remove(key(username, subscriptionId));
+        if (durable == null) {
+            return false;
+        }
+        int connectionId = durable.remove();
+        draining.remove(durable);
+        Set<Durable> destinationSubscriptions = collecting.get(durable.destination);
+        if (destinationSubscriptions != null) {
+            destinationSubscriptions.remove(durable);
+        }
+        Set<Durable> connectionSubscriptions = byConnection.get(connectionId);
+        if (connectionSubscriptions != null) {
+            connectionSubscriptions.remove(durable);
+        }
+        return true;
+    }
+
+    /**
+     * Keeps a message for the subscriptions of the destination that are not live. It must be called before
+     * the message is broadcast, so that a subscription going live in between cannot miss it.
+     */
+    public void offer(String destination, MessageAttributes attributes, String body) {
+        Set<Durable> subscriptions = collecting.get(destination);
+        if (subscriptions == null) {
+            return;
+        }
+        for (Durable durable : subscriptions) {
+            durable.offer(attributes, body);
+        }
+    }
+
+    private void detach(int connectionId) {
+        Set<Durable> subscriptions = byConnection.remove(connectionId);
+        if (subscriptions == null) {
+            return;
+        }
+        for (Durable durable : subscriptions) {
+            if (durable.detach(connectionId)) {
+                draining.remove(durable);
+                collecting.computeIfAbsent(durable.destination, d -> ConcurrentHashMap.newKeySet()).add(durable);
+            }
+        }
+    }
+
+    private void drainTick() {
+        try {
+            for (Durable durable : draining) {
+                if (durable.drain(drainPerTick)) {
+                    draining.remove(durable);
+                }
+            }
+        } catch (RuntimeException ex) {
+            ex.printStackTrace(); //an exception would cancel the periodic task
+        }
+    }
+
+    private static String key(String username, String subscriptionId) {
+        return username + '\u0000' + subscriptionId;
+    }
+
+    private void report(PrintStream out) {
+        int live = 0;
+        int resuming = 0;
+        int offline = 0;
+        long backlog = 0;
+        for (Durable durable : byKey.values()) {
+            synchronized (durable) {
+                if (durable.live) {
+                    live++;
+                } else if (durable.connectionId >= 0) {
+                    resuming++;
+                } else {
+                    offline++;
+                }
+                backlog += durable.size();
+            }
+        }
+        out.printf("  subscriptions      %d live, %d resuming, %d offline%n", live, resuming, offline);
+        out.printf("  backlog            %d messages%n", backlog);
+        out.printf("  kept / replayed    %d / %d%n", collected.sum(), replayed.sum());
+        out.printf("  spilled            %d%n", spilled.sum());
+        out.printf("  overflowed         %d%n", overflowed.sum());
+    }
+
+    /**
+     * One durable subscription. It is live when its connection is subscribed to the destination; otherwise it
+     * keeps messages, oldest first in memory and newer ones in the spill file while there is one.
+     */
+    private final class Durable {
+        final String username;
+        final String id;
+        final String destination;
+        Predicate<MessageAttributes> filter;
+        int connectionId = -1;
+        boolean live = false;
+        boolean removed = false;
+        final ArrayDeque<String> memory = new ArrayDeque<>();
+        File spillFile;
+        DataOutputStream spillOut;
+        DataInputStream spillIn;
+        long inSpill = 0; //messages written to the spill file and not read back yet
+
+        Durable(String username, String id, String destination) {
+            this.username = username;
+            this.id = id;
+            this.destination = destination;
+        }
+
+        long size() {
+            return memory.size() + inSpill;
+        }
+
+        /**
+         * @return true if the subscription went live, false if its backlog must be sent first
+         */
+        synchronized boolean attach(int connectionId, Predicate<MessageAttributes> filter) {
+            this.connectionId = connectionId;
+            this.filter = filter;
+            return size() == 0 && goLive();
+        }
+
+        private boolean goLive() {
+            live = true;
+            Set<Durable> subscriptions = collecting.get(destination);
+            if (subscriptions != null) {
+                subscriptions.remove(this);
+            }
+            connections.subscribe(destination, connectionId, id, filter);
+            return true;
+        }
+
+        /**
+         * @return false if the subscription is attached to another connection by now
+         */
+        synchronized boolean detach(int connectionId) {
+            if (this.connectionId != connectionId || removed) {
+                return false;
+            }
+            this.connectionId = -1;
+            live = false;
+            return true;
+        }
+
+        /**
+         * @return the connection the subscription was attached to
+         */
+        synchronized int remove() {
+            removed = true;
+            live = false;
+            memory.clear();
+            closeSpill();
+            return connectionId;
+        }
+
+        synchronized void offer(MessageAttributes attributes, String body) {
+            if (live || removed || (filter != null && !filter.test(attributes))) {
+                return;
+            }
+            if (size() >= maxMessages) {
+                overflowed.increment();
+                return;
+            }
+            if (inSpill == 0 && memory.size() < memoryLimit) {
+                memory.add(body);
+            } else if (!spill(body)) {
+                overflowed.increment();
+                return;
+            }
+            collected.increment();
+        }
+
+        /**
+         * Sends up to budget messages of the backlog and goes live once it is empty
+         * @return true if the subscription no longer drains: it went live or lost its connection
+         */
+        synchronized boolean drain(int budget) {
+            if (removed || live || connectionId < 0) {
+                return true;
+            }
+            int queued = connections.queuedMessages(connectionId);
+            if (queued < 0) {
+                return true; //closed, detach will keep collecting
+            }
+            budget = Math.min(budget, drainQueueLimit - queued);
+            for (int i = 0; i < budget; i++) {
+                String body = poll();
+                if (body == null) {
+                    return goLive();
+                }
+                byte[] frame = StompMessagingProtocolImpl.encodeMessage(destination, body, id);
+                if (!connections.sendEncoded(connectionId, frame)) {
+                    memory.addFirst(body);
+                    return true;
+                }
+                replayed.increment();
+            }
+            return false;
+        }
+
+        private String poll() {
+            if (memory.isEmpty() && inSpill > 0) {
+                unspill();
+            }
+            return memory.poll();
+        }
+
+        private boolean spill(String body) {
+            try {
+                if (spillOut == null) {
+                    if (!dir.isDirectory() && !dir.mkdirs()) {
+                        throw new IOException("cannot create " + dir);
+                    }
+                    spillFile = new File(dir, nextFile.incrementAndGet() + "-" + fileName(username) + "-"
+                            + fileName(id) + SPILL_SUFFIX);
+                    spillOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(spillFile)));
+                }
+                byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                spillOut.writeInt(bytes.length);
+                spillOut.write(bytes);
+                inSpill++;
+                spilled.increment();
+                return true;
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                return false;
+            }
+        }
+
+        /**
+         * Moves the oldest messages of the spill file to memory, the file is deleted once it was read entirely
+         */
+        private void unspill() {
+            try {
+                spillOut.flush();
+                if (spillIn == null) {
+                    spillIn = new DataInputStream(new BufferedInputStream(new FileInputStream(spillFile)));
+                }
+                long count = Math.min(inSpill, memoryLimit);
+                for (long i = 0; i < count; i++) {
+                    byte[] bytes = new byte[spillIn.readInt()];
+                    spillIn.readFully(bytes);
+                    memory.add(new String(bytes, StandardCharsets.UTF_8));
+                    inSpill--;
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                overflowed.add(inSpill);
+                inSpill = 0;
+            }
+            if (inSpill == 0) {
+                closeSpill();
+            }
+        }
+
+        private void closeSpill() {
+            inSpill = 0;
+            try {
+                if (spillIn != null) {
+                    spillIn.close();
+                }
+                if (spillOut != null) {
+                    spillOut.close();
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            if (spillFile != null) {
+                spillFile.delete();
+            }
+            spillIn = null;
+            spillOut = null;
+            spillFile = null;
+        }
+    }
+
+    private static String fileName(String s) {
+        return s.replaceAll("[^A-Za-z0-9_.-]", "_");
+    }
+}
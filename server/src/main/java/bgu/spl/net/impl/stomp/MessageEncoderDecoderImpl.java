@@ -1,32 +1,202 @@
 package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 
+/**
+ * Decodes STOMP frames.
+ * A frame whose headers carry a content-length is read by length, its body is copied in bulk and may contain
+ * NUL bytes; any other frame ends at the first NUL.
+ * The command and headers are UTF-8 text, a body is opaque bytes: it is decoded to chars with ISO-8859-1, one
+ * char per byte, and encoded back the same way, so a binary body comes out of the server exactly as it came in.
+ * A body made of text must be converted with {@link #textBody} first.
+ */
 public class MessageEncoderDecoderImpl implements MessageEncoderDecoder<String> {
 
-    private List<Byte> bytes = new ArrayList<>();
+    private static final int MAX_CONTENT_LENGTH = 16 << 20;
+    private static final int RETAINED_CAPACITY = 64 << 10;
+    private static final byte[] CONTENT_LENGTH = "content-length:".getBytes(StandardCharsets.UTF_8);
+
+    private enum State { HEADERS, BODY_BY_LENGTH, TERMINATOR, BODY_UNTIL_NUL }
+
+    private byte[] bytes = new byte[1 << 10];
+    private int len = 0;
+    private int lineStart = 0;
+    private State state = State.HEADERS;
+    private int contentLength = -1;
+    private int bodyRemaining = 0;
+    private int bodyStart = -1;
+
+    /**
+     * @return the body a frame should carry for the text, in the one char per byte form of the bodies
+     */
+    public static String textBody(String text) {
+        return new String(text.getBytes(StandardCharsets.UTF_8), StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * @return the text of a body that holds UTF-8 text
+     */
+    public static String bodyText(String body) {
+        return new String(body.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+    }
 
     @Override
     public byte[] encode(String message) {
-        return (message + '\u0000').getBytes(StandardCharsets.UTF_8);
+        int headersEnd = message.indexOf("\n\n");
+        if (headersEnd < 0) {
+            return (message + '\u0000').getBytes(StandardCharsets.UTF_8);
+        }
+        byte[] head = message.substring(0, headersEnd + 2).getBytes(StandardCharsets.UTF_8);
+        byte[] body = message.substring(headersEnd + 2).getBytes(StandardCharsets.ISO_8859_1);
+        byte[] frame = Arrays.copyOf(head, head.length + body.length + 1);
+        System.arraycopy(body, 0, frame, head.length, body.length);
+        return frame; //ends with the NUL terminator
     }
 
     @Override
     public String decodeNextByte(byte nextByte) {
-        if (nextByte == '\0') {
-            byte[] resultBytes = new byte[bytes.size()];
-            for (int i = 0; i < bytes.size(); i++) {
-                resultBytes[i] = bytes.get(i);
+        switch (state) {
+            case HEADERS:
+                return headerByte(nextByte);
+            case BODY_BY_LENGTH:
+                push(nextByte);
+                if (--bodyRemaining == 0) {
+                    state = State.TERMINATOR;
+                }
+                return null;
+            case TERMINATOR:
+                if (nextByte == '\0') {
+                    return popFrame();
+                }
+                state = State.BODY_UNTIL_NUL; //the length was wrong, fall back to the terminator
+                push(nextByte);
+                return null;
+            default:
+                if (nextByte == '\0') {
+                    return popFrame();
+                }
+                push(nextByte);
+                return null;
+        }
+    }
+
+    @Override
+    public String decodeNext(ByteBuffer buffer) {
+        while (buffer.hasRemaining()) {
+            if (state == State.BODY_BY_LENGTH) {
+                int n = Math.min(bodyRemaining, buffer.remaining());
+                buffer.get(bytes, len, n); //room was made when the headers ended
+                len += n;
+                bodyRemaining -= n;
+                if (bodyRemaining == 0) {
+                    state = State.TERMINATOR;
+                }
+            } else {
+                String frame = decodeNextByte(buffer.get());
+                if (frame != null) {
+                    return frame;
+                }
             }
-            String result = new String(resultBytes, StandardCharsets.UTF_8);
-            bytes.clear();
-            return result;
         }
+        return null;
+    }
 
-        bytes.add(nextByte);
+    private String headerByte(byte nextByte) {
+        if (nextByte == '\0') {
+            return len == 0 ? null : popFrame();
+        }
+        if (len == 0 && (nextByte == '\n' || nextByte == '\r')) {
+            return null; //heart-beat between frames
+        }
+        push(nextByte);
+        if (nextByte != '\n') {
+            return null;
+        }
+
+        int lineEnd = len - 1;
+        if (lineEnd > lineStart && bytes[lineEnd - 1] == '\r') {
+            lineEnd--;
+        }
+        if (lineEnd == lineStart) {
+            endHeaders();
+        } else if (contentLength < 0 && startsWith(lineStart, lineEnd, CONTENT_LENGTH)) {
+            contentLength = parseLength(lineStart + CONTENT_LENGTH.length, lineEnd);
+        }
+        lineStart = len;
         return null;
     }
+
+    private void endHeaders() {
+        bodyStart = len;
+        if (contentLength > 0) {
+            bodyRemaining = contentLength;
+            ensureCapacity(len + contentLength);
+            state = State.BODY_BY_LENGTH;
+        } else if (contentLength == 0) {
+            state = State.TERMINATOR;
+        } else {
+            state = State.BODY_UNTIL_NUL;
+        }
+    }
+
+    private boolean startsWith(int from, int to, byte[] prefix) {
+        if (to - from < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (bytes[from + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the length, or -1 if it is not a valid length
+     */
+    private int parseLength(int from, int to) {
+        if (from == to) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = from; i < to; i++) {
+            byte b = bytes[i];
+            if (b < '0' || b > '9' || (value = value * 10 + (b - '0')) > MAX_CONTENT_LENGTH) {
+                return -1;
+            }
+        }
+        return (int) value;
+    }
+
+    private void push(byte nextByte) {
+        if (len == bytes.length) {
+            ensureCapacity(len + 1);
+        }
+        bytes[len++] = nextByte;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+        }
+    }
+
+    private String popFrame() {
+        String result = bodyStart < 0
+                ? new String(bytes, 0, len, StandardCharsets.UTF_8)
+                : new String(bytes, 0, bodyStart, StandardCharsets.UTF_8)
+                        + new String(bytes, bodyStart, len - bodyStart, StandardCharsets.ISO_8859_1);
+        if (bytes.length > RETAINED_CAPACITY) {
+            bytes = new byte[1 << 10]; //do not hold on to the buffer of a big frame
+        }
+        len = 0;
+        lineStart = 0;
+        contentLength = -1;
+        bodyStart = -1;
+        state = State.HEADERS;
+        return result;
+    }
 }
@@ -0,0 +1,317 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.MessageAttributes;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Compiles the "selector" header of a SUBSCRIBE into a predicate over the attributes of a message.
+ * A selector compares fields with literals and combines the comparisons with and, or, not and parentheses:
+ * <pre>
+ *   body."event name" = 'goal' and (destination = '/germany_japan' or body."team b" ~ 'japan')
+ * </pre>
+ * A field is the name of a header of the SEND, or body.name for a "name: value" line of its body; names with
+ * spaces are written in double quotes. The operators are = and != (exact), ~ (contains) and &lt; &lt;= &gt; &gt;=
+ * (numeric). A comparison with a field the message does not have is false.
+ * The header comes from the client and the predicate runs on the publisher's thread, so a selector is limited
+ * in length, comparisons and nesting, and and/or chains are evaluated in a loop rather than by recursion.
+ */
+public final class MessageSelector {
+
+    public static final String BODY_PREFIX = "body.";
+    public static final int MAX_LENGTH = 4096;
+    public static final int MAX_COMPARISONS = 64;
+    public static final int MAX_DEPTH = 16; //parentheses and nots inside one another
+
+    private final List<String> tokens;
+    private int pos = 0;
+    private int comparisons = 0;
+    private int depth = 0;
+
+    private MessageSelector(List<String> tokens) {
+        this.tokens = tokens;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the selector is not well formed
+     */
+    public static Predicate<MessageAttributes> compile(String selector) {
+        if (selector.length() > MAX_LENGTH) {
+            throw new IllegalArgumentException("a selector may have at most " + MAX_LENGTH + " characters");
+        }
+        MessageSelector parser = new MessageSelector(tokenize(selector));
+        Predicate<MessageAttributes> predicate = parser.or();
+        if (parser.pos < parser.tokens.size()) {
+            throw new IllegalArgumentException("unexpected " + parser.tokens.get(parser.pos));
+        }
+        return predicate;
+    }
+
+    private Predicate<MessageAttributes> or() {
+        List<Predicate<MessageAttributes>> terms = new ArrayList<>();
+        terms.add(and());
+        while (acceptKeyword("or")) {
+            terms.add(and());
+        }
+        return terms.size() == 1 ? terms.get(0) : new AnyOf(terms);
+    }
+
+    private Predicate<MessageAttributes> and() {
+        List<Predicate<MessageAttributes>> terms = new ArrayList<>();
+        terms.add(unary());
+        while (acceptKeyword("and")) {
+            terms.add(unary());
+        }
+        return terms.size() == 1 ? terms.get(0) : new AllOf(terms);
+    }
+
+    private Predicate<MessageAttributes> unary() {
+        if (acceptKeyword("not")) {
+            enter();
+            Predicate<MessageAttributes> inner = unary();
+            depth--;
+            return attributes -> !inner.test(attributes);
+        }
+        if (accept("(")) {
+            enter();
+            Predicate<MessageAttributes> inner = or();
+            expect(")");
+            depth--;
+            return inner;
+        }
+        return comparison();
+    }
+
+    private void enter() {
+        if (++depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("a selector may nest at most " + MAX_DEPTH + " levels deep");
+        }
+    }
+
+    private Predicate<MessageAttributes> comparison() {
+        if (++comparisons > MAX_COMPARISONS) {
+            throw new IllegalArgumentException("a selector may have at most " + MAX_COMPARISONS + " comparisons");
+        }
+        String field = field();
+        String op = next("an operator");
+        String literal = literal();
+        switch (op) {
+            case "=":
+                return attributes -> literal.equals(attributes.get(field));
+            case "!=":
+                return attributes -> {
+                    String value = attributes.get(field);
+                    return value != null && !literal.equals(value);
+                };
+            case "~":
+                return attributes -> {
+                    String value = attributes.get(field);
+                    return value != null && value.contains(literal);
+                };
+            case "<":
+            case "<=":
+            case ">":
+            case ">=":
+                return numeric(field, op, parseNumber(literal));
+            default:
+                throw new IllegalArgumentException("unknown operator " + op);
+        }
+    }
+
+    private static Predicate<MessageAttributes> numeric(String field, String op, double bound) {
+        return attributes -> {
+            String value = attributes.get(field);
+            if (value == null) {
+                return false;
+            }
+            double number;
+            try {
+                number = Double.parseDouble(value.trim());
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+            switch (op) {
+                case "<":
+                    return number < bound;
+                case "<=":
+                    return number <= bound;
+                case ">":
+                    return number > bound;
+                default:
+                    return number >= bound;
+            }
+        };
+    }
+
+    private String field() {
+        String token = next("a field");
+        if (token.equals(BODY_PREFIX)) {
+            String name = next("a body field");
+            if (!name.startsWith("\"")) {
+                throw new IllegalArgumentException("expected a quoted name after body.");
+            }
+            return BODY_PREFIX + unquote(name);
+        }
+        if (token.startsWith("\"")) {
+            return unquote(token);
+        }
+        if (!isName(token)) {
+            throw new IllegalArgumentException("expected a field, found " + token);
+        }
+        return token;
+    }
+
+    private String literal() {
+        String token = next("a value");
+        if (token.startsWith("'")) {
+            return unquote(token);
+        }
+        parseNumber(token);
+        return token;
+    }
+
+    private static double parseNumber(String token) {
+        try {
+            return Double.parseDouble(token);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("expected a quoted string or a number, found " + token);
+        }
+    }
+
+    private boolean acceptKeyword(String keyword) {
+        if (pos < tokens.size() && tokens.get(pos).equalsIgnoreCase(keyword)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private boolean accept(String token) {
+        if (pos < tokens.size() && tokens.get(pos).equals(token)) {
+            pos++;
+            return true;
+        }
+        return false;
+    }
+
+    private void expect(String token) {
+        if (!accept(token)) {
+            throw new IllegalArgumentException("expected " + token);
+        }
+    }
+
+    private String next(String what) {
+        if (pos == tokens.size()) {
+            throw new IllegalArgumentException("expected " + what + " at the end");
+        }
+        return tokens.get(pos++);
+    }
+
+    private static boolean isName(String token) {
+        char c = token.charAt(0);
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.';
+    }
+
+    private static String unquote(String token) {
+        char quote = token.charAt(0);
+        String inner = token.substring(1, token.length() - 1);
+        return inner.replace(String.valueOf(quote) + quote, String.valueOf(quote));
+    }
+
+    /**
+     * Splits into names, quoted strings (a doubled quote stands for itself), operators and parentheses;
+     * "body." is its own token when a quoted name follows it
+     */
+    private static List<String> tokenize(String selector) {
+        List<String> tokens = new ArrayList<>();
+        int i = 0;
+        int n = selector.length();
+        while (i < n) {
+            char c = selector.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '\'' || c == '"') {
+                int end = i + 1;
+                while (true) {
+                    if (end >= n) {
+                        throw new IllegalArgumentException("unterminated quote");
+                    }
+                    if (selector.charAt(end) == c) {
+                        if (end + 1 < n && selector.charAt(end + 1) == c) {
+                            end += 2;
+                            continue;
+                        }
+                        break;
+                    }
+                    end++;
+                }
+                tokens.add(selector.substring(i, end + 1));
+                i = end + 1;
+            } else if (c == '(' || c == ')' || c == '=' || c == '~') {
+                tokens.add(String.valueOf(c));
+                i++;
+            } else if (c == '!' || c == '<' || c == '>') {
+                boolean twoChars = i + 1 < n && selector.charAt(i + 1) == '=';
+                String op = selector.substring(i, i + (twoChars ? 2 : 1));
+                if (op.equals("!")) {
+                    throw new IllegalArgumentException("unknown operator !");
+                }
+                tokens.add(op);
+                i += op.length();
+            } else {
+                int end = i;
+                while (end < n && isNameChar(selector.charAt(end))) {
+                    end++;
+                }
+                if (end == i) {
+                    throw new IllegalArgumentException("unexpected " + c);
+                }
+                tokens.add(selector.substring(i, end));
+                i = end;
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == '/';
+    }
+
+    private static final class AllOf implements Predicate<MessageAttributes> {
+        private final List<Predicate<MessageAttributes>> terms;
+
+        AllOf(List<Predicate<MessageAttributes>> terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        public boolean test(MessageAttributes attributes) {
+            for (int i = 0; i < terms.size(); i++) {
+                if (!terms.get(i).test(attributes)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class AnyOf implements Predicate<MessageAttributes> {
+        private final List<Predicate<MessageAttributes>> terms;
+
+        AnyOf(List<Predicate<MessageAttributes>> terms) {
+            this.terms = terms;
+        }
+
+        @Override
+        public boolean test(MessageAttributes attributes) {
+            for (int i = 0; i < terms.size(); i++) {
+                if (terms.get(i).test(attributes)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package bgu.spl.net.impl.stomp;
+
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token buckets on SEND frames, one per user and one per destination.
+ * A bucket is a single AtomicLong holding its theoretical arrival time (the generic cell rate algorithm): a
+ * frame conforms if it does not arrive more than the burst allowance ahead of that time, and each conforming
+ * frame pushes the time one emission interval further, so admitting a frame is one compare-and-set.
+ * What happens to a frame that does not conform depends on the policy of its bucket:
+ * DELAY delivers it and stops reading from the connection until it would have conformed, REJECT answers with
+ * an ERROR (which closes the connection) and DROP discards it without telling the sender.
+ * A bucket whose arrival time has passed is the same as a new one, so such buckets are swept away every few
+ * seconds and the map only holds the users and destinations that are currently being limited.
+ */
+public final class RateLimiter {
+
+    public enum Policy { DELAY, REJECT, DROP }
+
+    /** returned by {@link #admit} for a frame that must be answered with an ERROR */
+    public static final long REJECTED = -1;
+    /** returned by {@link #admit} for a frame that must be discarded */
+    public static final long DROPPED = -2;
+
+    private static final Limit users = new Limit("user");
+    private static final Limit destinations = new Limit("destination");
+
+    private RateLimiter() {}
+
+    /**
+     * @param rate frames per second per bucket, 0 disables the limit
+     * @param burst frames a bucket lets through at once after being idle
+     */
+    public static void configureUsers(double rate, int burst, Policy policy) {
+        users.configure(rate, burst, policy);
+    }
+
+    public static void configureDestinations(double rate, int burst, Policy policy) {
+        destinations.configure(rate, burst, policy);
+    }
+
+    /**
+     * Takes a token from the sender's bucket and from the destination's bucket, or from neither if either one
+     * rejects or drops the frame
+     * @return {@link #REJECTED}, {@link #DROPPED}, or how many nanoseconds the connection should not be read
+     * (0 when the frame conforms)
+     */
+    public static long admit(String username, String destination) {
+        long now = System.nanoTime();
+        long destinationCheck = destinations.check(destination, now);
+        if (destinationCheck < 0) {
+            return destinationCheck;
+        }
+        long userWait = users.admit(username, now);
+        if (userWait < 0) {
+            return userWait;
+        }
+        long destinationWait = destinations.admit(destination, now);
+        if (destinationWait < 0) { //another sender took the destination's last token since the check
+            users.refund(username);
+            return destinationWait;
+        }
+        return Math.max(userWait, destinationWait);
+    }
+
+    public static void report(PrintStream out) {
+        users.report(out);
+        destinations.report(out);
+    }
+
+    private static final class Limit {
+
+        private static final long SWEEP_INTERVAL_NANOS = 10_000_000_000L;
+
+        private final String name;
+        private final ConcurrentHashMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+        private final LongAdder delayed = new LongAdder();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder dropped = new LongAdder();
+        private volatile long interval = 0; //nanoseconds per frame, 0 when unlimited
+        private volatile long tolerance = 0; //how far ahead of its arrival time a frame may come
+        private volatile Policy policy = Policy.DELAY;
+        private final AtomicLong nextSweep = new AtomicLong(System.nanoTime() + SWEEP_INTERVAL_NANOS);
+
+        Limit(String name) {
+            this.name = name;
+        }
+
+        void configure(double rate, int burst, Policy policy) {
+            long emission = rate <= 0 ? 0 : Math.max(1, (long) (1e9 / rate));
+            this.tolerance = emission * (Math.max(1, burst) - 1);
+            this.policy = policy;
+            this.interval = emission;
+        }
+
+        /**
+         * Tells whether a frame would be rejected or dropped, without taking a token
+         * @return REJECTED, DROPPED or 0
+         */
+        long check(String key, long now) {
+            Policy current = policy;
+            if (interval == 0 || current == Policy.DELAY) {
+                return 0;
+            }
+            AtomicLong bucket = buckets.get(key);
+            if (bucket == null || bucket.get() - tolerance - now <= 0) {
+                return 0;
+            }
+            if (current == Policy.REJECT) {
+                rejected.increment();
+                return REJECTED;
+            }
+            dropped.increment();
+            return DROPPED;
+        }
+
+        /**
+         * @return REJECTED, DROPPED or the delay in nanoseconds
+         */
+        long admit(String key, long now) {
+            long emission = interval;
+            if (emission == 0) {
+                return 0;
+            }
+            sweep(now);
+            AtomicLong bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+            }
+
+            long allowedAhead = tolerance;
+            Policy current = policy;
+            while (true) {
+                long arrival = bucket.get();
+                long base = Math.max(arrival, now);
+                long early = base - allowedAhead - now; //how early the frame is, positive if it does not conform
+                if (early > 0 && current != Policy.DELAY) {
+                    if (current == Policy.REJECT) {
+                        rejected.increment();
+                        return REJECTED;
+                    }
+                    dropped.increment();
+                    return DROPPED;
+                }
+                if (bucket.compareAndSet(arrival, base + emission)) {
+                    if (early > 0) {
+                        delayed.increment();
+                        return early;
+                    }
+                    return 0;
+                }
+            }
+        }
+
+        /**
+         * Gives back the token a frame took
+         */
+        void refund(String key) {
+            AtomicLong bucket = buckets.get(key);
+            if (bucket != null) {
+                bucket.addAndGet(-interval);
+            }
+        }
+
+        /**
+         * Removes the buckets that are as good as new, at most once per interval
+         */
+        private void sweep(long now) {
+            long due = nextSweep.get();
+            if (now - due < 0 || !nextSweep.compareAndSet(due, now + SWEEP_INTERVAL_NANOS)) {
+                return;
+            }
+            //a frame racing with the sweep may update a bucket after it is removed, which forgives that one frame
+            buckets.values().removeIf(bucket -> bucket.get() - now <= 0);
+        }
+
+        void report(PrintStream out) {
+            long emission = interval;
+            if (emission == 0) {
+                out.printf("  %-18s unlimited%n", name);
+                return;
+            }
+            out.printf("  %-18s %.1f/s, burst %d, %s, %d buckets%n", name, 1e9 / emission,
+                    tolerance / emission + 1, policy, buckets.size());
+            out.printf("  %-18s %d delayed, %d rejected, %d dropped%n", "", delayed.sum(), rejected.sum(), dropped.sum());
+        }
+    }
+}
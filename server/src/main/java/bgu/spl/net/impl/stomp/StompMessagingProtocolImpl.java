@@ -1,23 +1,35 @@
 package bgu.spl.net.impl.stomp;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
 
 import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.impl.cluster.ClusterNode;
 import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.impl.data.FileUpload;
 import bgu.spl.net.impl.data.LoginStatus;
+import bgu.spl.net.srv.BrokerEvents;
 import bgu.spl.net.srv.Connections;
+import bgu.spl.net.srv.MessageAttributes;
 
 public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
 
+    private static final MessageEncoderDecoderImpl ENCODER = new MessageEncoderDecoderImpl(); //encode is stateless
+    private static final int MAX_TRANSACTION_SENDS = 1000;
+
     private boolean shouldTerminate = false;
     private int connectionId;
     private Connections<String> connections;
     private boolean isLoggedIn = false;
     private String username = null;
+    private final Map<String, Transaction> transactions = new HashMap<>();
 
     @Override
     public void start(int connectionId, Connections<String> connections) {
@@ -27,28 +39,23 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
     @Override
     public String process(String message) {
-        String[] lines = message.split("\n");
+        Object event = BrokerEvents.frameStart();
+        int headersEnd = message.indexOf("\n\n");
+        String[] lines = (headersEnd < 0 ? message : message.substring(0, headersEnd)).split("\n");
         String frame = lines[0];
         Map<String, String> headers = new HashMap<>();
 
-        StringBuilder body = new StringBuilder();
-
-        int i = 1;
         // reading the headers
-        while (i < lines.length && !lines[i].isEmpty()) {
+        for (int i = 1; i < lines.length; i++) {
             int splitIdx = lines[i].indexOf(':');
             if (splitIdx != -1) {
-                headers.put(lines[i].substring(0, splitIdx), lines[i].substring(splitIdx + 1));
+                headers.putIfAbsent(lines[i].substring(0, splitIdx), lines[i].substring(splitIdx + 1));
             }
-            i++;
-        }
-
-        // reading the body
-        for (int j = i + 1; j < lines.length; j++) {
-            body.append(lines[j]).append("\n");
         }
 
-        String bodyToString = body.toString().trim();
+        // reading the body, a body with a content-length was cut to size by the decoder and is kept as is
+        String body = headersEnd < 0 ? "" : message.substring(headersEnd + 2);
+        String bodyToString = headers.containsKey("content-length") ? body : body.trim();
 
         switch (frame) {
 
@@ -72,9 +79,22 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
                 handleDisconnect(headers, message);
                 break;
 
+            case "BEGIN":
+                handleBegin(headers, message);
+                break;
+
+            case "COMMIT":
+                handleCommit(headers, message);
+                break;
+
+            case "ABORT":
+                handleAbort(headers, message);
+                break;
+
             default:
                 sendError("UnKnown Command", "command doesnt exist", headers, message);
         }
+        BrokerEvents.frameEnd(event, frame, connectionId);
         return null;
 
     }
@@ -104,7 +124,16 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
-        LoginStatus status = Database.getInstance().login(connectionId, login, passcode);
+        ClusterNode cluster = ClusterNode.getInstance();
+        LoginStatus status = cluster == null || isLoggedIn ? LoginStatus.LOGGED_IN_SUCCESSFULLY
+                : cluster.claimLogin(connectionId, login, passcode);
+        if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY) {
+            status = Database.getInstance().login(connectionId, login, passcode);
+            if (cluster != null && !isLoggedIn && status != LoginStatus.ADDED_NEW_USER
+                    && status != LoginStatus.LOGGED_IN_SUCCESSFULLY) {
+                cluster.releaseLogin(connectionId);
+            }
+        }
 
         switch (status) {
             case ADDED_NEW_USER:
@@ -112,8 +141,13 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
                 isLoggedIn = true;
                 username = login;
 
+                boolean deflate = acceptsDeflate(headers.get("accept-encoding"));
+                if (deflate) {
+                    connections.setEncoding(connectionId, Compression.DEFLATE);
+                }
                 String connected = "CONNECTED\n" +
-                        "version:1.2\n\n" +
+                        "version:1.2\n" +
+                        (deflate ? "accept-encoding:" + Compression.DEFLATE + "\n" : "") + "\n" +
                         "\u0000";
 
                 connections.send(connectionId, connected);
@@ -134,6 +168,10 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             case CLIENT_ALREADY_CONNECTED:
                 sendError("Client already connected", "This connection is already logged in", headers, message);
                 break;
+
+            case CLUSTER_UNAVAILABLE:
+                sendError("Cluster unavailable", "The server that keeps this user's logins cannot be reached", headers, message);
+                break;
         }
     }
 
@@ -154,8 +192,7 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
                     headers, message);
             return;
         }
-        SubscriptionManager manager = SubscriptionManager.getInstance();
-        if (!manager.isSubscribed(connectionId, destination)) {
+        if (!connections.isSubscribed(connectionId, destination)) {
             sendError(
                     "Not subscribed",
                     "Client is not subscribed to destination:" + destination,
@@ -163,31 +200,123 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
 
-        Map<Integer, String> subscribers = manager.getSubscribersSnapshot(destination);
-        for (Map.Entry<Integer, String> subscriberEntry : subscribers.entrySet()) {
-            Integer otherId = subscriberEntry.getKey();
-            String otherSubId = subscriberEntry.getValue();
-            String msg = "MESSAGE\n" +
-                    "subscription:" + otherSubId + "\n" +
-                    "message-id:" + manager.nextMessageId() + "\n" +
-                    "destination:" + destination + "\n\n" +
-                    body +
-                    "\u0000";
-
-            connections.send(otherId, msg);
+        long wait = RateLimiter.admit(username, destination);
+        if (wait == RateLimiter.REJECTED) {
+            sendError("Rate limit exceeded", "Too many messages from " + username + " or to " + destination,
+                    headers, message);
+            return;
+        }
+        if (wait == RateLimiter.DROPPED) {
+            if (headers.containsKey("receipt")) {
+                sendReceipt(headers.get("receipt"));
+            }
+            return;
+        }
+        if (wait > 0) {
+            connections.pauseReading(connectionId, wait);
         }
 
-        // Track file upload in database
         String filename = headers.get("filename");
-        if (filename != null && !filename.isEmpty()) {
-            Database.getInstance().trackFileUpload(username, filename, destination);
+        String transactionId = headers.get("transaction");
+        if (transactionId != null) {
+            Transaction transaction = transactions.get(transactionId);
+            if (transaction == null) {
+                sendError("Unknown transaction", "No transaction " + transactionId + " was begun", headers, message);
+                return;
+            }
+            if (transaction.destinations.size() >= MAX_TRANSACTION_SENDS) {
+                sendError("Transaction too large",
+                        "A transaction may hold at most " + MAX_TRANSACTION_SENDS + " SEND frames", headers, message);
+                return;
+            }
+            transaction.add(destination, headers, body, filename);
+        } else {
+            Attributes attributes = new Attributes(headers, body);
+            keepForDurable(destination, attributes, body);
+            Object event = BrokerEvents.fanOutStart();
+            int subscribers = connections.broadcastEncoded(destination, attributes, new MessageEncoder(destination, body));
+            BrokerEvents.fanOutEnd(event, destination, subscribers);
+            forward(destination, headers, body);
+
+            // Track file upload in database
+            if (filename != null && !filename.isEmpty()) {
+                Database.getInstance().trackFileUpload(username, filename, destination);
+            }
+        }
+
+        if (headers.containsKey("receipt")) {
+            sendReceipt(headers.get("receipt"));
+        }
+    }
+
+    private void handleBegin(Map<String, String> headers, String message) {
+        if (!isLoggedIn) {
+            sendError("Unauthorized", "You must login before beginning a transaction", headers, message);
+            return;
+        }
+        String transactionId = headers.get("transaction");
+        if (transactionId == null) {
+            sendError("Malformed BEGIN frame", "Missing transaction header", headers, message);
+            return;
+        }
+        if (transactions.containsKey(transactionId)) {
+            sendError("Duplicate transaction", "Transaction " + transactionId + " was already begun", headers, message);
+            return;
+        }
+        transactions.put(transactionId, new Transaction());
+        if (headers.containsKey("receipt")) {
+            sendReceipt(headers.get("receipt"));
         }
+    }
 
+    /**
+     * Sends every SEND of the transaction at once: each subscriber gets all the messages meant for it in one
+     * write and the file uploads are tracked with one SQL statement
+     */
+    private void handleCommit(Map<String, String> headers, String message) {
+        Transaction transaction = endTransaction(headers, message, "COMMIT");
+        if (transaction == null) {
+            return;
+        }
+        for (int i = 0; i < transaction.destinations.size(); i++) {
+            keepForDurable(transaction.destinations.get(i), transaction.attributes.get(i), transaction.bodies.get(i));
+        }
+        connections.broadcastEncoded(transaction.destinations, transaction.attributes, transaction.encoders);
+        for (int i = 0; i < transaction.destinations.size(); i++) {
+            forward(transaction.destinations.get(i), transaction.headers.get(i), transaction.bodies.get(i));
+        }
+        Database.getInstance().trackFileUploads(username, transaction.uploads);
         if (headers.containsKey("receipt")) {
             sendReceipt(headers.get("receipt"));
         }
     }
 
+    private void handleAbort(Map<String, String> headers, String message) {
+        if (endTransaction(headers, message, "ABORT") != null && headers.containsKey("receipt")) {
+            sendReceipt(headers.get("receipt"));
+        }
+    }
+
+    /**
+     * @return the transaction named by the frame, removed, or null after sending an error
+     */
+    private Transaction endTransaction(Map<String, String> headers, String message, String command) {
+        if (!isLoggedIn) {
+            sendError("Unauthorized", "You must login before ending a transaction", headers, message);
+            return null;
+        }
+        String transactionId = headers.get("transaction");
+        if (transactionId == null) {
+            sendError("Malformed " + command + " frame", "Missing transaction header", headers, message);
+            return null;
+        }
+        Transaction transaction = transactions.remove(transactionId);
+        if (transaction == null) {
+            sendError("Unknown transaction", "No transaction " + transactionId + " was begun", headers, message);
+        }
+        return transaction;
+    }
+
     private void handleSubscribe(Map<String, String> headers, String message) {
 
         // Checks if the user is connected
@@ -205,12 +334,32 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             sendError("Malformed SUBSCRIBE frame", "Missing required headers", headers, message);
             return;
         }
-        SubscriptionManager manager = SubscriptionManager.getInstance();
-        boolean success = manager.subscribe(connectionId, destination, id);
-        if (!success) {
+        Predicate<MessageAttributes> filter = null;
+        String selector = headers.get("selector");
+        if (selector != null && !selector.trim().isEmpty()) {
+            try {
+                filter = MessageSelector.compile(selector);
+            } catch (IllegalArgumentException ex) {
+                sendError("Invalid selector", ex.getMessage(), headers, message);
+                return;
+            }
+        }
+        if (!connections.reserve(connectionId, id, destination)) {
             sendError("Failed subscribe", "Duplicate subscription id", headers, message);
             return;
         }
+        DurableSubscriptions durables = DurableSubscriptions.getInstance();
+        if (durables != null && "true".equals(headers.get("durable"))) {
+            try {
+                durables.subscribe(username, id, destination, filter, connectionId);
+            } catch (IllegalArgumentException ex) {
+                connections.unsubscribe(connectionId, id);
+                sendError("Failed subscribe", ex.getMessage(), headers, message);
+                return;
+            }
+        } else {
+            connections.subscribe(destination, connectionId, id, filter);
+        }
         if (headers.containsKey("receipt")) {
             sendReceipt(headers.get("receipt"));
         }
@@ -229,12 +378,14 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             sendError("Malformed UNSUBSCRIBE frame", "Missing required headers", headers, message);
             return;
         }
-        SubscriptionManager manager = SubscriptionManager.getInstance();
-        String result = manager.unsubscribe(connectionId, id);
-        if (!result.equals("OK")) {
+        if (connections.unsubscribe(connectionId, id) == null) {
             sendError("Malformed UNSUBSCRIBE frame", "Subscription id does not exist", headers, message);
             return;
         }
+        DurableSubscriptions durables = DurableSubscriptions.getInstance();
+        if (durables != null) {
+            durables.unsubscribe(username, id);
+        }
         if (headers.containsKey("receipt")) {
             sendReceipt(headers.get("receipt"));
         }
@@ -255,13 +406,188 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             return;
         }
         sendReceipt(receiptId);
-        SubscriptionManager manager = SubscriptionManager.getInstance();
-        manager.removeAllSubscriptions(connectionId);
-        Database.getInstance().logout(connectionId);
+        logout();
         shouldTerminate = true;
         connections.disconnect(connectionId);
     }
 
+    private void logout() {
+        Database.getInstance().logout(connectionId);
+        ClusterNode cluster = ClusterNode.getInstance();
+        if (cluster != null) {
+            cluster.releaseLogin(connectionId);
+        }
+    }
+
+    /**
+     * Passes a SEND on to the other servers of the cluster, if any
+     */
+    private static void forward(String destination, Map<String, String> headers, String body) {
+        ClusterNode cluster = ClusterNode.getInstance();
+        if (cluster != null) {
+            cluster.forward(destination, headers, body);
+        }
+    }
+
+    /**
+     * Keeps a message for the offline durable subscriptions of its destination, called before it is broadcast
+     */
+    private static void keepForDurable(String destination, MessageAttributes attributes, String body) {
+        DurableSubscriptions durables = DurableSubscriptions.getInstance();
+        if (durables != null) {
+            durables.offer(destination, attributes, body);
+        }
+    }
+
+    /**
+     * Builds the unencoded MESSAGE frame of one subscription, e.g. for a message kept by a durable subscription
+     */
+    static byte[] encodeMessage(String destination, String body, String subscriptionId) {
+        return new MessageEncoder(destination, body).apply(subscriptionId, null);
+    }
+
+    /**
+     * Sends a server originated MESSAGE (e.g. a match start notice) to every subscriber of the channel
+     * @param body in the form of decoded bodies, see {@link MessageEncoderDecoderImpl#textBody}
+     * @return the number of subscribers reached
+     */
+    public static int announce(Connections<String> connections, String channel, String body) {
+        return announce(connections, channel, Collections.singletonMap("destination", channel), body);
+    }
+
+    /**
+     * Delivers a SEND that another server of the cluster received
+     * @param headers the headers of the SEND, which the subscription selectors are matched against
+     */
+    public static int announce(Connections<String> connections, String channel, Map<String, String> headers,
+            String body) {
+        Attributes attributes = new Attributes(headers, body);
+        keepForDurable(channel, attributes, body);
+        return connections.broadcastEncoded(channel, attributes, new MessageEncoder(channel, body));
+    }
+
+    private static boolean acceptsDeflate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String encoding : acceptEncoding.split(",")) {
+            if (encoding.trim().equals(Compression.DEFLATE)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The SEND frames of a transaction, kept until it is committed or aborted
+     */
+    private static class Transaction {
+        final List<String> destinations = new ArrayList<>();
+        final List<BiFunction<String, String, byte[]>> encoders = new ArrayList<>();
+        final List<String> bodies = new ArrayList<>();
+        final List<Map<String, String>> headers = new ArrayList<>();
+        final List<MessageAttributes> attributes = new ArrayList<>();
+        final List<FileUpload> uploads = new ArrayList<>();
+
+        void add(String destination, Map<String, String> headers, String body, String filename) {
+            destinations.add(destination);
+            attributes.add(new Attributes(headers, body));
+            encoders.add(new MessageEncoder(destination, body));
+            bodies.add(body);
+            this.headers.add(headers);
+            if (filename != null && !filename.isEmpty()) {
+                uploads.add(new FileUpload(filename, destination));
+            }
+        }
+    }
+
+    /**
+     * The headers of a SEND and the "name: value" lines of its body, which are only parsed if a subscription
+     * filter asks for one of them
+     */
+    private static class Attributes implements MessageAttributes {
+
+        private final Map<String, String> headers;
+        private final String body;
+        private Map<String, String> bodyFields;
+
+        Attributes(Map<String, String> headers, String body) {
+            this.headers = headers;
+            this.body = body;
+        }
+
+        @Override
+        public String get(String name) {
+            if (!name.startsWith(MessageSelector.BODY_PREFIX)) {
+                return headers.get(name);
+            }
+            if (bodyFields == null) {
+                bodyFields = parseBodyFields(body);
+            }
+            return bodyFields.get(name.substring(MessageSelector.BODY_PREFIX.length()));
+        }
+
+        private static Map<String, String> parseBodyFields(String body) {
+            Map<String, String> fields = new HashMap<>();
+            for (String line : MessageEncoderDecoderImpl.bodyText(body).split("\n")) {
+                int colon = line.indexOf(':');
+                if (colon > 0) {
+                    fields.putIfAbsent(line.substring(0, colon).trim(), line.substring(colon + 1).trim());
+                }
+            }
+            return fields;
+        }
+    }
+
+    /**
+     * Builds the MESSAGE frames of one SEND, the body is compressed at most once whatever the number of
+     * subscribers that accept deflate
+     */
+    private static class MessageEncoder implements BiFunction<String, String, byte[]> {
+
+        private final String destination;
+        private final String body;
+        private final int bodyLength;
+        private byte[] deflated;
+        private boolean deflateTried = false;
+
+        MessageEncoder(String destination, String body) {
+            this.destination = destination;
+            this.body = body;
+            this.bodyLength = body.length(); //one byte per char, see MessageEncoderDecoderImpl
+        }
+
+        @Override
+        public byte[] apply(String subscriptionId, String encoding) {
+            String messageId = SubscriptionManager.getInstance().nextMessageId();
+            if (Compression.DEFLATE.equals(encoding)) {
+                if (!deflateTried) {
+                    deflated = Compression.compress(body);
+                    deflateTried = true;
+                }
+                if (deflated != null) {
+                    byte[] head = ("MESSAGE\n" +
+                            "subscription:" + subscriptionId + "\n" +
+                            "message-id:" + messageId + "\n" +
+                            "destination:" + destination + "\n" +
+                            "content-encoding:" + Compression.DEFLATE + "\n" +
+                            "content-length:" + deflated.length + "\n\n").getBytes(StandardCharsets.UTF_8);
+                    byte[] frame = new byte[head.length + deflated.length + 1];
+                    System.arraycopy(head, 0, frame, 0, head.length);
+                    System.arraycopy(deflated, 0, frame, head.length, deflated.length);
+                    return frame; //ends with the NUL terminator
+                }
+            }
+            return ENCODER.encode("MESSAGE\n" +
+                    "subscription:" + subscriptionId + "\n" +
+                    "message-id:" + messageId + "\n" +
+                    "destination:" + destination + "\n" +
+                    "content-length:" + bodyLength + "\n\n" +
+                    body +
+                    "\u0000");
+        }
+    }
+
     private void sendReceipt(String receiptId) {
 
         String msg = "RECEIPT\n" +
@@ -293,13 +619,17 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         sb.append("-----\n");
 
         if (originalMessage != null && !originalMessage.isEmpty()) {
-
-            sb.append(originalMessage.replace("\u0000", ""))
+            // the echoed headers are text, the echoed body is already in the form of bodies
+            int headersEnd = originalMessage.indexOf("\n\n");
+            String echoedHeaders = headersEnd < 0 ? originalMessage : originalMessage.substring(0, headersEnd);
+            String echoedBody = headersEnd < 0 ? "" : originalMessage.substring(headersEnd);
+            sb.append(MessageEncoderDecoderImpl.textBody(echoedHeaders))
+                    .append(echoedBody.replace("\u0000", ""))
                     .append("\n");
         }
 
         sb.append("-----\n");
-        sb.append(detailedExplanation)
+        sb.append(MessageEncoderDecoderImpl.textBody(detailedExplanation))
                 .append("\n");
 
         sb.append("\u0000");
@@ -307,8 +637,7 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         connections.send(connectionId, sb.toString());
 
         if (isLoggedIn) {
-            SubscriptionManager.getInstance().removeAllSubscriptions(connectionId);
-            Database.getInstance().logout(connectionId);
+            logout();
         }
 
         shouldTerminate = true;
@@ -1,12 +1,27 @@
 package bgu.spl.net.impl.stomp;
 
+import bgu.spl.net.impl.cluster.ClusterNode;
 import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.impl.data.SqlListener;
+import bgu.spl.net.srv.BrokerEvents;
+import bgu.spl.net.srv.FrameTracer;
 import bgu.spl.net.srv.Server;
+import bgu.spl.net.srv.ServerConfig;
+import bgu.spl.net.srv.ServerStats;
+import bgu.spl.net.srv.TrafficCapture;
+import bgu.spl.net.srv.WorkStealingPool;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class StompServer {
     public static void main(String[] args) {
-        if (args.length != 2) {
-            System.err.println("Usage: <port> <tpc|reactor>");
+        if (args.length < 2) {
+            printUsage();
             return;
         }
 
@@ -14,15 +29,59 @@ public class StompServer {
         String type = args[1];
         Server<String> server;
 
+        ServerConfig config;
+        try {
+            config = loadConfig(Arrays.asList(args).subList(2, args.length));
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("Bad configuration: " + ex.getMessage());
+            printUsage();
+            return;
+        }
+        config.print(System.out);
+        FrameTracer.setSampleRate(config.getInt("trace.sample"));
+        try {
+            TrafficCapture.start(config.getString("capture.file"), config.getInt("capture.queue"));
+        } catch (IOException ex) {
+            System.err.println("Cannot capture traffic: " + ex.getMessage());
+            return;
+        }
+        Compression.configure(config.getInt("compression.threshold"), config.getInt("compression.level"));
+        ServerStats.register("compression", Compression::report);
+        RateLimiter.configureUsers(config.getDouble("ratelimit.user.rate"), config.getInt("ratelimit.user.burst"),
+                config.getEnum("ratelimit.user.policy", RateLimiter.Policy.class));
+        RateLimiter.configureDestinations(config.getDouble("ratelimit.destination.rate"),
+                config.getInt("ratelimit.destination.burst"),
+                config.getEnum("ratelimit.destination.policy", RateLimiter.Policy.class));
+        ServerStats.register("ratelimit", RateLimiter::report);
+        Database.getInstance().setSqlListener(new SqlListener() {
+            @Override
+            public Object started(String sql) {
+                WorkStealingPool.beginBlocking(); //the statement waits on a socket
+                return BrokerEvents.sqlStart();
+            }
+
+            @Override
+            public void finished(Object event, String sql) {
+                BrokerEvents.sqlEnd(event, sql);
+                WorkStealingPool.endBlocking();
+            }
+        });
+
         if (type.equals("tpc")) {
             server = Server.threadPerClient(
+                    config,
                     port,
                     () -> new StompMessagingProtocolImpl(),
                     () -> new MessageEncoderDecoderImpl());
         } else if (type.equals("reactor")) {
-            int nthreads = Runtime.getRuntime().availableProcessors();
             server = Server.reactor(
-                    nthreads,
+                    config,
+                    port,
+                    () -> new StompMessagingProtocolImpl(),
+                    () -> new MessageEncoderDecoderImpl());
+        } else if (type.equals("percore")) {
+            server = Server.perCore(
+                    config,
                     port,
                     () -> new StompMessagingProtocolImpl(),
                     () -> new MessageEncoderDecoderImpl());
@@ -31,13 +90,87 @@ public class StompServer {
             return;
         }
 
+        DurableSubscriptions.start(config, server.getConnections());
+        try {
+            ClusterNode.start(config, server.getConnections());
+        } catch (IOException | IllegalArgumentException ex) {
+            System.err.println("Cannot join the cluster: " + ex.getMessage());
+            return;
+        }
+
         // Add shutdown hook to print database report when server stops
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            TrafficCapture.stop();
             System.out.println("\n=== Generating Server Report ===");
             Database.getInstance().printReport();
         }));
 
+        startConsole(server);
         server.serve();
     }
 
+    private static ServerConfig loadConfig(List<String> options) throws IOException {
+        String file = null;
+        List<String> overrides = new ArrayList<>();
+        for (String option : options) {
+            if (option.startsWith("--config=")) {
+                file = option.substring("--config=".length());
+            } else {
+                overrides.add(option);
+            }
+        }
+        return ServerConfig.load(file, overrides);
+    }
+
+    private static void printUsage() {
+        System.err.println("Usage: <port> <tpc|reactor|percore> [--config=<properties file>] [--key=value]...");
+        System.err.println("Settings:");
+        ServerConfig.printKeys(System.err);
+    }
+
+    /**
+     * Reads operator commands from the standard input:
+     * "stats" prints the server metrics, "trace" prints the frame latency traces, "trace reset" clears them and
+     * "announce &lt;channel&gt; &lt;text&gt;" sends a server message to the channel's subscribers.
+     */
+    private static void startConsole(Server<String> server) {
+        Thread console = new Thread(() -> {
+            try (BufferedReader in = new BufferedReader(new InputStreamReader(System.in))) {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    line = line.trim();
+                    if (line.startsWith("announce ")) {
+                        String[] parts = line.split(" ", 3);
+                        if (parts.length < 3) {
+                            System.out.println("Usage: announce <channel> <text>");
+                        } else {
+                            int reached = StompMessagingProtocolImpl.announce(server.getConnections(), parts[1],
+                                    MessageEncoderDecoderImpl.textBody(parts[2]));
+                            System.out.println("Announced to " + reached + " subscribers");
+                        }
+                        continue;
+                    }
+                    switch (line) {
+                        case "trace":
+                            FrameTracer.dump(System.out);
+                            break;
+                        case "trace reset":
+                            FrameTracer.reset();
+                            break;
+                        case "stats":
+                            ServerStats.report(System.out);
+                            break;
+                        case "":
+                            break;
+                        default:
+                            System.out.println("Unknown command, use: stats | trace | trace reset | announce <channel> <text>");
+                    }
+                }
+            } catch (IOException ignored) {
+            }
+        }, "console");
+        console.setDaemon(true);
+        console.start();
+    }
+
 }
@@ -0,0 +1,124 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Admission control of new connections, one per server.
+ * Non blocking servers accept up to accept.batch connections per wake up. Past connections.max open connections
+ * a new connection is reset as soon as it is accepted, before it gets a handler or a protocol. Past accept.rate
+ * the server stops accepting until a token is available and the connections wait in the kernel's accept backlog;
+ * the rate is a token bucket kept as a single theoretical arrival time, like the SEND limits.
+ */
+final class AcceptControl {
+
+    private final int batch;
+    private final int maxConnections;
+    private final long emission; //nanoseconds per accept, 0 when unlimited
+    private final long tolerance;
+    private final AtomicLong arrival = new AtomicLong(System.nanoTime());
+
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder ratePauses = new LongAdder();
+    private final LongAdder latencyTotal = new LongAdder();
+    private final AtomicLong latencyMax = new AtomicLong();
+
+    AcceptControl(ServerConfig config) {
+        this.batch = Math.max(1, config.getInt("accept.batch"));
+        this.maxConnections = config.getInt("connections.max");
+        double rate = config.getDouble("accept.rate");
+        this.emission = rate <= 0 ? 0 : Math.max(1, (long) (1e9 / rate));
+        this.tolerance = emission * (Math.max(1, config.getInt("accept.burst")) - 1);
+    }
+
+    /**
+     * @return how many connections to accept at most per wake up
+     */
+    int batch() {
+        return batch;
+    }
+
+    /**
+     * @return 0 if a connection may be accepted now, otherwise how many nanoseconds until one may
+     */
+    long delay() {
+        if (emission == 0) {
+            return 0;
+        }
+        long wait = arrival.get() - tolerance - System.nanoTime();
+        if (wait > 0) {
+            ratePauses.increment();
+            return wait;
+        }
+        return 0;
+    }
+
+    /**
+     * Takes a token for an accepted connection, or resets the connection if the server is full
+     * @return false if the connection was rejected
+     */
+    boolean admit(SocketChannel chan, int openConnections) {
+        if (maxConnections > 0 && openConnections >= maxConnections) {
+            rejected.increment();
+            try {
+                chan.setOption(StandardSocketOptions.SO_LINGER, 0);
+                chan.close();
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+        take();
+        return true;
+    }
+
+    boolean admit(Socket sock, int openConnections) {
+        if (maxConnections > 0 && openConnections >= maxConnections) {
+            rejected.increment();
+            try {
+                sock.setSoLinger(true, 0);
+                sock.close();
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+        take();
+        return true;
+    }
+
+    private void take() {
+        if (emission == 0) {
+            return;
+        }
+        long now = System.nanoTime();
+        arrival.getAndUpdate(current -> Math.max(current, now) + emission);
+    }
+
+    /**
+     * Records a connection that is ready to be read
+     * @param since when the server learned about it: the wake up of its batch, or its accept
+     */
+    void accepted(long since) {
+        long latency = System.nanoTime() - since;
+        accepted.increment();
+        latencyTotal.add(latency);
+        long max;
+        while (latency > (max = latencyMax.get()) && !latencyMax.compareAndSet(max, latency)) {
+        }
+    }
+
+    void report(PrintStream out) {
+        long count = accepted.sum();
+        out.printf("  accepted           %d, latency avg %.1f us, max %.1f us%n", count,
+                count == 0 ? 0 : latencyTotal.sum() / 1e3 / count, latencyMax.get() / 1e3);
+        out.printf("  rejected           %d (limit %s)%n", rejected.sum(),
+                maxConnections > 0 ? String.valueOf(maxConnections) : "none");
+        out.printf("  rate pauses        %d (limit %s)%n", ratePauses.sum(),
+                emission > 0 ? String.format("%.1f/s", 1e9 / emission) : "none");
+    }
+}
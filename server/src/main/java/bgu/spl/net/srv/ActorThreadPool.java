@@ -1,13 +1,13 @@
 package bgu.spl.net.srv;
 
+import java.io.PrintStream;
 import java.util.LinkedList;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -16,16 +16,37 @@ public class ActorThreadPool {
     private final Map<Object, Queue<Runnable>> acts;
     private final ReadWriteLock actsRWLock;
     private final Set<Object> playingNow;
-    private final ExecutorService threads;
+    private final WorkStealingPool threads;
 
+    /**
+     * A pool of exactly the given number of threads
+     */
     public ActorThreadPool(int threads) {
-        this.threads = Executors.newFixedThreadPool(threads);
+        this(new WorkStealingPool(threads, threads, threads, Long.MAX_VALUE, Long.MAX_VALUE));
+    }
+
+    /**
+     * A pool that starts with "workers" threads and resizes itself between "workers.min" and "workers.max"
+     */
+    public ActorThreadPool(ServerConfig config) {
+        this(new WorkStealingPool(config.getInt("workers"), config.getInt("workers.min"), config.getInt("workers.max"),
+                TimeUnit.MICROSECONDS.toNanos(config.getLong("workers.targetDelayMicros")),
+                TimeUnit.MILLISECONDS.toNanos(config.getLong("workers.keepAliveMillis"))));
+    }
+
+    /*package*/ ActorThreadPool(WorkStealingPool threads) {
+        this.threads = threads;
         acts = new WeakHashMap<>();
         playingNow = ConcurrentHashMap.newKeySet();
         actsRWLock = new ReentrantReadWriteLock();
     }
 
-    public void submit(Object act, Runnable r) {
+    public void submit(Object act, Runnable task) {
+        Object event = BrokerEvents.scheduleStart();
+        Runnable r = event == null ? task : () -> {
+            BrokerEvents.scheduleEnd(event);
+            task.run();
+        };
         synchronized (act) {
             if (!playingNow.contains(act)) {
                 playingNow.add(act);
@@ -37,7 +58,11 @@ public class ActorThreadPool {
     }
 
     public void shutdown() {
-        threads.shutdownNow();
+        threads.shutdown();
+    }
+
+    public void report(PrintStream out) {
+        threads.report(out);
     }
 
     private Queue<Runnable> pendingRunnablesOf(Object act) {
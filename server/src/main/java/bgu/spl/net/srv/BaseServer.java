@@ -5,57 +5,95 @@ import bgu.spl.net.api.MessagingProtocol;
 import bgu.spl.net.api.StompMessagingProtocol;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.locks.LockSupport;
 import java.util.function.Supplier;
 
 public abstract class BaseServer<T> implements Server<T> {
 
+    private final ServerConfig config;
     private final int port;
     private final Supplier<MessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> encdecFactory;
     private ServerSocket sock;
     private ConnectionsImpl<T> connections;
-    private int connectionIdCounter;
+    private final AcceptControl admission;
 
     public BaseServer(
             int port,
             Supplier<MessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> encdecFactory) {
+        this(ServerConfig.defaults(), port, protocolFactory, encdecFactory);
+    }
+
+    public BaseServer(
+            ServerConfig config,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encdecFactory) {
 
+        this.config = config;
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.encdecFactory = encdecFactory;
 		this.sock = null;
         this.connections = new ConnectionsImpl<>();
-        this.connectionIdCounter = 0;
+        this.admission = new AcceptControl(config);
     }
 
     @Override
     public void serve() {
 
-        try (ServerSocket serverSock = new ServerSocket(port)) {
+        int queueLimit = config.getInt("queue.limit");
+        OverflowPolicy overflowPolicy = config.getEnum("queue.overflow", OverflowPolicy.class);
+
+        try (ServerSocket serverSock = new ServerSocket()) {
+            if (config.getInt("tcp.receiveBuffer") > 0) {
+                serverSock.setReceiveBufferSize(config.getInt("tcp.receiveBuffer")); //inherited by accepted sockets
+            }
+            serverSock.bind(new InetSocketAddress(port), config.getInt("tcp.backlog"));
 			System.out.println("Server started");
+            ServerStats.register("tpc", out -> {
+                out.printf("  connections        %d%n", connections.connectionCount());
+                out.printf("  dropped messages   %d%n", BlockingConnectionHandler.droppedMessages());
+                out.printf("  filtered messages  %d%n", connections.filteredMessages());
+            });
+            ServerStats.register("accept", admission::report);
 
             this.sock = serverSock; //just to be able to close
 
             while (!Thread.currentThread().isInterrupted()) {
 
+                long wait = admission.delay();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait); //the connections wait in the accept backlog
+                    continue;
+                }
                 Socket clientSock = serverSock.accept();
-                int connectionId = connectionIdCounter++;
+                long accepted = System.nanoTime();
+                if (!admission.admit(clientSock, connections.connectionCount())) {
+                    continue;
+                }
+                config.configure(clientSock);
 
                 MessagingProtocol<T> protocol = protocolFactory.get();
-                if (protocol instanceof StompMessagingProtocol) { 
-                    ((StompMessagingProtocol <T>)protocol).start(connectionId, connections);
-                }
                 BlockingConnectionHandler<T> handler = new BlockingConnectionHandler<>(
                         clientSock,
                         encdecFactory.get(),
-                        protocol);
-                
-                connections.addConnection(connectionId, handler);
-                        
+                        protocol,
+                        queueLimit,
+                        overflowPolicy);
+
+                int connectionId = connections.addConnection(handler);
+                handler.onClose(() -> connections.disconnect(connectionId));
+                if (protocol instanceof StompMessagingProtocol) { 
+                    ((StompMessagingProtocol <T>)protocol).start(connectionId, connections);
+                }
+
                 execute(handler);
+                admission.accepted(accepted);
             }
         } catch (IOException ex) {
         }
@@ -63,6 +101,11 @@ public abstract class BaseServer<T> implements Server<T> {
         System.out.println("server closed!!!");
     }
 
+    @Override
+    public Connections<T> getConnections() {
+        return connections;
+    }
+
     @Override
     public void close() throws IOException {
 		if (sock != null)
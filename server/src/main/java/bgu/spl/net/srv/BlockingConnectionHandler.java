@@ -6,20 +6,79 @@ import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * A connection handler for the thread per client server.
+ * Reading and processing happen on the connection's thread while outgoing messages go through a bounded
+ * queue that is drained by a dedicated writer thread, so a sender never blocks on a slow peer.
+ * Replies and direct sends (e.g. RECEIPT and ERROR) have their own unbounded lane that the writer empties
+ * before every batch of fan-out messages.
+ */
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    public static final int DEFAULT_QUEUE_LIMIT = 1024;
+    private static final byte[] END_OF_STREAM = new byte[0];
+    private static final long DRAIN_TIMEOUT_MILLIS = 5000;
+    private static final int MAX_BULK_BATCH = 64;
+    private static final AtomicLong DROPPED = new AtomicLong();
+
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<BlockingConnectionHandler, byte[]> TRACE_WRITE =
+            AtomicReferenceFieldUpdater.newUpdater(BlockingConnectionHandler.class, byte[].class, "traceWriteBytes");
+
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
+    private final BlockingQueue<byte[]> outbound;
+    private final Queue<byte[]> control = new ConcurrentLinkedQueue<>();
+    private final Semaphore available = new Semaphore(0); //released for every message queued in either lane
+    private final OverflowPolicy overflowPolicy;
     private BufferedInputStream in;
     private BufferedOutputStream out;
+    private volatile Thread writer;
     private volatile boolean connected = true;
+    private volatile long readPausedUntil = 0; //System.nanoTime() before which the socket is not read
+    private Runnable onClose = () -> {};
+    private final int captureId = TrafficCapture.connectionOpened();
+    private int traceReadCounter = ThreadLocalRandom.current().nextInt();
+    private int traceWriteCounter = ThreadLocalRandom.current().nextInt();
+    private long traceEnqueuedAt;
+    private volatile byte[] traceWriteBytes;
 
     public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, MessagingProtocol<T> protocol) {
+        this(sock, reader, protocol, DEFAULT_QUEUE_LIMIT, OverflowPolicy.DISCONNECT);
+    }
+
+    public BlockingConnectionHandler(
+            Socket sock,
+            MessageEncoderDecoder<T> reader,
+            MessagingProtocol<T> protocol,
+            int queueLimit,
+            OverflowPolicy overflowPolicy) {
         this.sock = sock;
         this.encdec = reader;
         this.protocol = protocol;
+        this.outbound = new ArrayBlockingQueue<>(queueLimit);
+        this.overflowPolicy = overflowPolicy;
+    }
+
+    /**
+     * @return how many outgoing messages were dropped by handlers with the DROP overflow policy
+     */
+    public static long droppedMessages() {
+        return DROPPED.get();
     }
 
     @Override
@@ -29,42 +88,190 @@ public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler
 
             in = new BufferedInputStream(sock.getInputStream());
             out = new BufferedOutputStream(sock.getOutputStream());
+            writer = new Thread(this::writeLoop, "writer-" + Thread.currentThread().getName());
+            writer.setDaemon(true);
+            writer.start();
 
             while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
                 T nextMessage = encdec.decodeNextByte((byte) read);
                 if (nextMessage != null) {
+                    if (captureId >= 0) {
+                        TrafficCapture.frame(captureId, encdec.encode(nextMessage));
+                    }
+                    boolean traced = FrameTracer.shouldSample(++traceReadCounter);
+                    long decoded = traced ? System.nanoTime() : 0;
                     T response = protocol.process(nextMessage);
+                    if (traced) {
+                        FrameTracer.recordFrame(nextMessage, -1, -1, -1, System.nanoTime() - decoded);
+                    }
                     if (response != null) {
-                        synchronized (out) {
-                            out.write(encdec.encode(response));
-                            out.flush();
-                        }       
+                        enqueueControl(encdec.encode(response));
                     }
+                    waitWhilePaused();
                 }
             }
+            finishWriting();
 
         } catch (IOException ex) {
             ex.printStackTrace();
+        } finally {
+            Thread w = writer;
+            if (w != null) {
+                w.interrupt();
+            }
+            if (captureId >= 0) {
+                TrafficCapture.closed(captureId);
+            }
+            onClose.run();
         }
 
     }
 
+    /**
+     * Sets an action that runs once the connection is closed, whichever side closed it
+     */
+    /*package*/ void onClose(Runnable action) {
+        onClose = action;
+    }
+
     @Override
     public void close() throws IOException {
         connected = false;
+        Thread w = writer;
+        if (w != null) {
+            w.interrupt();
+        }
         sock.close();
     }
 
     @Override
     public void send(T msg) {
+        enqueueControl(encdec.encode(msg));
+    }
+
+    @Override
+    public void pauseReading(long nanos) {
+        long until = System.nanoTime() + nanos;
+        if (until - readPausedUntil > 0) {
+            readPausedUntil = until;
+        }
+    }
+
+    private void waitWhilePaused() {
+        long left;
+        while (connected && (left = readPausedUntil - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(left);
+        }
+    }
+
+    @Override
+    public byte[] encode(T msg) {
+        return encdec.encode(msg);
+    }
+
+    @Override
+    public Runnable sendEncoded(byte[] encoded) {
+        enqueue(encoded);
+        return null;
+    }
+
+    @Override
+    public int queuedMessages() {
+        return outbound.size();
+    }
+
+    private void enqueueControl(byte[] bytes) {
+        traceWrite(bytes);
+        control.add(bytes);
+        available.release();
+    }
+
+    private void enqueue(byte[] bytes) {
+        traceWrite(bytes);
+        if (outbound.offer(bytes)) {
+            available.release();
+        } else {
+            if (traceWriteBytes == bytes) {
+                traceWriteBytes = null;
+            }
+            if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+                closeSilently();
+            } else {
+                DROPPED.incrementAndGet();
+            }
+        }
+    }
+
+    private void traceWrite(byte[] bytes) {
+        if (FrameTracer.shouldSample(++traceWriteCounter) && TRACE_WRITE.compareAndSet(this, null, bytes)) {
+            traceEnqueuedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Lets the writer send everything that was queued before the connection is closed
+     */
+    private void finishWriting() {
         try {
-        synchronized (out) {
-            out.write(encdec.encode(msg));
-            out.flush();
+            if (outbound.offer(END_OF_STREAM, DRAIN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                available.release();
+                writer.join(DRAIN_TIMEOUT_MILLIS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
         }
-    }catch (IOException e) {
-        closeSilently();
+    }
+
+    private void writeLoop() {
+        List<byte[]> batch = new ArrayList<>();
+        try {
+            while (connected) {
+                if (control.isEmpty() && outbound.isEmpty()) {
+                    available.acquire();
+                    available.drainPermits(); //the messages behind them are taken below
+                }
+                byte[] reply;
+                while ((reply = control.poll()) != null) {
+                    batch.add(reply);
+                }
+                outbound.drainTo(batch, MAX_BULK_BATCH);
+                if (batch.isEmpty()) {
+                    continue;
+                }
+                boolean end = false;
+                for (byte[] bytes : batch) {
+                    if (bytes == END_OF_STREAM) {
+                        end = true;
+                        break;
+                    }
+                    out.write(bytes);
+                }
+                out.flush();
+
+                byte[] traced = traceWriteBytes;
+                if (traced != null && containsSame(batch, traced)) {
+                    FrameTracer.recordWrite(System.nanoTime() - traceEnqueuedAt);
+                    traceWriteBytes = null;
+                }
+                batch.clear();
+                if (end) {
+                    return;
+                }
+            }
+        } catch (InterruptedException ignored) {
+            //the connection was closed
+        } catch (IOException ex) {
+            closeSilently();
+        }
+    }
+
+    private static boolean containsSame(List<byte[]> batch, byte[] bytes) {
+        for (byte[] b : batch) {
+            if (b == bytes) {
+                return true;
+            }
         }
+        return false;
     }
 
     private void closeSilently() {
@@ -0,0 +1,102 @@
+package bgu.spl.net.srv;
+
+/**
+ * Flight recorder events of the hot paths: frame processing, fan-out, SQL statements, worker pool scheduling
+ * and selector iterations. Each one is only written when it lasts longer than its threshold (1 ms by default,
+ * changed with the event settings of the recording) so latency outliers can be put next to the GC and lock
+ * events of the same recording.
+ * An event is started by a xxxStart() call and written by the matching xxxEnd() call. While nothing is recorded
+ * a start is a volatile read that returns null and the end returns right away, and on a JVM without the
+ * jdk.jfr module the event classes are never loaded.
+ */
+public final class BrokerEvents {
+
+    private static final boolean AVAILABLE = isAvailable();
+
+    static volatile boolean recording = false; //set by JfrEvents while a recording runs
+
+    static {
+        if (AVAILABLE) {
+            JfrEvents.install();
+        }
+    }
+
+    private BrokerEvents() {}
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    public static Object frameStart() {
+        return recording ? JfrEvents.frameStart() : null;
+    }
+
+    public static void frameEnd(Object event, String command, int connectionId) {
+        if (event != null) {
+            JfrEvents.frameEnd(event, command, connectionId);
+        }
+    }
+
+    public static Object fanOutStart() {
+        return recording ? JfrEvents.fanOutStart() : null;
+    }
+
+    public static void fanOutEnd(Object event, String destination, int subscribers) {
+        if (event != null) {
+            JfrEvents.fanOutEnd(event, destination, subscribers);
+        }
+    }
+
+    public static Object sqlStart() {
+        return recording ? JfrEvents.sqlStart() : null;
+    }
+
+    public static void sqlEnd(Object event, String sql) {
+        if (event != null) {
+            JfrEvents.sqlEnd(event, statementKind(sql));
+        }
+    }
+
+    /**
+     * Started when a task is submitted to the worker pool, ended when it starts running
+     */
+    static Object scheduleStart() {
+        return recording ? JfrEvents.scheduleStart() : null;
+    }
+
+    static void scheduleEnd(Object event) {
+        if (event != null) {
+            JfrEvents.scheduleEnd(event);
+        }
+    }
+
+    /**
+     * Started when the selector returns, ended when the loop is about to select again
+     */
+    static Object selectStart() {
+        return recording ? JfrEvents.selectStart() : null;
+    }
+
+    static void selectEnd(Object event, String loop, int selectedKeys) {
+        if (event != null) {
+            JfrEvents.selectEnd(event, loop, selectedKeys);
+        }
+    }
+
+    /**
+     * @return the first word of the statement in upper case, e.g. SELECT
+     */
+    private static String statementKind(String sql) {
+        String trimmed = sql.trim();
+        int end = 0;
+        while (end < trimmed.length() && Character.isLetter(trimmed.charAt(end))) {
+            end++;
+        }
+        return trimmed.substring(0, end).toUpperCase();
+    }
+}
@@ -0,0 +1,239 @@
+package bgu.spl.net.srv;
+
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A pool of direct byte buffers in a few size classes.
+ * Every thread keeps a small magazine per size class, so most leases and releases touch no shared state;
+ * magazines exchange half of their buffers with a global depot when they run empty or full.
+ * The off-heap memory the pool creates is capped, past the cap leases fall back to heap buffers that are
+ * never pooled, and the depot keeps at most half of the cap idle so the pool shrinks after a burst.
+ * In debug mode every lease remembers where it happened so buffers that are never released can be reported.
+ */
+public final class BufferPool {
+
+    private static final int[] SIZE_CLASSES = {1 << 11, 1 << 13, 1 << 15, 1 << 17}; //2k 8k 32k 128k
+    private static final int MAGAZINE_SIZE = 32;
+    private static final long LEAK_AGE_NANOS = 10_000_000_000L;
+
+    private static class Holder {
+        private static final BufferPool INSTANCE = new BufferPool();
+    }
+
+    public static BufferPool getInstance() {
+        return Holder.INSTANCE;
+    }
+
+    private final Depot[] depots = new Depot[SIZE_CLASSES.length];
+    private final ThreadLocal<Magazine[]> magazines = ThreadLocal.withInitial(() -> {
+        Magazine[] perClass = new Magazine[SIZE_CLASSES.length];
+        for (int i = 0; i < perClass.length; i++) {
+            perClass[i] = new Magazine();
+        }
+        return perClass;
+    });
+
+    private final AtomicLong directBytes = new AtomicLong(); //off-heap bytes created and not yet discarded
+    private final LongAdder leasedBytes = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder heapFallbacks = new LongAdder();
+    private final Map<ByteBuffer, Lease> leases = Collections.synchronizedMap(new IdentityHashMap<>());
+    private volatile long maxDirectBytes = 64L << 20;
+    private volatile boolean debug = false;
+
+    private BufferPool() {
+        for (int i = 0; i < depots.length; i++) {
+            depots[i] = new Depot();
+        }
+    }
+
+    /**
+     * @param maxDirectBytes cap on the off-heap memory the pool creates
+     * @param debug whether to track leases for leak detection
+     */
+    public void configure(long maxDirectBytes, boolean debug) {
+        this.maxDirectBytes = maxDirectBytes;
+        this.debug = debug;
+    }
+
+    /**
+     * @return a cleared buffer of at least the given capacity
+     */
+    public ByteBuffer lease(int minCapacity) {
+        int sizeClass = sizeClassOf(minCapacity);
+        if (sizeClass < 0) {
+            heapFallbacks.increment();
+            return ByteBuffer.allocate(minCapacity);
+        }
+
+        Magazine magazine = magazines.get()[sizeClass];
+        if (magazine.count == 0) {
+            depots[sizeClass].refill(magazine);
+        }
+
+        ByteBuffer buf;
+        if (magazine.count > 0) {
+            buf = magazine.items[--magazine.count];
+            magazine.items[magazine.count] = null;
+            buf.clear();
+            hits.increment();
+        } else {
+            buf = allocate(SIZE_CLASSES[sizeClass]);
+            misses.increment();
+        }
+
+        if (buf.isDirect()) {
+            leasedBytes.add(buf.capacity());
+            if (debug) {
+                leases.put(buf, new Lease());
+            }
+        }
+        return buf;
+    }
+
+    public void release(ByteBuffer buf) {
+        if (!buf.isDirect()) {
+            return; //heap fallbacks are left to the garbage collector
+        }
+        if (debug && leases.remove(buf) == null) {
+            new IllegalStateException("buffer released twice or not leased from the pool").printStackTrace();
+            return;
+        }
+        leasedBytes.add(-buf.capacity());
+
+        int sizeClass = sizeClassOf(buf.capacity());
+        Magazine magazine = magazines.get()[sizeClass];
+        if (magazine.count == MAGAZINE_SIZE) {
+            depots[sizeClass].spill(magazine, SIZE_CLASSES[sizeClass], MAGAZINE_SIZE / 2);
+        }
+        magazine.items[magazine.count++] = buf;
+    }
+
+    /**
+     * Returns the buffers in the calling thread's magazines to the depots, called by a thread that stops using
+     * the pool (e.g. a worker that retires) so its buffers are neither stranded nor counted as retained forever
+     */
+    public void flushThread() {
+        Magazine[] perClass = magazines.get();
+        for (int i = 0; i < perClass.length; i++) {
+            if (perClass[i].count > 0) {
+                depots[i].spill(perClass[i], SIZE_CLASSES[i], perClass[i].count);
+            }
+        }
+        magazines.remove();
+    }
+
+    private ByteBuffer allocate(int size) {
+        long current;
+        do {
+            current = directBytes.get();
+            if (current + size > maxDirectBytes) {
+                heapFallbacks.increment();
+                return ByteBuffer.allocate(size);
+            }
+        } while (!directBytes.compareAndSet(current, current + size));
+        return ByteBuffer.allocateDirect(size);
+    }
+
+    private static int sizeClassOf(int capacity) {
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            if (capacity <= SIZE_CLASSES[i]) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public void report(PrintStream out) {
+        long direct = directBytes.get();
+        long leased = leasedBytes.sum();
+        long h = hits.sum();
+        long m = misses.sum();
+        out.printf("  off-heap retained  %d bytes (cap %d)%n", direct, maxDirectBytes);
+        out.printf("  leased / idle      %d / %d bytes%n", leased, direct - leased);
+        out.printf("  hit rate           %.2f%% (%d hits, %d misses)%n", h + m == 0 ? 0 : 100.0 * h / (h + m), h, m);
+        out.printf("  heap fallbacks     %d%n", heapFallbacks.sum());
+        for (int i = 0; i < SIZE_CLASSES.length; i++) {
+            out.printf("  depot %6d bytes  %d buffers%n", SIZE_CLASSES[i], depots[i].size());
+        }
+        if (debug) {
+            reportLeaks(out);
+        }
+    }
+
+    private void reportLeaks(PrintStream out) {
+        long now = System.nanoTime();
+        int suspects = 0;
+        Lease oldest = null;
+        synchronized (leases) {
+            for (Lease lease : leases.values()) {
+                if (now - lease.nanos > LEAK_AGE_NANOS) {
+                    suspects++;
+                    if (oldest == null || lease.nanos < oldest.nanos) {
+                        oldest = lease;
+                    }
+                }
+            }
+        }
+        out.printf("  leak suspects      %d (leased more than %ds ago)%n", suspects, LEAK_AGE_NANOS / 1_000_000_000L);
+        if (oldest != null) {
+            out.println("  oldest suspect was leased at:");
+            for (StackTraceElement frame : oldest.where.getStackTrace()) {
+                out.println("    at " + frame);
+            }
+        }
+    }
+
+    private static class Magazine {
+        final ByteBuffer[] items = new ByteBuffer[MAGAZINE_SIZE];
+        int count = 0;
+    }
+
+    private class Depot {
+
+        private ByteBuffer[] stack = new ByteBuffer[MAGAZINE_SIZE];
+        private int count = 0;
+
+        synchronized void refill(Magazine magazine) {
+            int n = Math.min(count, MAGAZINE_SIZE / 2);
+            for (int i = 0; i < n; i++) {
+                magazine.items[magazine.count++] = stack[--count];
+                stack[count] = null;
+            }
+        }
+
+        synchronized void spill(Magazine magazine, int bufferSize, int buffers) {
+            long maxIdle = maxDirectBytes / 2 / SIZE_CLASSES.length / bufferSize;
+            for (int i = 0; i < buffers; i++) {
+                ByteBuffer buf = magazine.items[--magazine.count];
+                magazine.items[magazine.count] = null;
+                if (count >= maxIdle) {
+                    directBytes.addAndGet(-bufferSize); //discarded, the GC frees the memory
+                    continue;
+                }
+                if (count == stack.length) {
+                    ByteBuffer[] bigger = new ByteBuffer[stack.length * 2];
+                    System.arraycopy(stack, 0, bigger, 0, count);
+                    stack = bigger;
+                }
+                stack[count++] = buf;
+            }
+        }
+
+        synchronized int size() {
+            return count;
+        }
+    }
+
+    private static class Lease {
+        final long nanos = System.nanoTime();
+        final Throwable where = new Throwable();
+    }
+}
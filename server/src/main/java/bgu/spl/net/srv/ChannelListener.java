@@ -0,0 +1,12 @@
+package bgu.spl.net.srv;
+
+/**
+ * Told when a channel gets its first subscriber and when it loses its last one.
+ * The calls for one channel are made in order, while the channel's subscribers are locked, so they must be quick.
+ */
+public interface ChannelListener {
+
+    void channelActive(String channel);
+
+    void channelInactive(String channel);
+}
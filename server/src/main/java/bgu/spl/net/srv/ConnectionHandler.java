@@ -19,4 +19,31 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Encodes a message with this handler's encoder, the result may be passed to {@link #sendEncoded}
+     * of any handler of the same server.
+     */
+    byte[] encode(T msg);
+
+    /**
+     * Queues an already encoded message.
+     * @return an action that must run once the caller finished queueing for the bytes to be written, the
+     * same object is returned by all the handlers that share an I/O thread; null if nothing is left to do
+     */
+    Runnable sendEncoded(byte[] encoded);
+
+    /**
+     * @return how many messages passed to {@link #sendEncoded} are queued and not written yet; they count
+     * against the queue limit
+     */
+    default int queuedMessages() {
+        return 0;
+    }
+
+    /**
+     * Stops reading from the connection for a while, frames that were already read are still processed.
+     * A later call extends the pause if it ends later.
+     */
+    void pauseReading(long nanos);
+
 }
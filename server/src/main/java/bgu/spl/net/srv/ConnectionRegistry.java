@@ -0,0 +1,116 @@
+package bgu.spl.net.srv;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * A slab of connection handlers addressed by primitive int ids.
+ * The low bits of an id are the slot index and the high bits are the slot's generation, which is bumped
+ * every time the slot is reused, so a stale id of a closed connection never reaches a newer one.
+ * Freed slots are reused in FIFO order to make a generation wrap around as unlikely as possible.
+ * Lookups are lock free, adding and removing are guarded by the registry lock.
+ */
+class ConnectionRegistry<T> {
+
+    private static final int SLOT_BITS = 20;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+    private static final int GENERATION_MASK = (1 << (31 - SLOT_BITS)) - 1; //keeps the ids positive
+
+    private volatile AtomicReferenceArray<Entry<T>> slots = new AtomicReferenceArray<>(64);
+    private volatile int used = 0;
+    private int live = 0;
+    private int[] generations = new int[64];
+    private int[] freeSlots = new int[64];
+    private int freeHead = 0;
+    private int freeCount = 0;
+
+    public synchronized int add(ConnectionHandler<T> handler) {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[freeHead];
+            freeHead = (freeHead + 1) % freeSlots.length;
+            freeCount--;
+        } else {
+            if (used > SLOT_MASK) {
+                throw new IllegalStateException("too many connections");
+            }
+            if (used == slots.length()) {
+                grow();
+            }
+            slot = used;
+        }
+        int generation = (generations[slot] + 1) & GENERATION_MASK;
+        generations[slot] = generation;
+        int id = (generation << SLOT_BITS) | slot;
+        slots.set(slot, new Entry<>(id, handler));
+        if (slot == used) {
+            used = slot + 1; //published after the entry so iteration never misses it
+        }
+        live++;
+        return id;
+    }
+
+    public ConnectionHandler<T> get(int id) {
+        int slot = id & SLOT_MASK;
+        AtomicReferenceArray<Entry<T>> current = slots;
+        if (slot >= current.length()) {
+            return null;
+        }
+        Entry<T> entry = current.get(slot);
+        return entry != null && entry.id == id ? entry.handler : null;
+    }
+
+    public synchronized ConnectionHandler<T> remove(int id) {
+        int slot = id & SLOT_MASK;
+        if (slot >= used) {
+            return null;
+        }
+        Entry<T> entry = slots.get(slot);
+        if (entry == null || entry.id != id) {
+            return null;
+        }
+        slots.set(slot, null);
+        freeSlots[(freeHead + freeCount) % freeSlots.length] = slot;
+        freeCount++;
+        live--;
+        return entry.handler;
+    }
+
+    public synchronized int size() {
+        return live;
+    }
+
+    public void forEach(Consumer<ConnectionHandler<T>> action) {
+        AtomicReferenceArray<Entry<T>> current = slots;
+        int n = Math.min(used, current.length());
+        for (int i = 0; i < n; i++) {
+            Entry<T> entry = current.get(i);
+            if (entry != null) {
+                action.accept(entry.handler);
+            }
+        }
+    }
+
+    private void grow() {
+        int capacity = slots.length() * 2;
+        AtomicReferenceArray<Entry<T>> bigger = new AtomicReferenceArray<>(capacity);
+        for (int i = 0; i < used; i++) {
+            bigger.set(i, slots.get(i));
+        }
+        generations = Arrays.copyOf(generations, capacity);
+        freeSlots = new int[capacity]; //only called when there are no free slots
+        freeHead = 0;
+        slots = bigger;
+    }
+
+    private static class Entry<T> {
+        final int id;
+        final ConnectionHandler<T> handler;
+
+        Entry(int id, ConnectionHandler<T> handler) {
+            this.id = id;
+            this.handler = handler;
+        }
+    }
+}
@@ -1,12 +1,116 @@
 package bgu.spl.net.srv;
 
-import java.io.IOException;
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
 
 public interface Connections<T> {
 
     boolean send(int connectionId, T msg);
 
+    /**
+     * Queues an already encoded message on the connection as fan-out traffic, behind its replies
+     * @return false if the connection is closed
+     */
+    boolean sendEncoded(int connectionId, byte[] encoded);
+
+    /**
+     * Sends the same message to every subscriber of the channel
+     */
     void send(String channel, T msg);
 
+    /**
+     * Sends a message to every subscriber of the channel.
+     * The message is built (and encoded) once per distinct subscription id and shared by all the
+     * subscribers that use that id.
+     * @param messageFactory builds the message for a subscription id
+     * @return the number of subscribers the message was sent to
+     */
+    int broadcast(String channel, Function<String, T> messageFactory);
+
+    /**
+     * Sends an already encoded message to every subscriber of the channel, in the content encoding each
+     * subscriber negotiated.
+     * @param encoder builds the bytes for a subscription id and an encoding (null when none was negotiated),
+     *                it is called once per distinct pair
+     * @return the number of subscribers the message was sent to
+     */
+    int broadcastEncoded(String channel, BiFunction<String, String, byte[]> encoder);
+
+    /**
+     * Like {@link #broadcastEncoded(String, BiFunction)}, skipping the subscribers whose filter rejects the
+     * message's attributes; a skipped subscriber costs no encoding
+     */
+    int broadcastEncoded(String channel, MessageAttributes attributes, BiFunction<String, String, byte[]> encoder);
+
+    /**
+     * Sends several already encoded messages, each one to the subscribers of its channel. Every subscriber
+     * gets the messages meant for it in order, in a single write.
+     * @param channels the channel of every message
+     * @param attributes the attributes of every message the subscription filters look at
+     * @param encoders the encoder of every message, see {@link #broadcastEncoded(String, BiFunction)}
+     * @return the number of messages sent, counting every subscriber
+     */
+    int broadcastEncoded(List<String> channels, List<MessageAttributes> attributes,
+            List<BiFunction<String, String, byte[]>> encoders);
+
+    /**
+     * @return how many messages sent with {@link #sendEncoded} are still queued for the connection, -1 if it
+     * is closed; a sender that must not lose messages to the queue limit can pace itself by it
+     */
+    int queuedMessages(int connectionId);
+
+    /**
+     * Records the content encoding a connection negotiated, it applies to the subscriptions it makes afterwards
+     */
+    void setEncoding(int connectionId, String encoding);
+
+    /**
+     * Records a subscription id of the connection before the channel's messages are sent to it, see
+     * {@link #subscribe(String, int, String, Predicate)}
+     * @return false if the connection already uses the id or is closed
+     */
+    boolean reserve(int connectionId, String subscriptionId, String channel);
+
+    /**
+     * @return true if the connection has a subscription to the channel, whether or not its messages started
+     */
+    boolean isSubscribed(int connectionId, String channel);
+
+    /**
+     * Adds the connection to the channel's subscribers under the given subscription id
+     */
+    default void subscribe(String channel, int connectionId, String subscriptionId) {
+        subscribe(channel, connectionId, subscriptionId, null);
+    }
+
+    /**
+     * Adds the connection to the channel's subscribers, it only gets the messages the filter accepts
+     * @param filter null to get every message
+     */
+    void subscribe(String channel, int connectionId, String subscriptionId, Predicate<MessageAttributes> filter);
+
+    /**
+     * @return the channel of the subscription, null if the connection has no subscription with that id
+     */
+    String unsubscribe(int connectionId, String subscriptionId);
+
     void disconnect(int connectionId);
+
+    /**
+     * Stops reading from the connection for a while, e.g. to slow down a sender
+     */
+    void pauseReading(int connectionId, long nanos);
+
+    /**
+     * Sets the listener told when a channel gets its first subscriber or loses its last one, null for none
+     */
+    void setChannelListener(ChannelListener listener);
+
+    /**
+     * Adds an action told the id of every connection that is disconnected, whichever side closed it
+     */
+    void addDisconnectListener(IntConsumer listener);
 }
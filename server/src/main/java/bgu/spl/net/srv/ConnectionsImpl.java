@@ -1,17 +1,39 @@
 package bgu.spl.net.srv;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Predicate;
 
 public class ConnectionsImpl<T> implements Connections<T> {
 
-    private final Map<Integer, ConnectionHandler<T>> handlersMap = new ConcurrentHashMap<>();
+    private final ConnectionRegistry<T> registry = new ConnectionRegistry<>();
+
+    // channel -> connectionId -> subscription, the handlers are resolved once when subscribing
+    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Subscription<T>>> channels = new ConcurrentHashMap<>();
+
+    // connectionId -> subscriptionId -> channel
+    private final ConcurrentHashMap<Integer, ConcurrentHashMap<String, String>> connectionChannels = new ConcurrentHashMap<>();
+
+    // connectionId -> negotiated content encoding, absent when none
+    private final ConcurrentHashMap<Integer, String> encodings = new ConcurrentHashMap<>();
+
+    private volatile ChannelListener channelListener;
+    private final List<IntConsumer> disconnectListeners = new CopyOnWriteArrayList<>();
+    private final LongAdder filtered = new LongAdder();
 
     @Override
     public boolean send(int connectionId, T msg) {
-        ConnectionHandler<T> handler = handlersMap.get(connectionId);
+        ConnectionHandler<T> handler = registry.get(connectionId);
         if (handler != null) {
             handler.send(msg);
             return true;
@@ -20,19 +42,320 @@ public class ConnectionsImpl<T> implements Connections<T> {
 
     }
 
+    @Override
+    public boolean sendEncoded(int connectionId, byte[] encoded) {
+        ConnectionHandler<T> handler = registry.get(connectionId);
+        if (handler == null) {
+            return false;
+        }
+        Runnable flush = handler.sendEncoded(encoded);
+        if (flush != null) {
+            flush.run();
+        }
+        return true;
+    }
+
+    @Override
+    public int queuedMessages(int connectionId) {
+        ConnectionHandler<T> handler = registry.get(connectionId);
+        return handler == null ? -1 : handler.queuedMessages();
+    }
+
     @Override
     public void send(String channel, T msg) {
-        // we will not use that function
+        broadcast(channel, subscriptionId -> msg);
+    }
+
+    @Override
+    public int broadcast(String channel, Function<String, T> messageFactory) {
+        Map<String, byte[]> encodedPerSubscriptionId = new HashMap<>();
+        return fanOut(channel, MessageAttributes.NONE, subscription -> {
+            byte[] encoded = encodedPerSubscriptionId.get(subscription.id);
+            if (encoded == null) {
+                encoded = subscription.handler.encode(messageFactory.apply(subscription.id));
+                encodedPerSubscriptionId.put(subscription.id, encoded);
+            }
+            return encoded;
+        });
+    }
+
+    @Override
+    public int broadcastEncoded(String channel, BiFunction<String, String, byte[]> encoder) {
+        return broadcastEncoded(channel, MessageAttributes.NONE, encoder);
+    }
+
+    @Override
+    public int broadcastEncoded(String channel, MessageAttributes attributes, BiFunction<String, String, byte[]> encoder) {
+        EncodedCache<T> cache = new EncodedCache<>(encoder);
+        return fanOut(channel, attributes, cache::get);
+    }
+
+    @Override
+    public int broadcastEncoded(List<String> channels, List<MessageAttributes> attributes,
+            List<BiFunction<String, String, byte[]>> encoders) {
+        Map<ConnectionHandler<T>, List<byte[]>> perHandler = new LinkedHashMap<>();
+        int sent = 0;
+        for (int i = 0; i < channels.size(); i++) {
+            Map<Integer, Subscription<T>> subscribers = this.channels.get(channels.get(i));
+            if (subscribers == null) {
+                continue;
+            }
+            EncodedCache<T> cache = new EncodedCache<>(encoders.get(i));
+            for (Subscription<T> subscription : subscribers.values()) {
+                if (!subscription.accepts(attributes.get(i))) {
+                    filtered.increment();
+                    continue;
+                }
+                perHandler.computeIfAbsent(subscription.handler, k -> new ArrayList<>()).add(cache.get(subscription));
+                sent++;
+            }
+        }
+
+        List<Runnable> flushes = new ArrayList<>(1);
+        for (Map.Entry<ConnectionHandler<T>, List<byte[]>> batch : perHandler.entrySet()) {
+            Runnable flush = batch.getKey().sendEncoded(concat(batch.getValue()));
+            if (flush != null && !containsSame(flushes, flush)) {
+                flushes.add(flush);
+            }
+        }
+        for (Runnable flush : flushes) {
+            flush.run();
+        }
+        return sent;
+    }
+
+    private static byte[] concat(List<byte[]> parts) {
+        if (parts.size() == 1) {
+            return parts.get(0);
+        }
+        int length = 0;
+        for (byte[] part : parts) {
+            length += part.length;
+        }
+        byte[] all = new byte[length];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, all, offset, part.length);
+            offset += part.length;
+        }
+        return all;
+    }
+
+    private int fanOut(String channel, MessageAttributes attributes, Function<Subscription<T>, byte[]> encodedFor) {
+        Map<Integer, Subscription<T>> subscribers = channels.get(channel);
+        if (subscribers == null) {
+            return 0;
+        }
+
+        List<Runnable> flushes = new ArrayList<>(1);
+        int sent = 0;
+        for (Subscription<T> subscription : subscribers.values()) {
+            if (!subscription.accepts(attributes)) {
+                filtered.increment();
+                continue;
+            }
+            byte[] encoded = encodedFor.apply(subscription);
+            Runnable flush = subscription.handler.sendEncoded(encoded);
+            if (flush != null && !containsSame(flushes, flush)) {
+                flushes.add(flush);
+            }
+            sent++;
+        }
+        for (Runnable flush : flushes) {
+            flush.run();
+        }
+        return sent;
+    }
+
+    private static boolean containsSame(List<Runnable> list, Runnable r) {
+        for (Runnable other : list) {
+            if (other == r) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean reserve(int connectionId, String subscriptionId, String channel) {
+        if (registry.get(connectionId) == null) {
+            return false;
+        }
+        return connectionChannels.computeIfAbsent(connectionId, k -> new ConcurrentHashMap<>())
+                .putIfAbsent(subscriptionId, channel) == null;
+    }
+
+    @Override
+    public boolean isSubscribed(int connectionId, String channel) {
+        Map<String, String> subscriptions = connectionChannels.get(connectionId);
+        return subscriptions != null && subscriptions.containsValue(channel);
+    }
+
+    @Override
+    public void subscribe(String channel, int connectionId, String subscriptionId, Predicate<MessageAttributes> filter) {
+        ConnectionHandler<T> handler = registry.get(connectionId);
+        if (handler == null) {
+            return;
+        }
+        connectionChannels.computeIfAbsent(connectionId, k -> new ConcurrentHashMap<>()).put(subscriptionId, channel);
+        Subscription<T> subscription = new Subscription<>(handler, subscriptionId, encodings.get(connectionId), filter);
+        channels.compute(channel, (k, subscribers) -> {
+            if (subscribers == null) {
+                subscribers = new ConcurrentHashMap<>();
+                ChannelListener listener = channelListener;
+                if (listener != null) {
+                    listener.channelActive(channel);
+                }
+            }
+            subscribers.put(connectionId, subscription);
+            return subscribers;
+        });
+    }
+
+    @Override
+    public String unsubscribe(int connectionId, String subscriptionId) {
+        Map<String, String> subscriptions = connectionChannels.get(connectionId);
+        if (subscriptions == null) {
+            return null;
+        }
+        String channel = subscriptions.remove(subscriptionId);
+        if (channel != null) {
+            removeFromChannel(channel, connectionId);
+        }
+        return channel;
+    }
+
+    private void removeFromChannel(String channel, int connectionId) {
+        channels.computeIfPresent(channel, (k, subscribers) -> {
+            subscribers.remove(connectionId);
+            if (!subscribers.isEmpty()) {
+                return subscribers;
+            }
+            ChannelListener listener = channelListener;
+            if (listener != null) {
+                listener.channelInactive(channel);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public void setChannelListener(ChannelListener listener) {
+        channelListener = listener;
+    }
+
+    @Override
+    public void addDisconnectListener(IntConsumer listener) {
+        disconnectListeners.add(listener);
+    }
+
+    @Override
+    public void setEncoding(int connectionId, String encoding) {
+        if (encoding == null) {
+            encodings.remove(connectionId);
+        } else {
+            encodings.put(connectionId, encoding);
+        }
+    }
+
+    @Override
+    public void pauseReading(int connectionId, long nanos) {
+        ConnectionHandler<T> handler = registry.get(connectionId);
+        if (handler != null) {
+            handler.pauseReading(nanos);
+        }
     }
 
     @Override
     public void disconnect(int connectionId) {
-        handlersMap.remove(connectionId);
+        boolean registered = registry.remove(connectionId) != null;
+        encodings.remove(connectionId);
+        Map<String, String> subscriptions = connectionChannels.remove(connectionId);
+        if (subscriptions != null) {
+            for (String channel : subscriptions.values()) {
+                removeFromChannel(channel, connectionId);
+            }
+        }
+        if (registered) {
+            for (IntConsumer listener : disconnectListeners) {
+                listener.accept(connectionId);
+            }
+        }
     }
 
-    public void addConnection(int connectionId, ConnectionHandler<T> handler) {
+    /**
+     * Registers a new connection
+     * @return the connection id, ids of closed connections may be recycled with a new generation
+     */
+    public int addConnection(ConnectionHandler<T> handler) {
         if (handler == null)
-            return;
-        handlersMap.put(connectionId, handler);
+            throw new IllegalArgumentException("handler is null");
+        return registry.add(handler);
+    }
+
+    public int connectionCount() {
+        return registry.size();
+    }
+
+    /**
+     * @return how many deliveries subscription filters skipped
+     */
+    public long filteredMessages() {
+        return filtered.sum();
+    }
+
+    public void forEachConnection(Consumer<ConnectionHandler<T>> action) {
+        registry.forEach(action);
+    }
+
+    /**
+     * The encoded forms of one message, built once per distinct subscription id and encoding
+     */
+    private static class EncodedCache<T> {
+        private final BiFunction<String, String, byte[]> encoder;
+        private final Map<String, byte[]> plain = new HashMap<>();
+        private Map<String, Map<String, byte[]>> perEncoding;
+
+        EncodedCache(BiFunction<String, String, byte[]> encoder) {
+            this.encoder = encoder;
+        }
+
+        byte[] get(Subscription<T> subscription) {
+            Map<String, byte[]> cache = plain;
+            if (subscription.encoding != null) {
+                if (perEncoding == null) {
+                    perEncoding = new HashMap<>(2);
+                }
+                cache = perEncoding.get(subscription.encoding);
+                if (cache == null) {
+                    cache = new HashMap<>();
+                    perEncoding.put(subscription.encoding, cache);
+                }
+            }
+            byte[] encoded = cache.get(subscription.id);
+            if (encoded == null) {
+                encoded = encoder.apply(subscription.id, subscription.encoding);
+                cache.put(subscription.id, encoded);
+            }
+            return encoded;
+        }
+    }
+
+    private static class Subscription<T> {
+        final ConnectionHandler<T> handler;
+        final String id;
+        final String encoding;
+        final Predicate<MessageAttributes> filter;
+
+        Subscription(ConnectionHandler<T> handler, String id, String encoding, Predicate<MessageAttributes> filter) {
+            this.handler = handler;
+            this.id = id;
+            this.encoding = encoding;
+            this.filter = filter;
+        }
+
+        boolean accepts(MessageAttributes attributes) {
+            return filter == null || filter.test(attributes);
+        }
     }
 }
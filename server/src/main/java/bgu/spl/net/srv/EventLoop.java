@@ -0,0 +1,273 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * One event loop of a {@link PerCoreServer}: a thread with its own selector that accepts, reads, processes
+ * and writes for the connections it owns.
+ * Messages for a connection of another loop go through a single-producer queue from this loop to that one,
+ * the target loop is woken up once per fan-out and takes everything its peers published in one pass.
+ * Threads that are not event loops (e.g. the console) use a shared queue instead.
+ */
+final class EventLoop<T> implements Runnable {
+
+    private static final int OUTBOX_CAPACITY = 1 << 12;
+    private static final ThreadLocal<EventLoop<?>> CURRENT = new ThreadLocal<>();
+
+    private final PerCoreServer<T> server;
+    private final int index;
+    private final String name;
+    private final Selector selector;
+    private final ServerSocketChannel serverChan;
+    private final SelectionKey acceptKey;
+    private List<EventLoop<T>> loops;
+    private SpscQueue<Delivery<T>>[] outboxes; //outboxes[i] is consumed by loop i
+    private ArrayDeque<Delivery<T>>[] backlogs; //what did not fit in a full outbox, in order
+    private int backlogged = 0;
+    private final ConcurrentLinkedQueue<Delivery<T>> foreignInbox = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final ArrayDeque<PerCoreConnectionHandler<T>> dirtyHandlers = new ArrayDeque<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final Runnable wakeup = this::wakeup;
+    private final Consumer<Delivery<T>> receiver = this::receive;
+    private volatile int connectionCount = 0;
+
+    private final LongAdder wakeups = new LongAdder();
+    private final LongAdder crossDeliveries = new LongAdder();
+    private final LongAdder crossBatches = new LongAdder();
+    private final LongAdder outboxOverflows = new LongAdder();
+
+    EventLoop(PerCoreServer<T> server, int index, ServerSocketChannel serverChan) throws IOException {
+        this.server = server;
+        this.index = index;
+        this.name = "event-loop-" + index;
+        this.serverChan = serverChan;
+        this.selector = Selector.open();
+        this.acceptKey = serverChan.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    void connect(List<EventLoop<T>> loops) {
+        this.loops = loops;
+        outboxes = new SpscQueue[loops.size()];
+        backlogs = new ArrayDeque[loops.size()];
+        for (int i = 0; i < loops.size(); i++) {
+            outboxes[i] = new SpscQueue<>(OUTBOX_CAPACITY);
+            backlogs[i] = new ArrayDeque<>();
+        }
+    }
+
+    /**
+     * @return the loop the calling thread runs, or null if it is not an event loop
+     */
+    static EventLoop<?> current() {
+        return CURRENT.get();
+    }
+
+    int index() {
+        return index;
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    @Override
+    public void run() {
+        CURRENT.set(this);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                int selected;
+                if (backlogged > 0) {
+                    selected = selector.select(1); //come back soon to move the backlog to the outboxes
+                } else {
+                    selected = selector.select();
+                }
+                Object event = BrokerEvents.selectStart();
+                wakeupPending.set(false);
+                drainInboxes();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        server.accept(this, serverChan);
+                    } else {
+                        @SuppressWarnings("unchecked")
+                        PerCoreConnectionHandler<T> handler = (PerCoreConnectionHandler<T>) key.attachment();
+                        if (key.isReadable()) {
+                            handler.continueRead();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            handler.continueWrite();
+                        }
+                    }
+                }
+                selector.selectedKeys().clear();
+
+                if (backlogged > 0) {
+                    publishBacklogs();
+                }
+                flushDirtyHandlers();
+                BrokerEvents.selectEnd(event, name, selected);
+            }
+        } catch (ClosedSelectorException ex) {
+            //the server was closed
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            CURRENT.remove();
+        }
+    }
+
+    /**
+     * Queues bytes for a connection this loop owns, called by any thread
+     * @return an action the caller runs once it finished queueing, see {@link ConnectionHandler#sendEncoded}
+     */
+    Runnable deliver(PerCoreConnectionHandler<T> handler, byte[] bytes, boolean control) {
+        EventLoop<?> caller = current();
+        if (caller == this) {
+            handler.enqueue(bytes, control);
+            return null; //written at the end of the current iteration
+        }
+        if (caller != null && caller.server == server) {
+            @SuppressWarnings("unchecked")
+            EventLoop<T> producer = (EventLoop<T>) caller;
+            producer.post(index, new Delivery<>(handler, bytes, control));
+        } else {
+            foreignInbox.add(new Delivery<>(handler, bytes, control));
+        }
+        return wakeup;
+    }
+
+    private void post(int target, Delivery<T> delivery) {
+        ArrayDeque<Delivery<T>> backlog = backlogs[target];
+        if (!backlog.isEmpty() || !outboxes[target].offer(delivery)) {
+            if (backlog.isEmpty()) {
+                outboxOverflows.increment();
+            }
+            backlog.add(delivery);
+            backlogged++;
+        }
+    }
+
+    private void publishBacklogs() {
+        for (int target = 0; target < backlogs.length; target++) {
+            ArrayDeque<Delivery<T>> backlog = backlogs[target];
+            if (backlog.isEmpty()) {
+                continue;
+            }
+            while (!backlog.isEmpty() && outboxes[target].offer(backlog.peek())) {
+                backlog.poll();
+                backlogged--;
+            }
+            loops.get(target).wakeup();
+        }
+    }
+
+    private void drainInboxes() {
+        for (EventLoop<T> producer : loops) {
+            int n = producer.outboxes[index].drain(receiver);
+            if (n > 0) {
+                crossDeliveries.add(n);
+                crossBatches.increment();
+            }
+        }
+        Delivery<T> delivery;
+        while ((delivery = foreignInbox.poll()) != null) {
+            receive(delivery);
+        }
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void receive(Delivery<T> delivery) {
+        delivery.handler.enqueue(delivery.bytes, delivery.control);
+    }
+
+    /**
+     * Runs an action on this loop, called by any thread
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        wakeup();
+    }
+
+    /**
+     * Stops accepting on this loop for a while, called by the loop
+     */
+    void pauseAccepting(long nanos) {
+        acceptKey.interestOps(0);
+        Timers.schedule(() -> execute(() -> {
+            if (acceptKey.isValid()) {
+                acceptKey.interestOps(SelectionKey.OP_ACCEPT);
+            }
+        }), nanos);
+    }
+
+    /**
+     * Called by the owner of a handler that has bytes to write
+     */
+    void addDirtyHandler(PerCoreConnectionHandler<T> handler) {
+        dirtyHandlers.add(handler);
+    }
+
+    private void flushDirtyHandlers() {
+        PerCoreConnectionHandler<T> handler;
+        while ((handler = dirtyHandlers.poll()) != null) {
+            handler.flush();
+        }
+    }
+
+    void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            wakeups.increment();
+            selector.wakeup();
+        }
+    }
+
+    void connectionOpened() {
+        connectionCount++; //only the loop thread writes it
+    }
+
+    void connectionClosed() {
+        connectionCount--;
+    }
+
+    void report(PrintStream out) {
+        long deliveries = crossDeliveries.sum();
+        long batches = crossBatches.sum();
+        out.printf("  loop %-2d            %d connections, %d wakeups, %d cross-loop messages in %d batches (%.1f per batch), %d outbox overflows%n",
+                index, connectionCount, wakeups.sum(), deliveries, batches,
+                batches == 0 ? 0 : (double) deliveries / batches, outboxOverflows.sum());
+    }
+
+    void close() throws IOException {
+        selector.close();
+    }
+
+    private static final class Delivery<T> {
+        final PerCoreConnectionHandler<T> handler;
+        final byte[] bytes;
+        final boolean control;
+
+        Delivery(PerCoreConnectionHandler<T> handler, byte[] bytes, boolean control) {
+            this.handler = handler;
+            this.bytes = bytes;
+            this.control = control;
+        }
+    }
+}
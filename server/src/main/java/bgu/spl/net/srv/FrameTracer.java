@@ -0,0 +1,185 @@
+package bgu.spl.net.srv;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sampled per-frame latency tracing.
+ * The connection handlers keep the stage timestamps of the frame they are currently tracing in their own
+ * fields and only hand the finished durations in here, so a sampled frame costs a few nanoTime calls
+ * and an unsampled frame costs a counter increment.
+ */
+public final class FrameTracer {
+
+    public enum Stage {
+        READ,    // the socket read that brought the frame in
+        QUEUE,   // waiting in the ActorThreadPool for a worker
+        DECODE,  // decoding the bytes of the read up to the end of the frame
+        PROCESS, // protocol.process, including subscription lookups and fan-out
+        WRITE    // from enqueueing an outgoing frame until it was written to the socket
+    }
+
+    private static final int NOT_MEASURED = -1;
+    private static final int SLOWEST = 16;
+
+    private static volatile int sampleMask = 255;
+
+    private static final AtomicLongArray[] histograms = new AtomicLongArray[Stage.values().length];
+    private static final AtomicLongArray maxima = new AtomicLongArray(Stage.values().length);
+
+    // the slowest inbound frames, guarded by the class lock
+    private static final long[][] slowStages = new long[SLOWEST][4];
+    private static final long[] slowTotals = new long[SLOWEST];
+    private static final String[] slowFrames = new String[SLOWEST];
+    private static int slowCount = 0;
+    private static volatile long slowThreshold = 0;
+
+    static {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new AtomicLongArray(LatencyHistogram.BUCKETS);
+        }
+    }
+
+    private FrameTracer() {}
+
+    /**
+     * @param oneIn trace one frame in this many (rounded up to a power of two), 0 disables tracing
+     */
+    public static void setSampleRate(int oneIn) {
+        if (oneIn <= 0) {
+            sampleMask = -1;
+        } else {
+            int pow = Integer.highestOneBit(oneIn);
+            sampleMask = (pow < oneIn ? pow << 1 : pow) - 1;
+        }
+    }
+
+    /**
+     * @param counter a handler local counter (starting at a random value) that is incremented for every
+     *                candidate frame
+     * @return true if the current frame should be traced
+     */
+    public static boolean shouldSample(int counter) {
+        int mask = sampleMask;
+        return mask >= 0 && (counter & mask) == 0;
+    }
+
+    /**
+     * Records a traced inbound frame, stages that were not measured are passed as -1.
+     */
+    public static void recordFrame(Object frame, long read, long queue, long decode, long process) {
+        long total = record(Stage.READ, read) + record(Stage.QUEUE, queue)
+                + record(Stage.DECODE, decode) + record(Stage.PROCESS, process);
+        if (total > slowThreshold) {
+            offerSlow(frame, read, queue, decode, process, total);
+        }
+    }
+
+    public static void recordWrite(long nanos) {
+        record(Stage.WRITE, nanos);
+    }
+
+    private static long record(Stage stage, long nanos) {
+        if (nanos == NOT_MEASURED) {
+            return 0;
+        }
+        long micros = Math.max(nanos, 0) / 1000;
+        histograms[stage.ordinal()].incrementAndGet(LatencyHistogram.indexOf(micros));
+        long max;
+        while (micros > (max = maxima.get(stage.ordinal())) && !maxima.compareAndSet(stage.ordinal(), max, micros)) {
+            // retry
+        }
+        return nanos;
+    }
+
+    private static synchronized void offerSlow(Object frame, long read, long queue, long decode, long process,
+            long total) {
+        int slot;
+        if (slowCount < SLOWEST) {
+            slot = slowCount++;
+        } else {
+            slot = 0;
+            for (int i = 1; i < SLOWEST; i++) {
+                if (slowTotals[i] < slowTotals[slot]) {
+                    slot = i;
+                }
+            }
+            if (slowTotals[slot] >= total) {
+                return;
+            }
+        }
+        slowTotals[slot] = total;
+        slowStages[slot][0] = read;
+        slowStages[slot][1] = queue;
+        slowStages[slot][2] = decode;
+        slowStages[slot][3] = process;
+        slowFrames[slot] = describe(frame);
+
+        if (slowCount == SLOWEST) {
+            long min = Long.MAX_VALUE;
+            for (long t : slowTotals) {
+                min = Math.min(min, t);
+            }
+            slowThreshold = min;
+        }
+    }
+
+    private static String describe(Object frame) {
+        String text = String.valueOf(frame).trim();
+        int eol = text.indexOf('\n');
+        String firstLine = eol < 0 ? text : text.substring(0, eol);
+        return firstLine.length() > 40 ? firstLine.substring(0, 40) : firstLine;
+    }
+
+    public static synchronized void reset() {
+        for (int stage = 0; stage < histograms.length; stage++) {
+            for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+                histograms[stage].set(i, 0);
+            }
+            maxima.set(stage, 0);
+        }
+        slowCount = 0;
+        slowThreshold = 0;
+    }
+
+    /**
+     * Prints the stage histograms and the slowest traced frames.
+     */
+    public static synchronized void dump(PrintStream out) {
+        int mask = sampleMask;
+        out.println("=== Frame traces (" + (mask < 0 ? "tracing disabled" : "1 in " + (mask + 1) + " sampled")
+                + ") ===");
+        out.printf("%-8s %10s %10s %10s %10s %10s%n", "stage", "count", "p50(us)", "p90(us)", "p99(us)", "max(us)");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram h = snapshot(histograms[stage.ordinal()]);
+            long max = maxima.get(stage.ordinal());
+            out.printf("%-8s %10d %10d %10d %10d %10d%n", stage, h.count(), Math.min(h.percentile(50), max),
+                    Math.min(h.percentile(90), max), Math.min(h.percentile(99), max), max);
+        }
+
+        out.println("slowest frames (us):");
+        Integer[] order = new Integer[slowCount];
+        for (int i = 0; i < slowCount; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(slowTotals[b], slowTotals[a]));
+        for (int i : order) {
+            long[] s = slowStages[i];
+            out.printf("  total %8d  read %s  queue %s  decode %s  process %s  %s%n", slowTotals[i] / 1000,
+                    stageText(s[0]), stageText(s[1]), stageText(s[2]), stageText(s[3]), slowFrames[i]);
+        }
+    }
+
+    private static String stageText(long nanos) {
+        return nanos == NOT_MEASURED ? String.format("%8s", "-") : String.format("%8d", nanos / 1000);
+    }
+
+    private static LatencyHistogram snapshot(AtomicLongArray counts) {
+        LatencyHistogram h = new LatencyHistogram();
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            h.add(i, counts.get(i));
+        }
+        return h;
+    }
+}
@@ -0,0 +1,183 @@
+package bgu.spl.net.srv;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The event classes behind {@link BrokerEvents}, the only class that uses the jdk.jfr module
+ */
+final class JfrEvents {
+
+    private static final Set<Long> running = ConcurrentHashMap.newKeySet(); //ids of the running recordings
+
+    private JfrEvents() {}
+
+    static void install() {
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                update(recording);
+            }
+        });
+        if (FlightRecorder.isInitialized()) { //e.g. a recording started with the JVM
+            for (Recording recording : FlightRecorder.getFlightRecorder().getRecordings()) {
+                update(recording);
+            }
+        }
+    }
+
+    private static void update(Recording recording) {
+        if (recording.getState() == RecordingState.RUNNING) {
+            running.add(recording.getId());
+        } else {
+            running.remove(recording.getId());
+        }
+        BrokerEvents.recording = !running.isEmpty();
+    }
+
+    private static <E extends Event> E begin(E event) {
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static Object frameStart() {
+        return begin(new Frame());
+    }
+
+    static void frameEnd(Object started, String command, int connectionId) {
+        Frame event = (Frame) started;
+        event.end();
+        if (event.shouldCommit()) {
+            event.command = command;
+            event.connectionId = connectionId;
+            event.commit();
+        }
+    }
+
+    static Object fanOutStart() {
+        return begin(new FanOut());
+    }
+
+    static void fanOutEnd(Object started, String destination, int subscribers) {
+        FanOut event = (FanOut) started;
+        event.end();
+        if (event.shouldCommit()) {
+            event.destination = destination;
+            event.subscribers = subscribers;
+            event.commit();
+        }
+    }
+
+    static Object sqlStart() {
+        return begin(new Sql());
+    }
+
+    static void sqlEnd(Object started, String kind) {
+        Sql event = (Sql) started;
+        event.end();
+        if (event.shouldCommit()) {
+            event.kind = kind;
+            event.commit();
+        }
+    }
+
+    static Object scheduleStart() {
+        return begin(new ScheduleDelay());
+    }
+
+    static void scheduleEnd(Object started) {
+        ScheduleDelay event = (ScheduleDelay) started;
+        event.end();
+        if (event.shouldCommit()) {
+            event.commit();
+        }
+    }
+
+    static Object selectStart() {
+        return begin(new SelectorIteration());
+    }
+
+    static void selectEnd(Object started, String loop, int selectedKeys) {
+        SelectorIteration event = (SelectorIteration) started;
+        event.end();
+        if (event.shouldCommit()) {
+            event.loop = loop;
+            event.selectedKeys = selectedKeys;
+            event.commit();
+        }
+    }
+
+    @Name("bgu.stomp.Frame")
+    @Label("STOMP Frame")
+    @Description("A frame processed by the protocol")
+    @Category("STOMP Server")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class Frame extends Event {
+        @Label("Command")
+        String command;
+        @Label("Connection Id")
+        int connectionId;
+    }
+
+    @Name("bgu.stomp.FanOut")
+    @Label("Fan-out")
+    @Description("A SEND delivered to the subscribers of its destination")
+    @Category("STOMP Server")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class FanOut extends Event {
+        @Label("Destination")
+        String destination;
+        @Label("Subscribers")
+        int subscribers;
+    }
+
+    @Name("bgu.stomp.Sql")
+    @Label("SQL Statement")
+    @Description("A statement sent to the SQL server")
+    @Category("STOMP Server")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class Sql extends Event {
+        @Label("Kind")
+        String kind;
+    }
+
+    @Name("bgu.stomp.ScheduleDelay")
+    @Label("Worker Scheduling Delay")
+    @Description("From a task's submission to the worker pool until it starts running")
+    @Category("STOMP Server")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class ScheduleDelay extends Event {
+    }
+
+    @Name("bgu.stomp.SelectorIteration")
+    @Label("Selector Iteration")
+    @Description("The work of an event loop between two selects")
+    @Category("STOMP Server")
+    @Threshold("1 ms")
+    @StackTrace(false)
+    static class SelectorIteration extends Event {
+        @Label("Loop")
+        String loop;
+        @Label("Selected Keys")
+        int selectedKeys;
+    }
+}
@@ -0,0 +1,103 @@
+package bgu.spl.net.srv;
+
+/**
+ * Log-linear histogram of microsecond latencies (16 sub buckets per power of two, ~6% error).
+ * Not thread safe - the load generator records from its selector thread only, {@link FrameTracer} keeps its own
+ * atomic counters per bucket and copies them into a histogram when it prints them.
+ */
+public class LatencyHistogram {
+
+    private static final int LINEAR = 32;
+    private static final int SUB_BITS = 4;
+    public static final int BUCKETS = LINEAR + (64 - 5) * (1 << SUB_BITS);
+
+    private final long[] counts = new long[BUCKETS];
+    private long total = 0;
+    private long max = 0;
+    private long sum = 0;
+
+    public void record(long micros) {
+        if (micros < 0) {
+            micros = 0;
+        }
+        counts[indexOf(micros)]++;
+        total++;
+        sum += micros;
+        if (micros > max) {
+            max = micros;
+        }
+    }
+
+    /**
+     * Adds count values to the bucket at the given index, as if each was the upper bound of that bucket
+     */
+    public void add(int index, long count) {
+        if (count <= 0) {
+            return;
+        }
+        long value = upperBoundOf(index);
+        counts[index] += count;
+        total += count;
+        sum += value * count;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    public long count() {
+        return total;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public double mean() {
+        return total == 0 ? 0 : (double) sum / total;
+    }
+
+    /**
+     * @param p a percentile in [0, 100]
+     * @return the upper bound of the bucket holding the requested percentile, in micros
+     */
+    public long percentile(double p) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * p / 100.0);
+        if (rank < 1) {
+            rank = 1;
+        }
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), max);
+            }
+        }
+        return max;
+    }
+
+    /**
+     * @return the index of the bucket holding the given number of micros
+     */
+    public static int indexOf(long v) {
+        if (v < LINEAR) {
+            return (int) v;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(v);
+        int sub = (int) (v >>> (exp - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+        return LINEAR + (exp - 5) * (1 << SUB_BITS) + sub;
+    }
+
+    private static long upperBoundOf(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int exp = (index - LINEAR) / (1 << SUB_BITS) + 5;
+        int sub = (index - LINEAR) % (1 << SUB_BITS);
+        long base = 1L << exp;
+        long step = 1L << (exp - SUB_BITS);
+        return base + (sub + 1) * step - 1;
+    }
+}
@@ -0,0 +1,14 @@
+package bgu.spl.net.srv;
+
+/**
+ * The named attributes of a message that subscription filters look at, e.g. its headers
+ */
+public interface MessageAttributes {
+
+    MessageAttributes NONE = name -> null;
+
+    /**
+     * @return the value of the attribute, or null if the message does not have it
+     */
+    String get(String name);
+}
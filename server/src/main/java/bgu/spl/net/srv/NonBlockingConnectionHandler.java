@@ -7,65 +7,210 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
-    private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
-    private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    private static final BufferPool BUFFER_POOL = BufferPool.getInstance();
+    private static final AtomicLong DROPPED = new AtomicLong();
+    private static final LongAdder SUSPENSIONS = new LongAdder();
 
     private final MessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final WriteLanes lanes = new WriteLanes(new ConcurrentLinkedQueue<>(), new ConcurrentLinkedQueue<>());
+    private final WriteLanes.WriteListener onWritten = this::written;
     private final SocketChannel chan;
-    private final Reactor reactor;
+    private final Reactor<T> reactor;
+    private final int bufferSize;
+    private final int queueLimit;
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicInteger queued = new AtomicInteger(0);
+    private final int readBudget;
+    private final int maxBuffersPerRead;
+    private final int maxPendingTasks;
+    private final AtomicInteger pendingTasks = new AtomicInteger(0);
+    private final AtomicBoolean dirty = new AtomicBoolean(false);
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private volatile boolean readSuspended = false;
+    private volatile long readPausedUntil = 0; //System.nanoTime() before which the connection is not read
+    private volatile boolean readPaused = false;
+    private boolean writeBlocked = false; //selector thread only
+    private boolean inputEnded = false; //selector thread only
+    private final int captureId = TrafficCapture.connectionOpened();
+    private Runnable onClose = () -> {};
+
+    // frame tracing state, the inbound trace is owned by the task holding traceReadBuffer
+    @SuppressWarnings("rawtypes")
+    private static final AtomicReferenceFieldUpdater<NonBlockingConnectionHandler, ByteBuffer> TRACE_WRITE =
+            AtomicReferenceFieldUpdater.newUpdater(NonBlockingConnectionHandler.class, ByteBuffer.class, "traceWriteBuffer");
+    private int traceReadCounter = ThreadLocalRandom.current().nextInt();
+    private long traceReadStart;
+    private long traceReadEnd;
+    private volatile ByteBuffer traceReadBuffer;
+    private int traceWriteCounter = ThreadLocalRandom.current().nextInt();
+    private long traceEnqueuedAt;
+    private volatile ByteBuffer traceWriteBuffer;
 
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
             MessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor reactor) {
+            Reactor<T> reactor) {
+        this(reader, protocol, chan, reactor, ServerConfig.defaults());
+    }
+
+    public NonBlockingConnectionHandler(
+            MessageEncoderDecoder<T> reader,
+            MessagingProtocol<T> protocol,
+            SocketChannel chan,
+            Reactor<T> reactor,
+            ServerConfig config) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
         this.reactor = reactor;
+        this.bufferSize = config.getInt("buffer.size");
+        this.queueLimit = config.getInt("queue.limit");
+        this.overflowPolicy = config.getEnum("queue.overflow", OverflowPolicy.class);
+        this.readBudget = config.getInt("read.budget");
+        this.maxBuffersPerRead = Math.max(1, (readBudget + bufferSize - 1) / bufferSize);
+        this.maxPendingTasks = config.getInt("read.maxPendingTasks");
+    }
+
+    /**
+     * @return how many outgoing messages were dropped by handlers with the DROP overflow policy
+     */
+    public static long droppedMessages() {
+        return DROPPED.get();
+    }
+
+    /**
+     * @return how many times a connection stopped being read because its tasks piled up
+     */
+    public static long readSuspensions() {
+        return SUSPENSIONS.sum();
     }
 
+    /**
+     * Reads what the peer sent, up to the read budget, and returns a single task that processes all of it.
+     * Called by the selector thread only.
+     */
     public Runnable continueRead() {
-        ByteBuffer buf = leaseBuffer();
+        ByteBuffer[] batch = new ByteBuffer[maxBuffersPerRead];
+        int count = 0;
+        int total = 0;
+        boolean eof = false;
+        boolean traced = traceReadBuffer == null && FrameTracer.shouldSample(++traceReadCounter);
+        long readStart = traced ? System.nanoTime() : 0;
 
-        boolean success = false;
         try {
-            success = chan.read(buf) != -1;
+            while (count < batch.length && total < readBudget) {
+                ByteBuffer buf = BUFFER_POOL.lease(bufferSize);
+                int read = chan.read(buf);
+                if (read <= 0) {
+                    BUFFER_POOL.release(buf);
+                    eof = read < 0;
+                    break;
+                }
+                buf.flip();
+                batch[count++] = buf;
+                total += read;
+                if (buf.limit() < buf.capacity()) {
+                    break; //nothing more to read right now
+                }
+            }
         } catch (IOException ex) {
             ex.printStackTrace();
+            eof = true;
+        }
+
+        if (count == 0) {
+            if (eof) {
+                close();
+            }
+            return null;
+        }
+
+        if (eof) {
+            inputEnded = true; //the task closes the connection once it processed the last bytes
+            updateInterest();
         }
+        if (traced) {
+            traceReadStart = readStart;
+            traceReadEnd = System.nanoTime();
+            traceReadBuffer = batch[0];
+        }
+        taskSubmitted();
+        return processTask(batch, count, eof);
+    }
 
-        if (success) {
-            buf.flip();
-            return () -> {
-                try {
+    private Runnable processTask(ByteBuffer[] batch, int count, boolean eof) {
+        return () -> {
+            boolean tracing = batch[0] == traceReadBuffer;
+            long dequeued = tracing ? System.nanoTime() : 0;
+            try {
+                for (int i = 0; i < count; i++) {
+                    ByteBuffer buf = batch[i];
                     while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
+                        T nextMessage = encdec.decodeNext(buf);
                         if (nextMessage != null) {
+                            if (captureId >= 0) {
+                                TrafficCapture.frame(captureId, encdec.encode(nextMessage));
+                            }
+                            long decoded = tracing ? System.nanoTime() : 0;
                             T response = protocol.process(nextMessage);
+                            if (tracing) {
+                                FrameTracer.recordFrame(nextMessage, traceReadEnd - traceReadStart,
+                                        dequeued - traceReadEnd, decoded - dequeued, System.nanoTime() - decoded);
+                                traceReadBuffer = null;
+                                tracing = false;
+                            }
                             if (response != null) {
-                                writeQueue.add(ByteBuffer.wrap(encdec.encode(response)));
-                                reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                                send(response);
                             }
                         }
                     }
-                } finally {
-                    releaseBuffer(buf);
                 }
-            };
-        } else {
-            releaseBuffer(buf);
-            close();
-            return null;
+            } finally {
+                if (tracing) {
+                    traceReadBuffer = null; //the read did not complete a frame
+                }
+                for (int i = 0; i < count; i++) {
+                    BUFFER_POOL.release(batch[i]);
+                }
+                if (eof) {
+                    close();
+                }
+                taskFinished();
+            }
+        };
+    }
+
+    /**
+     * Stops reading from a connection whose unprocessed reads pile up, until the workers catch up
+     */
+    private void taskSubmitted() {
+        if (pendingTasks.incrementAndGet() >= maxPendingTasks && !readSuspended) {
+            readSuspended = true;
+            SUSPENSIONS.increment();
+            if (pendingTasks.get() <= maxPendingTasks / 2) {
+                readSuspended = false; //every task finished meanwhile, none of them saw the flag
+            } else {
+                updateInterest();
+            }
         }
+    }
 
+    private void taskFinished() {
+        if (pendingTasks.decrementAndGet() <= maxPendingTasks / 2 && readSuspended && markDirty()) {
+            reactor.wakeup();
+        }
     }
 
     public void close() {
@@ -74,6 +219,19 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        if (closed.compareAndSet(false, true)) {
+            if (captureId >= 0) {
+                TrafficCapture.closed(captureId);
+            }
+            onClose.run();
+        }
+    }
+
+    /**
+     * Sets an action that runs once the connection is closed, whichever side closed it
+     */
+    /*package*/ void onClose(Runnable action) {
+        onClose = action;
     }
 
     public boolean isClosed() {
@@ -81,45 +239,146 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     }
 
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
-            try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
-                    return;
-                } else {
-                    writeQueue.remove();
-                }
-            } catch (IOException ex) {
-                ex.printStackTrace();
-                close();
+        try {
+            if (!lanes.write(chan, onWritten)) {
+                writeBlocked = true;
+                updateInterest();
+                return;
             }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            close();
+            return;
         }
 
-        if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+        writeBlocked = false;
+        if (protocol.shouldTerminate()) close();
+        else updateInterest();
+    }
+
+    private void written(ByteBuffer buf, boolean control) {
+        if (!control) {
+            queued.decrementAndGet();
+        }
+        if (buf == traceWriteBuffer) {
+            FrameTracer.recordWrite(System.nanoTime() - traceEnqueuedAt);
+            traceWriteBuffer = null;
         }
     }
 
-    private static ByteBuffer leaseBuffer() {
-        ByteBuffer buff = BUFFER_POOL.poll();
-        if (buff == null) {
-            return ByteBuffer.allocateDirect(BUFFER_ALLOCATION_SIZE);
+    @Override
+    public synchronized void pauseReading(long nanos) {
+        long until = System.nanoTime() + nanos;
+        if (readPaused && until - readPausedUntil <= 0) {
+            return;
         }
+        readPausedUntil = until;
+        if (!readPaused) {
+            readPaused = true;
+            if (markDirty()) {
+                reactor.wakeup();
+            }
+            Timers.schedule(this::resumeReading, nanos);
+        }
+    }
+
+    private synchronized void resumeReading() {
+        long left = readPausedUntil - System.nanoTime();
+        if (left > 0) {
+            Timers.schedule(this::resumeReading, left); //the pause was extended
+        } else if (readPaused) {
+            readPaused = false;
+            if (markDirty()) {
+                reactor.wakeup();
+            }
+        }
+    }
 
-        buff.clear();
-        return buff;
+    /**
+     * Called by the selector thread for a handler that queued data or can resume reading since it was
+     * last looked at
+     */
+    /*package*/ void processDirty() {
+        dirty.set(false);
+        if (isClosed()) {
+            return;
+        }
+        if (readSuspended && pendingTasks.get() <= maxPendingTasks / 2) {
+            readSuspended = false;
+        }
+        continueWrite();
     }
 
-    private static void releaseBuffer(ByteBuffer buff) {
-        BUFFER_POOL.add(buff);
+    /**
+     * @return true if the caller is the one that must make sure the selector wakes up
+     */
+    @SuppressWarnings("unchecked")
+    private boolean markDirty() {
+        if (dirty.compareAndSet(false, true)) {
+            reactor.addDirtyHandler(this);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Sets the interest ops from the connection state, called by the selector thread
+     */
+    private void updateInterest() {
+        if (isClosed()) {
+            return;
+        }
+        int ops = (readSuspended || readPaused || inputEnded ? 0 : SelectionKey.OP_READ) | (writeBlocked ? SelectionKey.OP_WRITE : 0);
+        reactor.updateInterestedOps(chan, ops);
+    }
+
+    /**
+     * Queues a fan-out message, subject to the queue limit
+     */
+    private void enqueue(ByteBuffer buf) {
+        if (queued.incrementAndGet() > queueLimit) {
+            queued.decrementAndGet();
+            if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+                close();
+            } else {
+                DROPPED.incrementAndGet();
+            }
+            return;
+        }
+        traceWrite(buf);
+        lanes.addBulk(buf);
+    }
+
+    private void traceWrite(ByteBuffer buf) {
+        if (FrameTracer.shouldSample(++traceWriteCounter) && TRACE_WRITE.compareAndSet(this, null, buf)) {
+            traceEnqueuedAt = System.nanoTime();
+        }
     }
 
     @Override
     public void send(T msg) {
-        writeQueue.add(ByteBuffer.wrap(encdec.encode(msg)));
-        reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        ByteBuffer buf = ByteBuffer.wrap(encdec.encode(msg));
+        traceWrite(buf);
+        lanes.addControl(buf); //replies and direct sends go ahead of queued fan-out
+        if (markDirty()) {
+            reactor.wakeup();
+        }
+    }
+
+    @Override
+    public byte[] encode(T msg) {
+        return encdec.encode(msg);
+    }
+
+    @Override
+    public Runnable sendEncoded(byte[] encoded) {
+        enqueue(ByteBuffer.wrap(encoded));
+        return markDirty() ? reactor.wakeupAction() : null;
+    }
+
+    @Override
+    public int queuedMessages() {
+        return queued.get();
     }
         
    
@@ -0,0 +1,11 @@
+package bgu.spl.net.srv;
+
+/**
+ * What a connection handler does when a peer does not keep up and its outbound queue is full
+ */
+public enum OverflowPolicy {
+    /** the new message is dropped, the connection stays open */
+    DROP,
+    /** the connection is closed */
+    DISCONNECT
+}
@@ -0,0 +1,274 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.api.MessagingProtocol;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A connection of a {@link PerCoreServer}.
+ * Everything but {@link #send} and {@link #sendEncoded} runs on the event loop that owns the connection: what
+ * is read is decoded and processed right away and the replies are written at the end of the same iteration,
+ * ahead of queued fan-out messages (see {@link WriteLanes}).
+ */
+public class PerCoreConnectionHandler<T> implements ConnectionHandler<T> {
+
+    private static final BufferPool BUFFER_POOL = BufferPool.getInstance();
+    private static final AtomicLong DROPPED = new AtomicLong();
+
+    private final MessagingProtocol<T> protocol;
+    private final MessageEncoderDecoder<T> encdec;
+    private final SocketChannel chan;
+    private final EventLoop<T> loop;
+    private final int bufferSize;
+    private final int readBudget;
+    private final int queueLimit;
+    private final OverflowPolicy overflowPolicy;
+
+    // owned by the event loop
+    private final WriteLanes lanes = new WriteLanes(new ArrayDeque<>(), new ArrayDeque<>());
+    private final WriteLanes.WriteListener onWritten = this::written;
+    private volatile int bulkQueued = 0; //written by the event loop only
+    private SelectionKey key;
+    private boolean dirty = false;
+    private boolean writeBlocked = false;
+    private boolean closed = false;
+    private long readPausedUntil = 0; //System.nanoTime() before which the connection is not read
+    private boolean readPaused = false;
+    private Runnable onClose = () -> {};
+    private final int captureId = TrafficCapture.connectionOpened();
+
+    PerCoreConnectionHandler(
+            MessageEncoderDecoder<T> reader,
+            MessagingProtocol<T> protocol,
+            SocketChannel chan,
+            EventLoop<T> loop,
+            ServerConfig config) {
+        this.chan = chan;
+        this.encdec = reader;
+        this.protocol = protocol;
+        this.loop = loop;
+        this.bufferSize = config.getInt("buffer.size");
+        this.readBudget = config.getInt("read.budget");
+        this.queueLimit = config.getInt("queue.limit");
+        this.overflowPolicy = config.getEnum("queue.overflow", OverflowPolicy.class);
+    }
+
+    /**
+     * @return how many outgoing messages were dropped by handlers with the DROP overflow policy
+     */
+    public static long droppedMessages() {
+        return DROPPED.get();
+    }
+
+    /*package*/ void register(SelectionKey key) {
+        this.key = key;
+    }
+
+    /*package*/ void onClose(Runnable action) {
+        onClose = action;
+    }
+
+    /**
+     * Reads and processes what the peer sent, up to the read budget
+     */
+    /*package*/ void continueRead() {
+        ByteBuffer buf = BUFFER_POOL.lease(bufferSize);
+        boolean eof = false;
+        int total = 0;
+        try {
+            while (total < readBudget && !closed && !readPaused) {
+                buf.clear();
+                int read = chan.read(buf);
+                if (read <= 0) {
+                    eof = read < 0;
+                    break;
+                }
+                total += read;
+                buf.flip();
+                while (buf.hasRemaining() && !closed) {
+                    T nextMessage = encdec.decodeNext(buf);
+                    if (nextMessage != null) {
+                        if (captureId >= 0) {
+                            TrafficCapture.frame(captureId, encdec.encode(nextMessage));
+                        }
+                        T response = protocol.process(nextMessage);
+                        if (response != null) {
+                            send(response);
+                        }
+                    }
+                }
+                if (read < buf.capacity()) {
+                    break; //nothing more to read right now
+                }
+            }
+        } catch (IOException | RuntimeException ex) {
+            ex.printStackTrace();
+            eof = true;
+        } finally {
+            BUFFER_POOL.release(buf);
+        }
+
+        if (eof) {
+            continueWrite();
+            close();
+        }
+    }
+
+    /**
+     * Called by the event loop for a handler that queued bytes in this iteration
+     */
+    /*package*/ void flush() {
+        dirty = false;
+        if (!writeBlocked) {
+            continueWrite();
+        }
+    }
+
+    /*package*/ void continueWrite() {
+        if (closed) {
+            return;
+        }
+        try {
+            if (!lanes.write(chan, onWritten)) {
+                if (!writeBlocked) {
+                    writeBlocked = true;
+                    key.interestOps(readOps() | SelectionKey.OP_WRITE);
+                }
+                return;
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            close();
+            return;
+        }
+
+        if (writeBlocked) {
+            writeBlocked = false;
+            key.interestOps(readOps());
+        }
+        if (protocol.shouldTerminate()) {
+            close();
+        }
+    }
+
+    private int readOps() {
+        return readPaused ? 0 : SelectionKey.OP_READ;
+    }
+
+    /**
+     * Called by the protocol while the owning event loop processes a frame of this connection
+     */
+    @Override
+    public void pauseReading(long nanos) {
+        long until = System.nanoTime() + nanos;
+        if (closed || (readPaused && until - readPausedUntil <= 0)) {
+            return;
+        }
+        readPausedUntil = until;
+        if (!readPaused) {
+            readPaused = true;
+            key.interestOps(writeBlocked ? SelectionKey.OP_WRITE : 0);
+            Timers.schedule(() -> loop.execute(this::resumeReading), nanos);
+        }
+    }
+
+    private void resumeReading() {
+        long left = readPausedUntil - System.nanoTime();
+        if (left > 0) {
+            Timers.schedule(() -> loop.execute(this::resumeReading), left); //the pause was extended
+        } else if (readPaused && !closed) {
+            readPaused = false;
+            key.interestOps(readOps() | (writeBlocked ? SelectionKey.OP_WRITE : 0));
+        }
+    }
+
+    private void written(ByteBuffer buf, boolean control) {
+        if (!control) {
+            bulkQueued--;
+        }
+    }
+
+    /**
+     * Queues bytes to write, called by the owning event loop
+     * @param control whether they are a reply or direct send, written ahead of fan-out messages
+     */
+    /*package*/ void enqueue(byte[] bytes, boolean control) {
+        if (closed) {
+            return;
+        }
+        if (control) {
+            lanes.addControl(ByteBuffer.wrap(bytes));
+        } else if (bulkQueued >= queueLimit) {
+            if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+                close();
+            } else {
+                DROPPED.incrementAndGet();
+            }
+            return;
+        } else {
+            lanes.addBulk(ByteBuffer.wrap(bytes));
+            bulkQueued++;
+        }
+        if (!dirty) {
+            dirty = true;
+            loop.addDirtyHandler(this);
+        }
+    }
+
+    /**
+     * Closes the connection, called by the owning event loop
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        lanes.clear();
+        if (key != null) {
+            key.cancel();
+        }
+        try {
+            chan.close();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        }
+        loop.connectionClosed();
+        if (captureId >= 0) {
+            TrafficCapture.closed(captureId);
+        }
+        onClose.run();
+    }
+
+    @Override
+    public void send(T msg) {
+        Runnable flush = loop.deliver(this, encdec.encode(msg), true);
+        if (flush != null) {
+            flush.run();
+        }
+    }
+
+    @Override
+    public byte[] encode(T msg) {
+        return encdec.encode(msg);
+    }
+
+    @Override
+    public Runnable sendEncoded(byte[] encoded) {
+        return loop.deliver(this, encoded, false);
+    }
+
+    /**
+     * @return the messages the event loop queued, not the ones handed to it since its last iteration
+     */
+    @Override
+    public int queuedMessages() {
+        return bulkQueued;
+    }
+}
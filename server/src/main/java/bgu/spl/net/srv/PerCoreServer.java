@@ -0,0 +1,170 @@
+package bgu.spl.net.srv;
+
+import bgu.spl.net.api.MessageEncoderDecoder;
+import bgu.spl.net.api.MessagingProtocol;
+import bgu.spl.net.api.StompMessagingProtocol;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * A server with one event loop per core and no worker pool.
+ * Every loop listens on the shared server socket and owns the connections it accepts: it reads, processes and
+ * writes them itself, so a frame and its reply never change threads. Only messages for connections of other
+ * loops (fan-out) cross threads, through batched single-producer queues between the loops.
+ * Processing is inline, so a slow protocol call (e.g. the database) delays the other connections of its loop.
+ */
+public class PerCoreServer<T> implements Server<T> {
+
+    private final ServerConfig config;
+    private final int port;
+    private final Supplier<MessagingProtocol<T>> protocolFactory;
+    private final Supplier<MessageEncoderDecoder<T>> readerFactory;
+    private final ConnectionsImpl<T> connections = new ConnectionsImpl<>();
+    private final AcceptControl admission;
+    private volatile List<EventLoop<T>> loops = Collections.emptyList();
+    private volatile ServerSocketChannel serverSock;
+
+    public PerCoreServer(
+            ServerConfig config,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this.config = config;
+        this.port = port;
+        this.protocolFactory = protocolFactory;
+        this.readerFactory = readerFactory;
+        this.admission = new AcceptControl(config);
+        BufferPool.getInstance().configure(config.getLong("buffer.poolMaxBytes"), config.getBoolean("buffer.debug"));
+    }
+
+    @Override
+    public void serve() {
+        List<Thread> threads = new ArrayList<>();
+        try (ServerSocketChannel serverSock = ServerSocketChannel.open()) {
+            this.serverSock = serverSock;
+            if (config.getInt("tcp.receiveBuffer") > 0) {
+                serverSock.setOption(StandardSocketOptions.SO_RCVBUF, config.getInt("tcp.receiveBuffer"));
+            }
+            serverSock.bind(new InetSocketAddress(port), config.getInt("tcp.backlog"));
+            serverSock.configureBlocking(false);
+
+            List<EventLoop<T>> created = new ArrayList<>();
+            int count = Math.max(1, config.getInt("loops"));
+            for (int i = 0; i < count; i++) {
+                created.add(new EventLoop<>(this, i, serverSock));
+            }
+            for (EventLoop<T> loop : created) {
+                loop.connect(created);
+            }
+            loops = created;
+            System.out.println("Server started");
+            registerStats();
+
+            for (int i = 1; i < count; i++) {
+                Thread thread = new Thread(created.get(i), "event-loop-" + i);
+                threads.add(thread);
+                thread.start();
+            }
+            created.get(0).run(); //the first loop runs on the serving thread
+        } catch (IOException ex) {
+            ex.printStackTrace();
+        } finally {
+            closeLoops();
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+
+        System.out.println("server closed!!!");
+    }
+
+    /**
+     * Accepts up to a batch of connections for the given loop, other loops may have taken them already
+     */
+    /*package*/ void accept(EventLoop<T> loop, ServerSocketChannel serverChan) throws IOException {
+        long ready = System.nanoTime();
+        for (int i = 0; i < admission.batch(); i++) {
+            long wait = admission.delay();
+            if (wait > 0) {
+                loop.pauseAccepting(wait);
+                return;
+            }
+            SocketChannel clientChan = serverChan.accept();
+            if (clientChan == null) {
+                return;
+            }
+            if (!admission.admit(clientChan, connections.connectionCount())) {
+                continue;
+            }
+            clientChan.configureBlocking(false);
+            config.configure(clientChan);
+            MessagingProtocol<T> protocol = protocolFactory.get();
+            PerCoreConnectionHandler<T> handler = new PerCoreConnectionHandler<>(
+                    readerFactory.get(),
+                    protocol,
+                    clientChan,
+                    loop,
+                    config);
+            int connectionId = connections.addConnection(handler);
+            handler.onClose(() -> connections.disconnect(connectionId));
+            if (protocol instanceof StompMessagingProtocol) {
+                ((StompMessagingProtocol<T>) protocol).start(connectionId, connections);
+            }
+            handler.register(clientChan.register(loop.selector(), SelectionKey.OP_READ, handler));
+            loop.connectionOpened();
+            admission.accepted(ready);
+        }
+    }
+
+    private void registerStats() {
+        ServerStats.register("percore", out -> {
+            out.printf("  connections        %d%n", connections.connectionCount());
+            out.printf("  dropped messages   %d%n", PerCoreConnectionHandler.droppedMessages());
+            out.printf("  filtered messages  %d%n", connections.filteredMessages());
+            out.printf("  control overtakes  %d%n", WriteLanes.overtakes());
+            for (EventLoop<T> loop : loops) {
+                loop.report(out);
+            }
+        });
+        ServerStats.register("accept", admission::report);
+        ServerStats.register("buffers", BufferPool.getInstance()::report);
+    }
+
+    private void closeLoops() {
+        for (EventLoop<T> loop : loops) {
+            try {
+                loop.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public Connections<T> getConnections() {
+        return connections;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closeLoops();
+        ServerSocketChannel sock = serverSock;
+        if (sock != null) {
+            sock.close();
+        }
+    }
+}
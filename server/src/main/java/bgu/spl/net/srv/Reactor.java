@@ -6,39 +6,60 @@ import bgu.spl.net.api.StompMessagingProtocol;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
 import java.nio.channels.ClosedSelectorException;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Supplier;
 
 public class Reactor<T> implements Server<T> {
 
+    private final ServerConfig config;
     private final int port;
     private final Supplier<MessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
     private final ActorThreadPool pool;
+    private final AcceptControl admission;
     private Selector selector;
     private ConnectionsImpl<T> connections;
-    private int connectionIdCounter;
 
     private Thread selectorThread;
     private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
 
+    // handlers that queued outgoing data or may resume reading since the selector last looked,
+    // each one appears at most once
+    private final ConcurrentLinkedQueue<NonBlockingConnectionHandler<T>> dirtyHandlers = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final LongAdder wakeups = new LongAdder();
+    private final Runnable wakeup = this::wakeup;
+
     public Reactor(
             int numThreads,
             int port,
             Supplier<MessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory) {
+        this(ServerConfig.defaults().with("workers", String.valueOf(numThreads)), port, protocolFactory, readerFactory);
+    }
 
-        this.pool = new ActorThreadPool(numThreads);
+    public Reactor(
+            ServerConfig config,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory) {
+
+        this.config = config;
+        this.pool = new ActorThreadPool(config);
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
         this.connections = new ConnectionsImpl<>();
-        this.connectionIdCounter = 0;
+        this.admission = new AcceptControl(config);
+        BufferPool.getInstance().configure(config.getLong("buffer.poolMaxBytes"), config.getBoolean("buffer.debug"));
 
     }
 
@@ -50,28 +71,36 @@ public class Reactor<T> implements Server<T> {
 
             this.selector = selector; //just to be able to close
 
-            serverSock.bind(new InetSocketAddress(port));
+            if (config.getInt("tcp.receiveBuffer") > 0) {
+                serverSock.setOption(StandardSocketOptions.SO_RCVBUF, config.getInt("tcp.receiveBuffer"));
+            }
+            serverSock.bind(new InetSocketAddress(port), config.getInt("tcp.backlog"));
             serverSock.configureBlocking(false);
             serverSock.register(selector, SelectionKey.OP_ACCEPT);
 			System.out.println("Server started");
+            registerStats();
 
             while (!Thread.currentThread().isInterrupted()) {
 
-                selector.select();
+                int selected = selector.select();
+                Object event = BrokerEvents.selectStart();
+                wakeupPending.set(false);
                 runSelectionThreadTasks();
+                processDirtyHandlers();
 
                 for (SelectionKey key : selector.selectedKeys()) {
 
                     if (!key.isValid()) {
                         continue;
                     } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
+                        handleAccept(key, serverSock, selector);
                     } else {
                         handleReadWrite(key);
                     }
                 }
 
                 selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
+                BrokerEvents.selectEnd(event, "reactor", selected);
 
             }
 
@@ -99,21 +128,102 @@ public class Reactor<T> implements Server<T> {
     }
 
 
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
-        SocketChannel clientChan = serverChan.accept();
-        clientChan.configureBlocking(false);
-        int connectionId = connectionIdCounter++;
-        MessagingProtocol <T> protocol = protocolFactory.get();
-        if (protocol instanceof StompMessagingProtocol){
-            ((StompMessagingProtocol <T>)protocol).start(connectionId, connections);
+    /**
+     * Called by a handler the first time it queues outgoing data or may resume reading since the selector
+     * last looked at it. The caller then wakes the selector up, immediately or once it finished queueing
+     * to other handlers.
+     */
+    /*package*/ void addDirtyHandler(NonBlockingConnectionHandler<T> handler) {
+        dirtyHandlers.add(handler);
+    }
+
+    /**
+     * Wakes the selector up unless a wake up is already on its way
+     */
+    /*package*/ void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            wakeups.increment();
+            selector.wakeup();
+        }
+    }
+
+    /*package*/ Runnable wakeupAction() {
+        return wakeup;
+    }
+
+    private void processDirtyHandlers() {
+        NonBlockingConnectionHandler<T> handler;
+        while ((handler = dirtyHandlers.poll()) != null) {
+            handler.processDirty();
+        }
+    }
+
+    private void registerStats() {
+        ServerStats.Rate wakeupRate = new ServerStats.Rate();
+        ServerStats.register("reactor", out -> {
+            long count = wakeups.sum();
+            out.printf("  connections        %d%n", connections.connectionCount());
+            out.printf("  selector wakeups   %d (%.1f/s since last report)%n", count, wakeupRate.perSecond(count));
+            out.printf("  dropped messages   %d%n", NonBlockingConnectionHandler.droppedMessages());
+            out.printf("  filtered messages  %d%n", connections.filteredMessages());
+            out.printf("  read suspensions   %d%n", NonBlockingConnectionHandler.readSuspensions());
+            out.printf("  control overtakes  %d%n", WriteLanes.overtakes());
+        });
+        ServerStats.register("workers", pool::report);
+        ServerStats.register("accept", admission::report);
+        ServerStats.register("buffers", BufferPool.getInstance()::report);
+    }
+
+    /**
+     * Accepts the pending connections, up to a batch per wake up
+     */
+    private void handleAccept(SelectionKey key, ServerSocketChannel serverChan, Selector selector) throws IOException {
+        long ready = System.nanoTime();
+        for (int i = 0; i < admission.batch(); i++) {
+            long wait = admission.delay();
+            if (wait > 0) {
+                pauseAccepting(key, wait);
+                return;
+            }
+            SocketChannel clientChan = serverChan.accept();
+            if (clientChan == null) {
+                return;
+            }
+            if (!admission.admit(clientChan, connections.connectionCount())) {
+                continue;
+            }
+            clientChan.configureBlocking(false);
+            config.configure(clientChan);
+            MessagingProtocol <T> protocol = protocolFactory.get();
+            final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
+                    readerFactory.get(),
+                    protocol,
+                    clientChan,
+                    this,
+                    config);
+            int connectionId = connections.addConnection(handler);
+            handler.onClose(() -> connections.disconnect(connectionId));
+            if (protocol instanceof StompMessagingProtocol){
+                ((StompMessagingProtocol <T>)protocol).start(connectionId, connections);
+            }
+            clientChan.register(selector, SelectionKey.OP_READ, handler);
+            admission.accepted(ready);
         }
-        final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
-                readerFactory.get(),
-                protocol,
-                clientChan,
-                this);
-        connections.addConnection(connectionId, handler);
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
+    }
+
+    /**
+     * Stops selecting the server socket until the accept rate allows another connection
+     */
+    private void pauseAccepting(SelectionKey key, long nanos) {
+        key.interestOps(0);
+        Timers.schedule(() -> {
+            selectorTasks.add(() -> {
+                if (key.isValid()) {
+                    key.interestOps(SelectionKey.OP_ACCEPT);
+                }
+            });
+            selector.wakeup();
+        }, nanos);
     }
 
     private void handleReadWrite(SelectionKey key) {
@@ -138,6 +248,11 @@ public class Reactor<T> implements Server<T> {
         }
     }
 
+    @Override
+    public Connections<T> getConnections() {
+        return connections;
+    }
+
     @Override
     public void close() throws IOException {
         selector.close();
@@ -14,6 +14,11 @@ public interface Server<T> extends Closeable {
      */
     void serve();
 
+    /**
+     * @return the connections of this server, e.g. for sending server originated messages
+     */
+    Connections<T> getConnections();
+
     /**
      *This function returns a new instance of a thread per client pattern server
      * @param port The port for the server socket
@@ -26,8 +31,25 @@ public interface Server<T> extends Closeable {
             int port,
             Supplier<MessagingProtocol<T> > protocolFactory,
             Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory) {
+        return threadPerClient(ServerConfig.defaults(), port, protocolFactory, encoderDecoderFactory);
+    }
 
-        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory) {
+    /**
+     * This function returns a new instance of a thread per client pattern server
+     * @param config The tuning settings of the server
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new Thread per client server
+     */
+    public static <T> Server<T>  threadPerClient(
+            ServerConfig config,
+            int port,
+            Supplier<MessagingProtocol<T> > protocolFactory,
+            Supplier<MessageEncoderDecoder<T> > encoderDecoderFactory) {
+
+        return new BaseServer<T>(config, port, protocolFactory, encoderDecoderFactory) {
             @Override
             protected void execute(BlockingConnectionHandler<T>  handler) {
                 new Thread(handler).start();
@@ -50,7 +72,42 @@ public interface Server<T> extends Closeable {
             int port,
             Supplier<MessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
-        return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory);
+        ServerConfig config = ServerConfig.defaults().with("workers", String.valueOf(nthreads));
+        return reactor(config, port, protocolFactory, encoderDecoderFactory);
+    }
+
+    /**
+     * This function returns a new instance of a reactor pattern server
+     * @param config The tuning settings of the server, including the number of processing threads
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            ServerConfig config,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+        return new Reactor<T>(config, port, protocolFactory, encoderDecoderFactory);
+    }
+
+    /**
+     * This function returns a new instance of a thread per core server
+     * @param config The tuning settings of the server, including the number of event loops
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new thread per core server
+     */
+    public static <T> Server<T> perCore(
+            ServerConfig config,
+            int port,
+            Supplier<MessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory) {
+        return new PerCoreServer<T>(config, port, protocolFactory, encoderDecoderFactory);
     }
 
 }
@@ -0,0 +1,306 @@
+package bgu.spl.net.srv;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.function.Predicate;
+
+/**
+ * Tuning settings of the servers.
+ * Values come from the defaults below, optionally overridden by a properties file and then by
+ * "--key=value" command line arguments. Unknown keys are rejected so a typo does not go unnoticed.
+ */
+public class ServerConfig {
+
+    private static final Map<String, String[]> KEYS = new LinkedHashMap<>();
+    private static final Map<String, Check> CHECKS = new HashMap<>();
+    private static final Check ANY = new Check(value -> true, "any text");
+    private static final Check BOOLEAN = new Check(value -> value.equals("true") || value.equals("false"),
+            "true or false");
+
+    static {
+        define("workers", String.valueOf(Runtime.getRuntime().availableProcessors()), intAtLeast(1),
+                "reactor protocol processing threads at start");
+        define("workers.min", "1", intAtLeast(1), "fewest reactor processing threads, idle ones retire down to it");
+        define("workers.max", String.valueOf(4 * Runtime.getRuntime().availableProcessors()), intAtLeast(1),
+                "most reactor processing threads, added while frames wait for a worker or workers wait for SQL");
+        define("workers.targetDelayMicros", "1000", longAtLeast(0),
+                "average wait of a frame for a worker past which one is added");
+        define("workers.keepAliveMillis", "5000", longAtLeast(1), "idle time after which a processing thread retires");
+        define("loops", String.valueOf(Runtime.getRuntime().availableProcessors()), intAtLeast(1),
+                "event loops of the percore server, each one owns the connections it accepts");
+        define("tcp.noDelay", "true", BOOLEAN, "disable Nagle's algorithm on client sockets");
+        define("tcp.sendBuffer", "0", intAtLeast(0), "SO_SNDBUF of client sockets in bytes, 0 keeps the OS default");
+        define("tcp.receiveBuffer", "0", intAtLeast(0), "SO_RCVBUF of client sockets in bytes, 0 keeps the OS default");
+        define("tcp.backlog", "0", intAtLeast(0), "accept backlog of the server socket, 0 keeps the JVM default");
+        define("accept.batch", "64", intAtLeast(1), "connections accepted per selector wake up");
+        define("accept.rate", "0", numberAtLeast(0),
+                "connections accepted per second, 0 for no limit; the others wait in the accept backlog");
+        define("accept.burst", "100", intAtLeast(1), "connections accepted at once after a quiet period");
+        define("connections.max", "0", intAtLeast(0),
+                "open connections past which new ones are reset right away, 0 for no limit");
+        define("buffer.size", "8192", intAtLeast(1), "reactor read buffer size in bytes");
+        define("buffer.poolMaxBytes", String.valueOf(64 << 20), longAtLeast(0),
+                "cap on the off-heap memory of the read buffer pool");
+        define("buffer.debug", "false", BOOLEAN, "track buffer leases and report the ones never released");
+        define("read.budget", "65536", intAtLeast(1), "bytes read from one connection per selector iteration");
+        define("read.maxPendingTasks", "16", intAtLeast(1),
+                "unprocessed reads after which a connection stops being read");
+        define("queue.limit", "1024", intAtLeast(1), "maximum outgoing messages queued per connection");
+        define("queue.overflow", "DISCONNECT", oneOf("DROP", "DISCONNECT"),
+                "what to do with a connection whose queue is full: DROP|DISCONNECT");
+        define("compression.threshold", "512", intAtLeast(0), "STOMP bodies shorter than this are not compressed");
+        define("compression.level", "6", intBetween(1, 9),
+                "deflate level of compressed STOMP bodies, 1 (fast) to 9 (small)");
+        define("ratelimit.user.rate", "0", numberAtLeast(0), "SEND frames per second per user, 0 for no limit");
+        define("ratelimit.user.burst", "20", intAtLeast(1), "SEND frames a user may send at once");
+        define("ratelimit.user.policy", "DELAY", oneOf("DELAY", "REJECT", "DROP"),
+                "what to do with a user over the limit: DELAY|REJECT|DROP");
+        define("ratelimit.destination.rate", "0", numberAtLeast(0),
+                "SEND frames per second per destination, 0 for no limit");
+        define("ratelimit.destination.burst", "100", intAtLeast(1), "SEND frames a destination may get at once");
+        define("ratelimit.destination.policy", "DROP", oneOf("DELAY", "REJECT", "DROP"),
+                "what to do with a destination over the limit: DELAY|REJECT|DROP");
+        define("durable.memory", "1000", intAtLeast(0),
+                "messages a durable subscription keeps in memory while its user is offline, later ones are spilled to disk");
+        define("durable.max", "100000", intAtLeast(1),
+                "messages a durable subscription keeps at most while its user is offline");
+        define("durable.drainRate", "500", longAtLeast(1),
+                "kept messages per second sent to a resumed durable subscription");
+        define("durable.dir", "durable", ANY, "directory of the files durable subscriptions spill to");
+        define("capture.file", "", ANY,
+                "file every inbound frame is recorded to for CaptureReplayer, empty disables capture");
+        define("capture.queue", "65536", intAtLeast(1),
+                "captured frames waiting to be written past which new ones are dropped");
+        define("trace.sample", "256", intAtLeast(0), "trace one frame in this many, 0 disables tracing");
+        define("cluster.nodeId", "0", intAtLeast(0), "id of this server in its cluster, 0 runs standalone");
+        define("cluster.port", "7800", intBetween(1, 65535), "port the cluster peers connect to");
+        define("cluster.peers", "", ANY, "the other cluster nodes as id@host:port,...");
+    }
+
+    private final Map<String, String> values = new LinkedHashMap<>();
+    private final Map<String, String> sources = new LinkedHashMap<>();
+
+    private ServerConfig() {
+        for (Map.Entry<String, String[]> key : KEYS.entrySet()) {
+            values.put(key.getKey(), key.getValue()[0]);
+            sources.put(key.getKey(), "default");
+        }
+    }
+
+    private static void define(String key, String defaultValue, Check check, String description) {
+        KEYS.put(key, new String[]{defaultValue, description});
+        CHECKS.put(key, check);
+    }
+
+    public static ServerConfig defaults() {
+        return new ServerConfig();
+    }
+
+    /**
+     * @param file a properties file, may be null
+     * @param overrides "--key=value" arguments, applied after the file
+     */
+    public static ServerConfig load(String file, Iterable<String> overrides) throws IOException {
+        ServerConfig config = new ServerConfig();
+        if (file != null) {
+            Properties props = new Properties();
+            try (InputStream in = new FileInputStream(file)) {
+                props.load(in);
+            }
+            for (String key : props.stringPropertyNames()) {
+                config.set(key, props.getProperty(key).trim(), file);
+            }
+        }
+        for (String arg : overrides) {
+            int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("expected --key=value but got " + arg);
+            }
+            config.set(arg.substring(2, eq), arg.substring(eq + 1), "command line");
+        }
+        return config;
+    }
+
+    public ServerConfig with(String key, String value) {
+        set(key, value, "code");
+        return this;
+    }
+
+    private void set(String key, String value, String source) {
+        if (!KEYS.containsKey(key)) {
+            throw new IllegalArgumentException("unknown setting " + key);
+        }
+        Check check = CHECKS.get(key);
+        if (!check.valid.test(value)) {
+            throw new IllegalArgumentException("setting " + key + " must be " + check.expected + " but is " + value);
+        }
+        values.put(key, value);
+        sources.put(key, source);
+    }
+
+    public String getString(String key) {
+        String value = values.get(key);
+        if (value == null) {
+            throw new IllegalArgumentException("unknown setting " + key);
+        }
+        return value;
+    }
+
+    public int getInt(String key) {
+        try {
+            return Integer.parseInt(getString(key));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("setting " + key + " must be an integer", ex);
+        }
+    }
+
+    public long getLong(String key) {
+        try {
+            return Long.parseLong(getString(key));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("setting " + key + " must be an integer", ex);
+        }
+    }
+
+    public double getDouble(String key) {
+        try {
+            return Double.parseDouble(getString(key));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("setting " + key + " must be a number", ex);
+        }
+    }
+
+    public boolean getBoolean(String key) {
+        String value = getString(key);
+        if (!value.equals("true") && !value.equals("false")) {
+            throw new IllegalArgumentException("setting " + key + " must be true or false");
+        }
+        return Boolean.parseBoolean(value);
+    }
+
+    public <E extends Enum<E>> E getEnum(String key, Class<E> type) {
+        try {
+            return Enum.valueOf(type, getString(key).toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("setting " + key + " has an unknown value " + getString(key), ex);
+        }
+    }
+
+    /**
+     * Applies the tcp.* socket options to an accepted client socket
+     */
+    public void configure(Socket sock) throws IOException {
+        sock.setTcpNoDelay(getBoolean("tcp.noDelay"));
+        if (getInt("tcp.sendBuffer") > 0) {
+            sock.setSendBufferSize(getInt("tcp.sendBuffer"));
+        }
+        if (getInt("tcp.receiveBuffer") > 0) {
+            sock.setReceiveBufferSize(getInt("tcp.receiveBuffer"));
+        }
+    }
+
+    /**
+     * Applies the tcp.* socket options to an accepted client channel
+     */
+    public void configure(SocketChannel chan) throws IOException {
+        chan.setOption(StandardSocketOptions.TCP_NODELAY, getBoolean("tcp.noDelay"));
+        if (getInt("tcp.sendBuffer") > 0) {
+            chan.setOption(StandardSocketOptions.SO_SNDBUF, getInt("tcp.sendBuffer"));
+        }
+        if (getInt("tcp.receiveBuffer") > 0) {
+            chan.setOption(StandardSocketOptions.SO_RCVBUF, getInt("tcp.receiveBuffer"));
+        }
+    }
+
+    /**
+     * Prints the effective configuration and where every value came from
+     */
+    public void print(PrintStream out) {
+        out.println("Effective configuration:");
+        for (Map.Entry<String, String> e : values.entrySet()) {
+            out.printf("  %-20s = %-12s (%s)%n", e.getKey(), e.getValue(), sources.get(e.getKey()));
+        }
+    }
+
+    /**
+     * Prints every setting with its default value and description
+     */
+    public static void printKeys(PrintStream out) {
+        for (Map.Entry<String, String[]> key : KEYS.entrySet()) {
+            out.printf("  --%-20s %s (default %s)%n", key.getKey() + "=", key.getValue()[1], key.getValue()[0]);
+        }
+    }
+
+    private static Check intBetween(int min, int max) {
+        return new Check(value -> {
+            try {
+                int parsed = Integer.parseInt(value);
+                return parsed >= min && parsed <= max;
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+        }, max == Integer.MAX_VALUE ? "an integer of at least " + min : "an integer from " + min + " to " + max);
+    }
+
+    private static Check intAtLeast(int min) {
+        return intBetween(min, Integer.MAX_VALUE);
+    }
+
+    private static Check longAtLeast(long min) {
+        return new Check(value -> {
+            try {
+                return Long.parseLong(value) >= min;
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+        }, "an integer of at least " + min);
+    }
+
+    private static Check numberAtLeast(double min) {
+        return new Check(value -> {
+            try {
+                double parsed = Double.parseDouble(value);
+                return parsed >= min && !Double.isInfinite(parsed); //NaN fails the comparison
+            } catch (NumberFormatException ex) {
+                return false;
+            }
+        }, "a number of at least " + min);
+    }
+
+    /**
+     * Enum values are matched ignoring case, like {@link #getEnum} does
+     */
+    private static Check oneOf(String... choices) {
+        return new Check(value -> {
+            for (String choice : choices) {
+                if (choice.equalsIgnoreCase(value)) {
+                    return true;
+                }
+            }
+            return false;
+        }, "one of " + String.join("|", choices));
+    }
+
+    /**
+     * What values a setting accepts, checked when it is set so a bad value is reported with the usage instead of
+     * failing later in whatever reads it
+     */
+    private static final class Check {
+        final Predicate<String> valid;
+        final String expected;
+
+        Check(Predicate<String> valid, String expected) {
+            this.valid = valid;
+            this.expected = expected;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package bgu.spl.net.srv;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Registry of the components that report runtime metrics, printed on demand (the "stats" console command).
+ */
+public final class ServerStats {
+
+    private static final Map<String, Consumer<PrintStream>> sources = new LinkedHashMap<>();
+
+    private ServerStats() {}
+
+    /**
+     * Registers a metrics source, a source registered again under the same name replaces the old one
+     */
+    public static synchronized void register(String name, Consumer<PrintStream> source) {
+        sources.put(name, source);
+    }
+
+    public static synchronized void report(PrintStream out) {
+        out.println("=== Server stats ===");
+        for (Map.Entry<String, Consumer<PrintStream>> source : sources.entrySet()) {
+            out.println(source.getKey() + ":");
+            source.getValue().accept(out);
+        }
+    }
+
+    /**
+     * Turns a monotonic counter into a per second rate over the time since the previous call
+     */
+    public static final class Rate {
+
+        private long lastCount = 0;
+        private long lastNanos = System.nanoTime();
+
+        public synchronized double perSecond(long count) {
+            long now = System.nanoTime();
+            double rate = now == lastNanos ? 0 : (count - lastCount) * 1e9 / (now - lastNanos);
+            lastCount = count;
+            lastNanos = now;
+            return rate;
+        }
+    }
+}
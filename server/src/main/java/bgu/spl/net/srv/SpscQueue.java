@@ -0,0 +1,65 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A bounded queue with exactly one producer thread and one consumer thread.
+ * Each side only writes its own index, with an ordered (lazy) store, so neither offer nor drain takes a lock
+ * or a compare-and-set; the consumer takes everything published so far in one pass.
+ */
+final class SpscQueue<E> {
+
+    private final Object[] items;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); //next slot to consume, written by the consumer
+    private final AtomicLong tail = new AtomicLong(); //next slot to fill, written by the producer
+    private long cachedHead = 0; //producer only
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    SpscQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        items = new Object[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Called by the producer only
+     * @return false if the queue is full
+     */
+    boolean offer(E item) {
+        long t = tail.get();
+        if (t - cachedHead == items.length) {
+            cachedHead = head.get();
+            if (t - cachedHead == items.length) {
+                return false;
+            }
+        }
+        items[(int) t & mask] = item;
+        tail.lazySet(t + 1);
+        return true;
+    }
+
+    /**
+     * Called by the consumer only
+     * @return the number of items passed to the action
+     */
+    @SuppressWarnings("unchecked")
+    int drain(Consumer<E> action) {
+        long h = head.get();
+        long t = tail.get();
+        if (h == t) {
+            return 0;
+        }
+        for (long i = h; i < t; i++) {
+            int slot = (int) i & mask;
+            E item = (E) items[slot];
+            items[slot] = null;
+            action.accept(item);
+        }
+        head.lazySet(t);
+        return (int) (t - h);
+    }
+}
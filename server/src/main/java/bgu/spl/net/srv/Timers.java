@@ -0,0 +1,24 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single daemon thread for the delayed actions of the connection handlers, e.g. resuming a paused read.
+ * The actions must be quick, they only hand work over to the I/O threads.
+ */
+final class Timers {
+
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "handler-timers");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Timers() {}
+
+    static void schedule(Runnable action, long delayNanos) {
+        SCHEDULER.schedule(action, delayNanos, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,296 @@
+package bgu.spl.net.srv;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records every inbound frame of every connection to a capture file that {@code CaptureReplayer} can play back.
+ * The handlers hand a frame over with {@link #frame} from whatever thread decoded it: the call stamps the time
+ * and puts the bytes on a bounded lock-free queue, or drops them if the queue is full, and a writer thread
+ * empties the queue into the file. Capturing therefore never blocks the I/O threads, it only costs them the
+ * encoding of the frame.
+ *
+ * The file starts with the magic "STOMPCAP", a version byte and the wall clock time the capture started
+ * (milliseconds, 8 bytes). Then come the records, each one a type byte (0 for a frame, 1 for a closed
+ * connection), the capture id of the connection, the time since the previous record in nanoseconds (zigzag, it
+ * may be negative when two threads raced) and, for a frame, the length and the encoded bytes; the numbers are
+ * unsigned LEB128 varints. Capture ids number the connections in the order they opened, starting at 0.
+ */
+public final class TrafficCapture {
+
+    public static final int FRAME = 0;
+    public static final int CLOSE = 1;
+
+    private static final byte[] MAGIC = {'S', 'T', 'O', 'M', 'P', 'C', 'A', 'P'};
+    private static final int VERSION = 1;
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+
+    private static volatile boolean enabled = false;
+    private static final AtomicInteger nextId = new AtomicInteger();
+    private static final ConcurrentLinkedQueue<Record> queue = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger queued = new AtomicInteger();
+    private static final LongAdder captured = new LongAdder();
+    private static final LongAdder capturedBytes = new LongAdder();
+    private static final LongAdder dropped = new LongAdder();
+    private static int queueLimit;
+    private static String file;
+    private static volatile Thread writer;
+
+    private TrafficCapture() {}
+
+    /**
+     * Starts capturing to the file, does nothing if the name is empty
+     * @param limit frames waiting for the writer past which new ones are dropped
+     */
+    public static synchronized void start(String fileName, int limit) throws IOException {
+        if (fileName.isEmpty() || writer != null) {
+            return;
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 16));
+        out.write(MAGIC);
+        out.writeByte(VERSION);
+        out.writeLong(System.currentTimeMillis());
+        file = fileName;
+        queueLimit = Math.max(1, limit);
+        Thread thread = new Thread(() -> writeLoop(out), "traffic-capture");
+        thread.setDaemon(true);
+        writer = thread;
+        enabled = true;
+        thread.start();
+        ServerStats.register("capture", TrafficCapture::report);
+    }
+
+    /**
+     * Stops capturing and waits until what was queued is in the file
+     */
+    public static void stop() {
+        Thread thread;
+        synchronized (TrafficCapture.class) {
+            thread = writer;
+            enabled = false;
+        }
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(5000);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Called by a new connection handler
+     * @return the capture id of the connection, -1 when not capturing
+     */
+    static int connectionOpened() {
+        return enabled ? nextId.getAndIncrement() : -1;
+    }
+
+    /**
+     * Records a frame the connection sent, as its encoder would write it
+     */
+    static void frame(int captureId, byte[] encoded) {
+        offer(new Record(FRAME, captureId, System.nanoTime(), encoded));
+    }
+
+    static void closed(int captureId) {
+        offer(new Record(CLOSE, captureId, System.nanoTime(), null));
+    }
+
+    private static void offer(Record record) {
+        if (!enabled) {
+            return;
+        }
+        if (queued.incrementAndGet() > queueLimit) {
+            queued.decrementAndGet();
+            dropped.increment();
+            return;
+        }
+        queue.add(record);
+    }
+
+    private static void writeLoop(DataOutputStream out) {
+        long previous = 0;
+        try {
+            while (true) {
+                Record record = queue.poll();
+                if (record == null) {
+                    if (Thread.interrupted()) {
+                        break;
+                    }
+                    out.flush();
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+                queued.decrementAndGet();
+                if (previous == 0) {
+                    previous = record.nanos;
+                }
+                out.writeByte(record.type);
+                writeVarint(out, record.captureId);
+                long delta = record.nanos - previous;
+                writeVarint(out, (delta << 1) ^ (delta >> 63));
+                previous = record.nanos;
+                if (record.type == FRAME) {
+                    writeVarint(out, record.bytes.length);
+                    out.write(record.bytes);
+                    captured.increment();
+                    capturedBytes.add(record.bytes.length);
+                }
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            enabled = false;
+        } finally {
+            try {
+                out.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            synchronized (TrafficCapture.class) {
+                writer = null;
+            }
+        }
+    }
+
+    private static void writeVarint(OutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static void report(PrintStream out) {
+        out.printf("  file               %s%s%n", file, enabled ? "" : " (stopped)");
+        out.printf("  frames             %d (%d bytes), %d dropped, %d connections%n",
+                captured.sum(), capturedBytes.sum(), dropped.sum(), nextId.get());
+    }
+
+    private static final class Record {
+        final int type;
+        final int captureId;
+        final long nanos;
+        final byte[] bytes;
+
+        Record(int type, int captureId, long nanos, byte[] bytes) {
+            this.type = type;
+            this.captureId = captureId;
+            this.nanos = nanos;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Reads a capture file record by record
+     */
+    public static final class Reader implements AutoCloseable {
+
+        private final DataInputStream in;
+        private final long startMillis;
+        private long nanos = 0;
+        private int type;
+        private int captureId;
+        private byte[] bytes;
+
+        public Reader(String fileName) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 16));
+            byte[] magic = new byte[MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC) || in.readByte() != VERSION) {
+                in.close();
+                throw new IOException(fileName + " is not a capture file");
+            }
+            startMillis = in.readLong();
+        }
+
+        /**
+         * @return false at the end of the file
+         */
+        public boolean next() throws IOException {
+            int t = in.read();
+            if (t < 0) {
+                return false;
+            }
+            try {
+                type = t;
+                captureId = (int) readVarint(in);
+                long zigzag = readVarint(in);
+                nanos += (zigzag >>> 1) ^ -(zigzag & 1);
+                if (type == FRAME) {
+                    bytes = new byte[(int) readVarint(in)];
+                    in.readFully(bytes);
+                } else {
+                    bytes = null;
+                }
+            } catch (EOFException ex) {
+                return false; //the last record was cut short, e.g. the server was killed
+            }
+            return true;
+        }
+
+        /**
+         * @return {@link #FRAME} or {@link #CLOSE}
+         */
+        public int type() {
+            return type;
+        }
+
+        public int captureId() {
+            return captureId;
+        }
+
+        /**
+         * @return nanoseconds since the first record
+         */
+        public long nanos() {
+            return nanos;
+        }
+
+        /**
+         * @return the encoded frame, null for a closed connection
+         */
+        public byte[] bytes() {
+            return bytes;
+        }
+
+        public long startMillis() {
+            return startMillis;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private static long readVarint(InputStream in) throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = in.read();
+                if (b < 0) {
+                    throw new EOFException();
+                }
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("malformed varint");
+        }
+    }
+}
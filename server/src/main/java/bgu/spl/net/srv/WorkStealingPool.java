@@ -0,0 +1,340 @@
+package bgu.spl.net.srv;
+
+import java.io.PrintStream;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * The worker threads behind {@link ActorThreadPool}, sized between a minimum and a maximum by what they measure.
+ * A task submitted by a worker goes to the end of that worker's own deque and any other task to a shared queue;
+ * a worker takes from its deque, then from the shared queue, then steals the oldest task of another worker.
+ * Every interval the pool looks at the time tasks waited before they ran and the time workers spent in
+ * {@link #beginBlocking()} sections (e.g. SQL round trips): it adds a worker when tasks wait longer than the
+ * target and there is a core or a blocked worker to make up for, and immediately when every worker is blocked
+ * while tasks wait. A worker that found nothing to do for the keep alive time retires, down to the minimum.
+ */
+public class WorkStealingPool implements Executor {
+
+    private static final long ADJUST_INTERVAL_NANOS = 100_000_000;
+    private static final double BLOCKED_GROWTH_FRACTION = 0.1; //of the workers' time, past which threads beyond the cores help
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    private final int minWorkers;
+    private final int maxWorkers;
+    private final long targetDelayNanos;
+    private final long keepAliveNanos;
+    private final ConcurrentLinkedQueue<Task> submissions = new ConcurrentLinkedQueue<>();
+    private final CopyOnWriteArrayList<Worker> workers = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicInteger pending = new AtomicInteger(); //submitted tasks no worker took yet
+    private final AtomicInteger blocked = new AtomicInteger();
+    private final AtomicInteger nextWorkerId = new AtomicInteger();
+    private volatile boolean running = true;
+
+    // measured since the last adjustment
+    private final LongAdder delaySum = new LongAdder();
+    private final LongAdder delayCount = new LongAdder();
+    private final LongAdder blockedNanos = new LongAdder();
+    private long lastAdjust = System.nanoTime();
+
+    private final LongAdder executed = new LongAdder();
+    private final LongAdder steals = new LongAdder();
+    private final AtomicLong grown = new AtomicLong();
+    private final AtomicLong compensations = new AtomicLong();
+    private final AtomicLong retired = new AtomicLong();
+    private final AtomicLong replaced = new AtomicLong();
+    private volatile String lastDecision = "none";
+    private volatile long lastDelayNanos = 0;
+    private volatile double lastBlockedFraction = 0;
+
+    /**
+     * @param initialWorkers workers started right away, clamped to the limits
+     */
+    public WorkStealingPool(int initialWorkers, int minWorkers, int maxWorkers, long targetDelayNanos,
+            long keepAliveNanos) {
+        this.minWorkers = Math.max(1, minWorkers);
+        this.maxWorkers = Math.max(this.minWorkers, maxWorkers);
+        this.targetDelayNanos = targetDelayNanos;
+        this.keepAliveNanos = keepAliveNanos;
+        int initial = Math.min(this.maxWorkers, Math.max(this.minWorkers, initialWorkers));
+        for (int i = 0; i < initial; i++) {
+            size.incrementAndGet();
+            startWorker();
+        }
+        if (this.minWorkers < this.maxWorkers) {
+            Timers.schedule(this::adjust, ADJUST_INTERVAL_NANOS);
+        }
+    }
+
+    /**
+     * Marks the start of a section in which the calling thread waits for I/O, it must be followed by
+     * {@link #endBlocking()}. Does nothing unless the caller is a worker of a pool.
+     */
+    public static void beginBlocking() {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof Worker) {
+            ((Worker) thread).beginBlocking();
+        }
+    }
+
+    public static void endBlocking() {
+        Thread thread = Thread.currentThread();
+        if (thread instanceof Worker) {
+            ((Worker) thread).endBlocking();
+        }
+    }
+
+    @Override
+    public void execute(Runnable runnable) {
+        if (!running) {
+            return;
+        }
+        Task task = new Task(runnable);
+        Thread thread = Thread.currentThread();
+        if (thread instanceof Worker && ((Worker) thread).pool == this) {
+            ((Worker) thread).deque.addLast(task);
+        } else {
+            submissions.add(task);
+        }
+        pending.incrementAndGet();
+        Worker sleeper = idle.poll();
+        if (sleeper != null) {
+            LockSupport.unpark(sleeper);
+        }
+    }
+
+    /**
+     * Stops the workers, the tasks that did not start are discarded
+     */
+    public void shutdown() {
+        running = false;
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    private void startWorker() {
+        Worker worker = new Worker(this, nextWorkerId.incrementAndGet());
+        workers.add(worker);
+        worker.start();
+    }
+
+    /**
+     * Adds a worker if the maximum allows it
+     */
+    private boolean grow(String reason) {
+        int n;
+        do {
+            n = size.get();
+            if (n >= maxWorkers || !running) {
+                return false;
+            }
+        } while (!size.compareAndSet(n, n + 1));
+        startWorker();
+        lastDecision = "grew to " + (n + 1) + ": " + reason;
+        return true;
+    }
+
+    private void adjust() {
+        if (!running) {
+            return;
+        }
+        long now = System.nanoTime();
+        long interval = now - lastAdjust;
+        lastAdjust = now;
+        long count = delayCount.sumThenReset();
+        long delay = count == 0 ? 0 : delaySum.sumThenReset() / count;
+        int n = size.get();
+        double blockedFraction = Math.min(1, blockedNanos.sumThenReset() / ((double) n * interval));
+        lastDelayNanos = delay;
+        lastBlockedFraction = blockedFraction;
+
+        if (delay > targetDelayNanos && (n < CORES || blockedFraction > BLOCKED_GROWTH_FRACTION)) {
+            if (grow(String.format("queue delay %.0f us, %.0f%% blocked", delay / 1e3, blockedFraction * 100))) {
+                grown.incrementAndGet();
+            }
+        }
+        Timers.schedule(this::adjust, ADJUST_INTERVAL_NANOS);
+    }
+
+    private Task take(Worker worker) {
+        Task task = worker.deque.pollFirst();
+        if (task == null) {
+            task = submissions.poll();
+        }
+        if (task == null) {
+            for (Worker victim : workers) {
+                if (victim != worker && (task = victim.deque.pollFirst()) != null) {
+                    steals.increment();
+                    break;
+                }
+            }
+        }
+        if (task != null) {
+            pending.decrementAndGet();
+        }
+        return task;
+    }
+
+    /**
+     * @return true if the worker may retire, in which case it was already removed from the pool
+     */
+    private boolean retire(Worker worker) {
+        int n;
+        do {
+            n = size.get();
+            if (n <= minWorkers) {
+                return false;
+            }
+        } while (!size.compareAndSet(n, n - 1));
+        handOver(worker);
+        retired.incrementAndGet();
+        lastDecision = "shrank to " + (n - 1) + ": a worker was idle for " + keepAliveNanos / 1_000_000 + " ms";
+        return true;
+    }
+
+    /**
+     * Starts a worker in place of one a task killed, the size of the pool does not change
+     */
+    private void replace(Worker worker) {
+        handOver(worker);
+        if (running) {
+            replaced.incrementAndGet();
+            startWorker();
+        }
+    }
+
+    /**
+     * Removes a worker that stops and moves the tasks left in its deque to the shared queue, where an idle
+     * worker is woken up for them
+     */
+    private void handOver(Worker worker) {
+        workers.remove(worker);
+        Task left;
+        while ((left = worker.deque.pollFirst()) != null) { //submitted by the task it ran last
+            submissions.add(left);
+        }
+        if (pending.get() > 0) {
+            Worker sleeper = idle.poll();
+            if (sleeper != null) {
+                LockSupport.unpark(sleeper);
+            }
+        }
+    }
+
+    private void run(Task task) {
+        long start = System.nanoTime();
+        delaySum.add(start - task.submitted);
+        delayCount.increment();
+        try {
+            task.runnable.run();
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();
+        }
+        executed.increment();
+    }
+
+    public void report(PrintStream out) {
+        out.printf("  workers            %d (limits %d-%d), %d blocked, %d tasks waiting%n",
+                size.get(), minWorkers, maxWorkers, blocked.get(), pending.get());
+        out.printf("  last interval      queue delay %.1f us, %.0f%% of the time blocked%n",
+                lastDelayNanos / 1e3, lastBlockedFraction * 100);
+        out.printf("  sizing             %d grown, %d compensations, %d retired, %d replaced after a task error%n",
+                grown.get(), compensations.get(), retired.get(), replaced.get());
+        out.printf("  last decision      %s%n", lastDecision);
+        out.printf("  tasks              %d executed, %d stolen%n", executed.sum(), steals.sum());
+    }
+
+    private static final class Task {
+        final Runnable runnable;
+        final long submitted = System.nanoTime();
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+        }
+    }
+
+    private static final class Worker extends Thread {
+
+        final WorkStealingPool pool;
+        final ConcurrentLinkedDeque<Task> deque = new ConcurrentLinkedDeque<>();
+        private long blockedSince;
+
+        Worker(WorkStealingPool pool, int id) {
+            super("worker-" + id);
+            this.pool = pool;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            boolean stopped = false;
+            try {
+                stopped = work();
+            } finally {
+                BufferPool.getInstance().flushThread(); //workers release the reactor's read buffers
+                if (stopped) {
+                    pool.workers.remove(this);
+                } else {
+                    pool.replace(this); //an Error escaped a task
+                }
+            }
+        }
+
+        /**
+         * @return true once the pool shut down or this worker retired
+         */
+        private boolean work() {
+            while (pool.running) {
+                Task task = pool.take(this);
+                if (task != null) {
+                    pool.run(task);
+                    continue;
+                }
+                pool.idle.add(this);
+                task = pool.take(this); //a task submitted before this worker was idle would not wake it
+                if (task != null) {
+                    pool.idle.remove(this);
+                    pool.run(task);
+                    continue;
+                }
+                long parked = System.nanoTime();
+                LockSupport.parkNanos(pool.keepAliveNanos);
+                pool.idle.remove(this);
+                if (interrupted() && !pool.running) {
+                    break;
+                }
+                if (System.nanoTime() - parked >= pool.keepAliveNanos) {
+                    task = pool.take(this); //execute may have unparked this worker as it timed out
+                    if (task != null) {
+                        pool.run(task);
+                    } else if (pool.retire(this)) {
+                        break;
+                    }
+                }
+            }
+            return true;
+        }
+
+        void beginBlocking() {
+            blockedSince = System.nanoTime();
+            int nowBlocked = pool.blocked.incrementAndGet();
+            if (nowBlocked >= pool.size.get() && pool.pending.get() > 0
+                    && pool.grow("every worker blocked with " + pool.pending.get() + " tasks waiting")) {
+                pool.compensations.incrementAndGet();
+            }
+        }
+
+        void endBlocking() {
+            pool.blockedNanos.add(System.nanoTime() - blockedSince);
+            pool.blocked.decrementAndGet();
+        }
+    }
+}
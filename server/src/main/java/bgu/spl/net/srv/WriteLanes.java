@@ -0,0 +1,133 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Queue;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The outgoing buffers of a non blocking connection, in two lanes.
+ * Control frames (the replies and direct sends, e.g. CONNECTED, RECEIPT and ERROR) are written before bulk
+ * frames (fan-out MESSAGEs), so they do not wait behind a backlog of messages; a frame that was partly written
+ * is always finished first. Each write gathers as many buffers as it can from both lanes.
+ * The lanes may be filled by any thread the given queues allow, they are written by one thread at a time.
+ */
+final class WriteLanes {
+
+    private static final int MAX_GATHER = 64;
+    private static final LongAdder OVERTAKES = new LongAdder();
+
+    interface WriteListener {
+        void written(ByteBuffer buf, boolean control);
+    }
+
+    private final Queue<ByteBuffer> control;
+    private final Queue<ByteBuffer> bulk;
+    private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+    private final boolean[] gatheredControl = new boolean[MAX_GATHER];
+    private ByteBuffer partial; //the head of its lane, written before anything else
+    private boolean partialControl;
+
+    WriteLanes(Queue<ByteBuffer> control, Queue<ByteBuffer> bulk) {
+        this.control = control;
+        this.bulk = bulk;
+    }
+
+    /**
+     * @return how many control frames were written while bulk frames were waiting
+     */
+    static long overtakes() {
+        return OVERTAKES.sum();
+    }
+
+    void addControl(ByteBuffer buf) {
+        control.add(buf);
+    }
+
+    void addBulk(ByteBuffer buf) {
+        bulk.add(buf);
+    }
+
+    boolean isEmpty() {
+        return control.isEmpty() && bulk.isEmpty();
+    }
+
+    void clear() {
+        control.clear();
+        bulk.clear();
+        partial = null;
+    }
+
+    /**
+     * Writes until the lanes are empty or the channel takes no more
+     * @param listener told about every buffer once it was completely written
+     * @return true if everything was written
+     */
+    boolean write(GatheringByteChannel chan, WriteListener listener) throws IOException {
+        while (true) {
+            int n = gather();
+            if (n == 0) {
+                return true;
+            }
+            chan.write(gather, 0, n);
+            if (complete(n, listener) < n) {
+                return false;
+            }
+        }
+    }
+
+    private int gather() {
+        int n = 0;
+        if (partial != null) {
+            gather[n] = partial;
+            gatheredControl[n++] = partialControl;
+        }
+        n = gather(control, true, n);
+        return gather(bulk, false, n);
+    }
+
+    private int gather(Queue<ByteBuffer> lane, boolean isControl, int n) {
+        for (ByteBuffer buf : lane) {
+            if (n == MAX_GATHER) {
+                break;
+            }
+            if (buf != partial) {
+                gather[n] = buf;
+                gatheredControl[n++] = isControl;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Removes the buffers that were completely written from their lanes
+     * @return how many of the gathered buffers were completely written
+     */
+    private int complete(int n, WriteListener listener) {
+        partial = null;
+        int done = 0;
+        for (int i = 0; i < n; i++) {
+            ByteBuffer buf = gather[i];
+            gather[i] = null;
+            if (partial != null || buf.hasRemaining()) {
+                if (partial == null && buf.position() > 0) {
+                    partial = buf;
+                    partialControl = gatheredControl[i];
+                }
+                continue;
+            }
+            done++;
+            if (gatheredControl[i]) {
+                control.poll();
+                if (!bulk.isEmpty()) {
+                    OVERTAKES.increment();
+                }
+            } else {
+                bulk.poll();
+            }
+            listener.written(buf, gatheredControl[i]);
+        }
+        return done;
+    }
+}
@@ -0,0 +1,30 @@
+package bgu.spl.net.impl.cluster;
+
+import bgu.spl.net.impl.rci.BinaryReader;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class ClusterMessagesTest {
+
+    @Test
+    public void aForwardCarriesTheSendHeaders() throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("destination", "/germany_japan");
+        headers.put("user", "משה");
+        headers.put("priority", "5");
+        byte[] message = ClusterMessages.forward("/germany_japan", headers, "goal!");
+
+        BinaryReader in = ClusterMessages.read(new DataInputStream(new ByteArrayInputStream(message)));
+        assertEquals(ClusterMessages.FORWARD, in.readByte());
+        assertEquals("/germany_japan", in.readString());
+        assertEquals(headers, ClusterMessages.readHeaders(in));
+        assertEquals("goal!", in.readString());
+    }
+}
@@ -0,0 +1,53 @@
+package bgu.spl.net.impl.newsfeed;
+
+import bgu.spl.net.impl.rci.BinaryEncoderDecoder;
+import bgu.spl.net.impl.rci.TaggedMessage;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class FetchNewsCommandTest {
+
+    @BeforeAll
+    public static void registerSchemas() {
+        NewsFeedSchemas.register();
+    }
+
+    private static FetchNewsCommand overTheWire(FetchNewsCommand command) {
+        BinaryEncoderDecoder codec = new BinaryEncoderDecoder();
+        Serializable decoded = codec.decodeNext(ByteBuffer.wrap(codec.encode(new TaggedMessage(7, command))));
+        return (FetchNewsCommand) ((TaggedMessage) decoded).payload();
+    }
+
+    private static NewsFeed feed() {
+        NewsFeed feed = new NewsFeed(8);
+        feed.publish("jobs", "a");
+        feed.publish("jobs", "b");
+        feed.publish("jobs", "c");
+        return feed;
+    }
+
+    @Test
+    public void theChannelOnlyFormReturnsAList() {
+        Serializable result = overTheWire(new FetchNewsCommand("jobs")).execute(feed());
+        assertTrue(result instanceof ArrayList, String.valueOf(result));
+        assertEquals(Arrays.asList("a", "b", "c"), result);
+    }
+
+    @Test
+    public void thePagedFormReturnsAPage() {
+        NewsFeed feed = feed();
+        NewsPage first = (NewsPage) overTheWire(new FetchNewsCommand("jobs", 0, 2)).execute(feed);
+        assertEquals(Arrays.asList("a", "b"), first.items());
+        NewsPage rest = (NewsPage) overTheWire(new FetchNewsCommand("jobs", first.lastSequence(), 10)).execute(feed);
+        assertEquals(Arrays.asList("c"), rest.items());
+        assertEquals(0, rest.missed());
+    }
+}
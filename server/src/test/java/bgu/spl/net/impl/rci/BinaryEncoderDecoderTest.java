@@ -0,0 +1,125 @@
+package bgu.spl.net.impl.rci;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BinaryEncoderDecoderTest {
+
+    private static final int POINT_TAG = 250;
+
+    private static final class Point implements Serializable {
+        private static final long serialVersionUID = 1L;
+        final int x;
+        final String label;
+
+        Point(int x, String label) {
+            this.x = x;
+            this.label = label;
+        }
+    }
+
+    @BeforeAll
+    public static void registerSchemas() {
+        SchemaRegistry.register(POINT_TAG, Point.class, Schema.of((point, out) -> {
+            out.writeInt(point.x);
+            out.writeString(point.label);
+        }, in -> new Point(in.readInt(), in.readString())));
+    }
+
+    private static TaggedMessage roundTrip(Serializable message) {
+        BinaryEncoderDecoder codec = new BinaryEncoderDecoder();
+        return (TaggedMessage) codec.decodeNext(ByteBuffer.wrap(codec.encode(message)));
+    }
+
+    @Test
+    public void builtInTypesRoundTrip() {
+        ArrayList<Object> list = new ArrayList<>(Arrays.asList("שלום", 42, -7L, true, null,
+                new ArrayList<>(Arrays.asList("nested"))));
+        TaggedMessage decoded = roundTrip(new TaggedMessage(3, list));
+        assertEquals(3, decoded.requestId());
+        assertEquals(list, decoded.payload());
+
+        byte[] bytes = {0, 1, (byte) 0xff};
+        assertArrayEquals(bytes, (byte[]) roundTrip(new TaggedMessage(4, bytes)).payload());
+        assertNull(roundTrip(new TaggedMessage(5, null)).payload());
+    }
+
+    @Test
+    public void registeredSchemaRoundTrips() {
+        Point point = (Point) roundTrip(new TaggedMessage(9, new Point(-12, "origin"))).payload();
+        assertEquals(-12, point.x);
+        assertEquals("origin", point.label);
+    }
+
+    @Test
+    public void anUntaggedMessageGetsRequestIdZero() {
+        TaggedMessage decoded = roundTrip("plain");
+        assertEquals(0, decoded.requestId());
+        assertEquals("plain", decoded.payload());
+    }
+
+    @Test
+    public void decodesByteByByteAndBackToBack() {
+        BinaryEncoderDecoder codec = new BinaryEncoderDecoder();
+        byte[] first = codec.encode(new TaggedMessage(1, "first"));
+        byte[] second = codec.encode(new TaggedMessage(2, new String(new char[1000]).replace('\0', 'z')));
+
+        Serializable decoded = null;
+        for (byte b : first) {
+            assertNull(decoded);
+            decoded = codec.decodeNextByte(b);
+        }
+        assertEquals("first", ((TaggedMessage) decoded).payload());
+
+        ByteBuffer both = ByteBuffer.allocate(first.length + second.length);
+        both.put(first).put(second).flip();
+        assertEquals(1, ((TaggedMessage) codec.decodeNext(both)).requestId());
+        assertTrue(both.hasRemaining());
+        TaggedMessage last = (TaggedMessage) codec.decodeNext(both);
+        assertEquals(2, last.requestId());
+        assertEquals(1000, ((String) last.payload()).length());
+    }
+
+    @Test
+    public void rejectsIllegalLengthsAndUnknownTags() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new BinaryEncoderDecoder().decodeNext(ByteBuffer.wrap(new byte[] {0, 0, 0, 1})));
+        assertThrows(IllegalArgumentException.class,
+                () -> new BinaryEncoderDecoder().decodeNext(ByteBuffer.wrap(new byte[] {0, 0, 0, 5, 0, 0, 0, 1, (byte) 249})));
+        assertThrows(IllegalArgumentException.class, () -> new BinaryEncoderDecoder().encode(new StringBuilder()));
+    }
+
+    @Test
+    public void rejectsListsNestedTooDeep() {
+        ArrayList<Object> list = new ArrayList<>();
+        for (int i = 1; i < SchemaRegistry.MAX_DEPTH; i++) {
+            list = new ArrayList<>(Arrays.asList(list));
+        }
+        assertEquals(list, roundTrip(new TaggedMessage(1, list)).payload());
+
+        ArrayList<Object> deeper = new ArrayList<>(Arrays.asList(list));
+        assertThrows(IllegalArgumentException.class, () -> roundTrip(new TaggedMessage(2, deeper)));
+
+        BinaryWriter out = new BinaryWriter();
+        out.writeInt(0); //the message length, filled in below
+        out.writeInt(3); //the request id
+        for (int i = 0; i < 100_000; i++) {
+            out.writeByte(6); //a list
+            out.writeInt(1); //of one item
+        }
+        byte[] bytes = out.toByteArray();
+        ByteBuffer.wrap(bytes).putInt(bytes.length - 4);
+        assertThrows(IllegalArgumentException.class, () -> new BinaryEncoderDecoder().decodeNext(ByteBuffer.wrap(bytes)));
+    }
+}
@@ -0,0 +1,116 @@
+package bgu.spl.net.impl.stomp;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+public class MessageEncoderDecoderImplTest {
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private static List<String> decodeByteByByte(MessageEncoderDecoderImpl codec, byte[] input) {
+        List<String> frames = new ArrayList<>();
+        for (byte b : input) {
+            String frame = codec.decodeNextByte(b);
+            if (frame != null) {
+                frames.add(frame);
+            }
+        }
+        return frames;
+    }
+
+    private static List<String> decodeInBulk(MessageEncoderDecoderImpl codec, byte[] input) {
+        List<String> frames = new ArrayList<>();
+        ByteBuffer buffer = ByteBuffer.wrap(input);
+        String frame;
+        while ((frame = codec.decodeNext(buffer)) != null) {
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    @Test
+    public void decodesFramesEndingAtNul() {
+        List<String> frames = decodeByteByByte(new MessageEncoderDecoderImpl(),
+                bytes("SEND\ndestination:/a\n\nhello\0\n\nSUBSCRIBE\nid:1\n\n\0"));
+        assertEquals(Arrays.asList("SEND\ndestination:/a\n\nhello", "SUBSCRIBE\nid:1\n\n"), frames);
+    }
+
+    @Test
+    public void readsContentLengthBodiesWithNulBytes() {
+        byte[] body = {'a', 0, 'b', 0, 'c'};
+        byte[] input = concat(bytes("SEND\ncontent-length:5\n\n"), body, new byte[]{0}, bytes("CONNECT\n\n\0"));
+        for (int bulk = 0; bulk < 2; bulk++) {
+            MessageEncoderDecoderImpl codec = new MessageEncoderDecoderImpl();
+            List<String> frames = bulk == 1 ? decodeInBulk(codec, input) : decodeByteByByte(codec, input);
+            assertEquals(2, frames.size());
+            assertEquals("SEND\ncontent-length:5\n\na\0b\0c", frames.get(0));
+            assertEquals("CONNECT\n\n", frames.get(1));
+        }
+    }
+
+    @Test
+    public void keepsBinaryBodiesByteForByte() {
+        byte[] body = new byte[256];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        byte[] head = bytes("SEND\ndestination:/ünïcode\ncontent-length:256\n\n");
+        byte[] input = concat(head, body, new byte[]{0});
+        MessageEncoderDecoderImpl codec = new MessageEncoderDecoderImpl();
+        String frame = decodeInBulk(codec, input).get(0);
+        assertEquals("SEND\ndestination:/ünïcode\ncontent-length:256\n\n", frame.substring(0, frame.indexOf("\n\n") + 2));
+        assertArrayEquals(input, codec.encode(frame));
+    }
+
+    @Test
+    public void fallsBackToTheTerminatorWhenTheLengthIsWrong() {
+        List<String> frames = decodeByteByByte(new MessageEncoderDecoderImpl(),
+                bytes("SEND\ncontent-length:2\n\nabcd\0"));
+        assertEquals(Arrays.asList("SEND\ncontent-length:2\n\nabcd"), frames);
+    }
+
+    @Test
+    public void ignoresInvalidLengths() {
+        List<String> frames = decodeByteByByte(new MessageEncoderDecoderImpl(),
+                bytes("SEND\ncontent-length:12x\n\nab\0SEND\ncontent-length:99999999999\n\ncd\0"));
+        assertEquals(Arrays.asList("SEND\ncontent-length:12x\n\nab", "SEND\ncontent-length:99999999999\n\ncd"), frames);
+    }
+
+    @Test
+    public void skipsHeartBeats() {
+        MessageEncoderDecoderImpl codec = new MessageEncoderDecoderImpl();
+        assertNull(codec.decodeNextByte((byte) '\n'));
+        assertNull(codec.decodeNextByte((byte) '\r'));
+        assertEquals(Arrays.asList("DISCONNECT\n\n"), decodeByteByByte(codec, bytes("\r\nDISCONNECT\n\n\0")));
+    }
+
+    @Test
+    public void convertsTextBodies() {
+        String text = "goal: ⚽ ünïcode";
+        String body = MessageEncoderDecoderImpl.textBody(text);
+        assertEquals(bytes(text).length, body.length());
+        assertEquals(text, MessageEncoderDecoderImpl.bodyText(body));
+        byte[] encoded = new MessageEncoderDecoderImpl().encode("MESSAGE\n\n" + body);
+        assertArrayEquals(concat(bytes("MESSAGE\n\n" + text), new byte[]{0}), encoded);
+    }
+}
@@ -0,0 +1,111 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.MessageAttributes;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class MessageSelectorTest {
+
+    private static MessageAttributes message(String... namesAndValues) {
+        Map<String, String> attributes = new HashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            attributes.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return attributes::get;
+    }
+
+    private static boolean matches(String selector, MessageAttributes message) {
+        return MessageSelector.compile(selector).test(message);
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            out.append(s);
+        }
+        return out.toString();
+    }
+
+    @Test
+    public void comparesHeadersWithQuotedStrings() {
+        MessageAttributes goal = message("destination", "/germany_japan", "user", "it's me");
+        assertTrue(matches("destination = '/germany_japan'", goal));
+        assertFalse(matches("destination = '/spain_japan'", goal));
+        assertTrue(matches("destination != '/spain_japan'", goal));
+        assertTrue(matches("destination ~ 'japan'", goal));
+        assertTrue(matches("user = 'it''s me'", goal)); //a doubled quote stands for itself
+    }
+
+    @Test
+    public void readsQuotedBodyFields() {
+        MessageAttributes event = message("body.event name", "goal", "body.team \"b\"", "japan");
+        assertTrue(matches("body.\"event name\" = 'goal'", event));
+        assertTrue(matches("body.\"team \"\"b\"\"\" ~ 'jap'", event));
+        assertFalse(matches("body.\"time\" = '1'", event));
+    }
+
+    @Test
+    public void comparesNumbers() {
+        MessageAttributes at = message("body.time", " 90 ", "score", "n/a");
+        assertTrue(matches("body.\"time\" > 45", at));
+        assertTrue(matches("body.\"time\" >= 90", at));
+        assertFalse(matches("body.\"time\" < 90", at));
+        assertTrue(matches("body.\"time\" <= 90.0", at));
+        assertFalse(matches("score > 1", at)); //not a number
+        assertFalse(matches("missing < 1", at));
+    }
+
+    @Test
+    public void missingFieldsNeverMatch() {
+        assertFalse(matches("team != 'japan'", message()));
+        assertTrue(matches("not team = 'japan'", message()));
+    }
+
+    @Test
+    public void combinesWithPrecedence() {
+        MessageAttributes m = message("a", "1", "b", "2");
+        assertTrue(matches("a = '1' or a = '9' and b = '9'", m)); //and binds tighter
+        assertFalse(matches("(a = '1' or a = '9') and b = '9'", m));
+        assertTrue(matches("NOT (a = '9') AND b = '2'", m));
+        assertTrue(matches("not not a = '1'", m));
+    }
+
+    @Test
+    public void rejectsMalformedSelectors() {
+        for (String selector : new String[]{"", "a", "a =", "a = 'x", "a == 'x'", "a ! 'x'", "a = x", "(a = '1'",
+                "a = '1')", "a = '1' or", "body.'time' = '1'", "a = '1' b = '2'", "a # '1'", "= '1'"}) {
+            assertThrows(IllegalArgumentException.class, () -> MessageSelector.compile(selector), selector);
+        }
+    }
+
+    @Test
+    public void rejectsSelectorsOverTheLimits() {
+        assertThrows(IllegalArgumentException.class, () -> MessageSelector.compile(repeat("(", 20_000)));
+        assertThrows(IllegalArgumentException.class, () -> MessageSelector.compile(repeat("not ", 1000) + "a = '1'"));
+        assertThrows(IllegalArgumentException.class,
+                () -> MessageSelector.compile(repeat("(", MessageSelector.MAX_DEPTH + 1) + "a = '1'"
+                        + repeat(")", MessageSelector.MAX_DEPTH + 1)));
+        assertThrows(IllegalArgumentException.class,
+                () -> MessageSelector.compile("x = '0'" + repeat(" or x = '1'", MessageSelector.MAX_COMPARISONS)));
+        assertThrows(IllegalArgumentException.class,
+                () -> MessageSelector.compile("x = '" + repeat("y", MessageSelector.MAX_LENGTH) + "'"));
+    }
+
+    @Test
+    public void acceptsSelectorsAtTheLimits() {
+        Predicate<MessageAttributes> nested = MessageSelector.compile(repeat("(", MessageSelector.MAX_DEPTH)
+                + "a = '1'" + repeat(")", MessageSelector.MAX_DEPTH));
+        assertTrue(nested.test(message("a", "1")));
+        Predicate<MessageAttributes> wide = MessageSelector.compile(
+                "x = '0'" + repeat(" or x = '1'", MessageSelector.MAX_COMPARISONS - 1));
+        assertTrue(wide.test(message("x", "1")));
+        assertFalse(wide.test(message("x", "2")));
+    }
+}
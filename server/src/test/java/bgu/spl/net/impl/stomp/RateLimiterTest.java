@@ -0,0 +1,52 @@
+package bgu.spl.net.impl.stomp;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RateLimiterTest {
+
+    @AfterEach
+    public void unlimit() {
+        RateLimiter.configureUsers(0, 1, RateLimiter.Policy.DELAY);
+        RateLimiter.configureDestinations(0, 1, RateLimiter.Policy.DROP);
+    }
+
+    @Test
+    public void unlimitedByDefault() {
+        unlimit();
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(0, RateLimiter.admit("free-user", "/free"));
+        }
+    }
+
+    @Test
+    public void letsABurstThroughThenAppliesThePolicy() {
+        RateLimiter.configureUsers(0.001, 3, RateLimiter.Policy.REJECT);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(0, RateLimiter.admit("burst-user", "/burst-" + i));
+        }
+        assertEquals(RateLimiter.REJECTED, RateLimiter.admit("burst-user", "/burst-3"));
+        assertEquals(0, RateLimiter.admit("other-user", "/burst-3")); //buckets are per user
+    }
+
+    @Test
+    public void delaysInsteadOfRejecting() {
+        RateLimiter.configureUsers(1, 1, RateLimiter.Policy.DELAY);
+        assertEquals(0, RateLimiter.admit("slow-user", "/slow"));
+        long wait = RateLimiter.admit("slow-user", "/slow");
+        assertTrue(wait > 500_000_000L && wait <= 1_000_000_000L, String.valueOf(wait));
+    }
+
+    @Test
+    public void aDroppedFrameDoesNotSpendTheSendersToken() {
+        RateLimiter.configureUsers(0.001, 1, RateLimiter.Policy.REJECT);
+        RateLimiter.configureDestinations(0.001, 1, RateLimiter.Policy.DROP);
+        assertEquals(0, RateLimiter.admit("first-user", "/busy"));
+        assertEquals(RateLimiter.DROPPED, RateLimiter.admit("second-user", "/busy"));
+        assertEquals(0, RateLimiter.admit("second-user", "/quiet")); //still has its only token
+        assertEquals(RateLimiter.REJECTED, RateLimiter.admit("second-user", "/other"));
+    }
+}
@@ -0,0 +1,81 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.ConnectionsImpl;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class StompMessagingProtocolImplTest {
+
+    /**
+     * Keeps the bytes the server would write to the socket
+     */
+    private static class WireHandler implements ConnectionHandler<String> {
+        final MessageEncoderDecoderImpl codec = new MessageEncoderDecoderImpl();
+        final ByteArrayOutputStream wire = new ByteArrayOutputStream();
+
+        @Override
+        public void send(String msg) {
+            byte[] encoded = codec.encode(msg);
+            wire.write(encoded, 0, encoded.length);
+        }
+
+        @Override
+        public byte[] encode(String msg) {
+            return codec.encode(msg);
+        }
+
+        @Override
+        public Runnable sendEncoded(byte[] encoded) {
+            wire.write(encoded, 0, encoded.length);
+            return null;
+        }
+
+        @Override
+        public void pauseReading(long nanos) {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        String text() {
+            return new String(wire.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static String errorFor(String frame) {
+        ConnectionsImpl<String> connections = new ConnectionsImpl<>();
+        WireHandler handler = new WireHandler();
+        int connectionId = connections.addConnection(handler);
+        StompMessagingProtocolImpl protocol = new StompMessagingProtocolImpl();
+        protocol.start(connectionId, connections);
+        protocol.process(frame);
+        return handler.text();
+    }
+
+    @Test
+    public void anErrorEchoesNonLatinHeadersIntact() {
+        String error = errorFor("SUBSCRIBE\ndestination:/חדשות\nid:1\n\n");
+        assertTrue(error.startsWith("ERROR\n"), error);
+        assertTrue(error.contains("destination:/חדשות\n"), error);
+    }
+
+    @Test
+    public void anErrorExplanationKeepsNonLatinText() {
+        String error = errorFor("CONNECT\naccept-version:9.9\nhost:h\nlogin:משה\npasscode:p\n\n");
+        assertTrue(error.contains("login:משה\n"), error);
+        assertTrue(error.contains("Server supports STOMP version 1.2"), error);
+    }
+
+    @Test
+    public void anEchoedBodyKeepsItsBytes() {
+        String body = MessageEncoderDecoderImpl.textBody("שלום");
+        String error = errorFor("SUBSCRIBE\ndestination:/a\nid:1\n\n" + body);
+        assertTrue(error.contains("\n\nשלום\n"), error);
+    }
+}
@@ -0,0 +1,111 @@
+package bgu.spl.net.srv;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ActorThreadPoolTest {
+
+    private ActorThreadPool pool;
+
+    @AfterEach
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void runsTheTasksOfAnActorInOrderAndOneAtATime() throws InterruptedException {
+        pool = new ActorThreadPool(4);
+        int actors = 8;
+        int tasks = 2000;
+        Object[] actorObjects = new Object[actors];
+        List<List<Integer>> seen = new ArrayList<>();
+        AtomicInteger[] running = new AtomicInteger[actors];
+        AtomicInteger overlaps = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(actors * tasks);
+        for (int a = 0; a < actors; a++) {
+            actorObjects[a] = new Object();
+            seen.add(new ArrayList<>());
+            running[a] = new AtomicInteger();
+        }
+        for (int i = 0; i < tasks; i++) {
+            for (int a = 0; a < actors; a++) {
+                int actor = a;
+                int index = i;
+                pool.submit(actorObjects[actor], () -> {
+                    if (running[actor].incrementAndGet() > 1) {
+                        overlaps.incrementAndGet();
+                    }
+                    seen.get(actor).add(index);
+                    running[actor].decrementAndGet();
+                    done.countDown();
+                });
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        for (List<Integer> actorSeen : seen) {
+            assertEquals(tasks, actorSeen.size());
+            for (int i = 0; i < tasks; i++) {
+                assertEquals(i, actorSeen.get(i).intValue());
+            }
+        }
+    }
+
+    @Test
+    public void replacesWorkersKilledByAnError() throws InterruptedException {
+        pool = new ActorThreadPool(2);
+        CountDownLatch failed = new CountDownLatch(2);
+        for (int i = 0; i < 2; i++) {
+            pool.submit(new Object(), () -> {
+                failed.countDown();
+                throw new StackOverflowError("test");
+            });
+        }
+        assertTrue(failed.await(5, TimeUnit.SECONDS));
+        CountDownLatch ran = new CountDownLatch(10);
+        for (int i = 0; i < 10; i++) {
+            pool.submit(new Object(), ran::countDown);
+        }
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        pool.report(new PrintStream(report, true));
+        assertTrue(report.toString().contains("workers            2 "), report.toString());
+        assertTrue(report.toString().contains("2 replaced"), report.toString());
+    }
+
+    @Test
+    public void addsAWorkerWhenEveryWorkerIsBlocked() throws InterruptedException {
+        pool = new ActorThreadPool(new WorkStealingPool(1, 1, 2, Long.MAX_VALUE, Long.MAX_VALUE));
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch ran = new CountDownLatch(1);
+        pool.submit(new Object(), () -> {
+            try {
+                while (ran.getCount() > 0 && release.getCount() > 0) { //wait until the second task is queued
+                    WorkStealingPool.beginBlocking();
+                    try {
+                        release.await(10, TimeUnit.MILLISECONDS);
+                    } finally {
+                        WorkStealingPool.endBlocking();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        pool.submit(new Object(), ran::countDown);
+        assertTrue(ran.await(5, TimeUnit.SECONDS));
+        release.countDown();
+    }
+}
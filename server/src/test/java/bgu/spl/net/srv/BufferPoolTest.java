@@ -0,0 +1,61 @@
+package bgu.spl.net.srv;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class BufferPoolTest {
+
+    private static final Pattern DEPOT_8K = Pattern.compile("depot +8192 bytes +(\\d+) buffers");
+
+    private static int idle8k() {
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        BufferPool.getInstance().report(new PrintStream(report, true));
+        Matcher matcher = DEPOT_8K.matcher(report.toString());
+        assertTrue(matcher.find(), report.toString());
+        return Integer.parseInt(matcher.group(1));
+    }
+
+    @Test
+    public void leasesClearedBuffersOfTheSizeClass() {
+        BufferPool pool = BufferPool.getInstance();
+        ByteBuffer buf = pool.lease(5000);
+        assertEquals(8192, buf.capacity());
+        assertEquals(0, buf.position());
+        buf.put((byte) 1);
+        pool.release(buf);
+        ByteBuffer again = pool.lease(8192);
+        assertEquals(0, again.position());
+        assertEquals(8192, again.limit());
+        pool.release(again);
+        assertTrue(!pool.lease(1 << 20).isDirect()); //no size class
+    }
+
+    @Test
+    public void flushThreadReturnsTheMagazinesToTheDepot() throws InterruptedException {
+        BufferPool pool = BufferPool.getInstance();
+        List<ByteBuffer> leased = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            leased.add(pool.lease(8192));
+        }
+        int before = idle8k();
+        Thread releaser = new Thread(() -> { //like a worker releasing the buffers the selector thread leased
+            for (ByteBuffer buf : leased) {
+                pool.release(buf);
+            }
+            pool.flushThread();
+        });
+        releaser.start();
+        releaser.join();
+        assertEquals(before + leased.size(), idle8k());
+    }
+}
@@ -0,0 +1,91 @@
+package bgu.spl.net.srv;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ConnectionsImplTest {
+
+    private static class RecordingHandler implements ConnectionHandler<String> {
+        final List<String> received = new ArrayList<>();
+
+        @Override
+        public void send(String msg) {
+            received.add(msg);
+        }
+
+        @Override
+        public byte[] encode(String msg) {
+            return msg.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public Runnable sendEncoded(byte[] encoded) {
+            received.add(new String(encoded, StandardCharsets.UTF_8));
+            return null;
+        }
+
+        @Override
+        public void pauseReading(long nanos) {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void reservedSubscriptionGetsMessagesOnlyOnceSubscribed() {
+        ConnectionsImpl<String> connections = new ConnectionsImpl<>();
+        RecordingHandler handler = new RecordingHandler();
+        int id = connections.addConnection(handler);
+
+        assertTrue(connections.reserve(id, "1", "/a"));
+        assertTrue(connections.isSubscribed(id, "/a"));
+        assertEquals(0, connections.broadcastEncoded("/a", (sub, enc) -> "m".getBytes(StandardCharsets.UTF_8)));
+
+        connections.subscribe("/a", id, "1");
+        assertEquals(1, connections.broadcastEncoded("/a", (sub, enc) -> sub.getBytes(StandardCharsets.UTF_8)));
+        assertEquals("1", handler.received.get(0));
+    }
+
+    @Test
+    public void subscriptionIdsAreUniquePerConnection() {
+        ConnectionsImpl<String> connections = new ConnectionsImpl<>();
+        int first = connections.addConnection(new RecordingHandler());
+        int second = connections.addConnection(new RecordingHandler());
+
+        assertTrue(connections.reserve(first, "1", "/a"));
+        assertFalse(connections.reserve(first, "1", "/b"));
+        assertTrue(connections.reserve(second, "1", "/b"));
+        assertFalse(connections.isSubscribed(first, "/b"));
+    }
+
+    @Test
+    public void unsubscribeAndDisconnectForgetTheSubscriptions() {
+        ConnectionsImpl<String> connections = new ConnectionsImpl<>();
+        int id = connections.addConnection(new RecordingHandler());
+        connections.reserve(id, "1", "/a");
+        connections.subscribe("/a", id, "1");
+        connections.reserve(id, "2", "/b");
+        connections.subscribe("/b", id, "2");
+
+        assertEquals("/a", connections.unsubscribe(id, "1"));
+        assertNull(connections.unsubscribe(id, "1"));
+        assertFalse(connections.isSubscribed(id, "/a"));
+
+        assertEquals(0, connections.queuedMessages(id));
+        connections.disconnect(id);
+        assertEquals(-1, connections.queuedMessages(id));
+        assertFalse(connections.isSubscribed(id, "/b"));
+        assertEquals(0, connections.broadcastEncoded("/b", (sub, enc) -> sub.getBytes(StandardCharsets.UTF_8)));
+        assertFalse(connections.reserve(id, "3", "/c"));
+    }
+}
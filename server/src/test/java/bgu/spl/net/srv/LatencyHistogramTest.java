@@ -0,0 +1,46 @@
+package bgu.spl.net.srv;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void smallValuesAreExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for (long v = 1; v <= 10; v++) {
+            h.record(v);
+        }
+        assertEquals(10, h.count());
+        assertEquals(5, h.percentile(50));
+        assertEquals(10, h.percentile(100));
+        assertEquals(5.5, h.mean(), 1e-9);
+    }
+
+    @Test
+    public void largeValuesStayWithinTheBucketError() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(1_000_000);
+        h.record(5_000_000);
+        long p50 = h.percentile(50);
+        assertTrue(p50 >= 1_000_000 && p50 <= 1_070_000, String.valueOf(p50));
+        assertEquals(5_000_000, h.percentile(100));
+    }
+
+    @Test
+    public void addedBucketsMatchRecordedValues() {
+        LatencyHistogram recorded = new LatencyHistogram();
+        LatencyHistogram added = new LatencyHistogram();
+        long[] values = {0, 7, 31, 32, 100, 4_000, 123_456};
+        for (long v : values) {
+            recorded.record(v);
+            added.add(LatencyHistogram.indexOf(v), 1);
+        }
+        assertEquals(recorded.count(), added.count());
+        for (double p : new double[] {10, 50, 90, 99}) {
+            assertEquals(recorded.percentile(p), Math.min(added.percentile(p), recorded.max()));
+        }
+    }
+}
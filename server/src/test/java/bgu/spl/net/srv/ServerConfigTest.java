@@ -0,0 +1,64 @@
+package bgu.spl.net.srv;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class ServerConfigTest {
+
+    private static ServerConfig load(String... args) throws IOException {
+        return ServerConfig.load(null, Arrays.asList(args));
+    }
+
+    @Test
+    public void everyDefaultIsValid() throws IOException {
+        ServerConfig defaults = ServerConfig.defaults();
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        defaults.print(new PrintStream(printed, true));
+        for (String line : printed.toString().split("\n")) {
+            String[] parts = line.trim().split(" += +", 2);
+            if (parts.length == 2) {
+                String key = parts[0];
+                load("--" + key + "=" + defaults.getString(key)); //throws if the default is not accepted
+            }
+        }
+    }
+
+    @Test
+    public void appliesOverrides() throws IOException {
+        ServerConfig config = load("--workers=3", "--queue.overflow=drop", "--accept.rate=2.5");
+        assertEquals(3, config.getInt("workers"));
+        assertEquals(OverflowPolicy.DROP, config.getEnum("queue.overflow", OverflowPolicy.class));
+        assertEquals(2.5, config.getDouble("accept.rate"));
+    }
+
+    @Test
+    public void rejectsBadValuesWhenLoading() {
+        for (String arg : new String[]{"--workers=abc", "--workers=0", "--queue.limit=0", "--queue.overflow=KEEP",
+                "--tcp.noDelay=yes", "--compression.level=10", "--accept.rate=-1", "--accept.rate=NaN",
+                "--cluster.port=70000", "--buffer.poolMaxBytes=1e9", "--no.such.key=1", "workers=1"}) {
+            IllegalArgumentException ex = assertThrows(IllegalArgumentException.class, () -> load(arg), arg);
+            assertTrue(ex.getMessage() != null && !ex.getMessage().isEmpty(), arg);
+        }
+    }
+
+    @Test
+    public void checksValuesSetInCode() {
+        assertThrows(IllegalArgumentException.class, () -> ServerConfig.defaults().with("read.budget", "-5"));
+        assertEquals("", ServerConfig.defaults().with("cluster.peers", "").getString("cluster.peers"));
+    }
+
+    @Test
+    public void loadsWithoutOverrides() throws IOException {
+        assertEquals(ServerConfig.defaults().getInt("queue.limit"),
+                ServerConfig.load(null, Collections.emptyList()).getInt("queue.limit"));
+    }
+}
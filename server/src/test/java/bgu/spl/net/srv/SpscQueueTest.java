@@ -0,0 +1,74 @@
+package bgu.spl.net.srv;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class SpscQueueTest {
+
+    @Test
+    public void drainsInOrderAndRefusesWhenFull() {
+        SpscQueue<Integer> queue = new SpscQueue<>(4);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertFalse(queue.offer(4));
+
+        List<Integer> drained = new ArrayList<>();
+        assertEquals(4, queue.drain(drained::add));
+        assertEquals(Arrays.asList(0, 1, 2, 3), drained);
+        assertEquals(0, queue.drain(drained::add));
+        assertTrue(queue.offer(4));
+    }
+
+    @Test
+    public void wrapsAroundTheRing() {
+        SpscQueue<Integer> queue = new SpscQueue<>(4);
+        List<Integer> drained = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(i));
+            assertTrue(queue.offer(-i));
+            queue.drain(drained::add);
+        }
+        assertEquals(20, drained.size());
+        assertEquals(Integer.valueOf(9), drained.get(18));
+        assertEquals(Integer.valueOf(-9), drained.get(19));
+    }
+
+    @Test
+    public void passesEveryItemBetweenTwoThreads() throws InterruptedException {
+        int count = 200_000;
+        SpscQueue<Integer> queue = new SpscQueue<>(64);
+        Thread producer = new Thread(() -> {
+            for (int i = 0; i < count; i++) {
+                while (!queue.offer(i)) {
+                    Thread.yield();
+                }
+            }
+        });
+        producer.setDaemon(true);
+        producer.start();
+
+        int[] next = {0};
+        boolean[] ordered = {true};
+        long deadline = System.nanoTime() + 10_000_000_000L;
+        while (next[0] < count && System.nanoTime() < deadline) {
+            int drained = queue.drain(item -> {
+                ordered[0] &= item == next[0];
+                next[0]++;
+            });
+            if (drained == 0) {
+                Thread.yield();
+            }
+        }
+        producer.join(1000);
+        assertEquals(count, next[0]);
+        assertTrue(ordered[0]);
+    }
+}
@@ -0,0 +1,89 @@
+package bgu.spl.net.srv;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class TrafficCaptureTest {
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void recordsReadBackInOrder(@TempDir Path dir) throws IOException {
+        String file = dir.resolve("capture.bin").toString();
+        long before = System.currentTimeMillis();
+        TrafficCapture.start(file, 1000);
+        int first = TrafficCapture.connectionOpened();
+        int second = TrafficCapture.connectionOpened();
+        byte[] large = new byte[70_000];
+        Arrays.fill(large, (byte) 'x');
+        TrafficCapture.frame(first, bytes("CONNECT\n\n\u0000"));
+        TrafficCapture.frame(second, large);
+        TrafficCapture.closed(first);
+        TrafficCapture.stop();
+        assertEquals(-1, TrafficCapture.connectionOpened());
+
+        try (TrafficCapture.Reader reader = new TrafficCapture.Reader(file)) {
+            assertTrue(reader.startMillis() >= before);
+
+            assertTrue(reader.next());
+            assertEquals(TrafficCapture.FRAME, reader.type());
+            assertEquals(first, reader.captureId());
+            assertEquals(0, reader.nanos());
+            assertArrayEquals(bytes("CONNECT\n\n\u0000"), reader.bytes());
+
+            assertTrue(reader.next());
+            assertEquals(second, reader.captureId());
+            assertArrayEquals(large, reader.bytes());
+            long secondNanos = reader.nanos();
+            assertTrue(secondNanos >= 0);
+
+            assertTrue(reader.next());
+            assertEquals(TrafficCapture.CLOSE, reader.type());
+            assertEquals(first, reader.captureId());
+            assertNull(reader.bytes());
+            assertTrue(reader.nanos() >= secondNanos);
+
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void aCutShortRecordEndsTheFile(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("capture.bin");
+        TrafficCapture.start(path.toString(), 1000);
+        int id = TrafficCapture.connectionOpened();
+        TrafficCapture.frame(id, bytes("SEND\n\nfirst\u0000"));
+        TrafficCapture.frame(id, bytes("SEND\n\nsecond\u0000"));
+        TrafficCapture.stop();
+
+        byte[] content = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(content, content.length - 3));
+        try (TrafficCapture.Reader reader = new TrafficCapture.Reader(path.toString())) {
+            assertTrue(reader.next());
+            assertArrayEquals(bytes("SEND\n\nfirst\u0000"), reader.bytes());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    public void refusesAFileWithoutTheMagic(@TempDir Path dir) throws IOException {
+        Path path = dir.resolve("other.bin");
+        Files.write(path, bytes("SUBSCRIBE\ndestination:/a\n\n\u0000"));
+        assertThrows(IOException.class, () -> new TrafficCapture.Reader(path.toString()));
+    }
+}
@@ -0,0 +1,50 @@
+package bgu.spl.net.srv;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WorkStealingPoolTest {
+
+    private static final long KEEP_ALIVE_NANOS = TimeUnit.MILLISECONDS.toNanos(300);
+
+    /**
+     * One worker is kept busy a third into the keep alive time, so it parks again while the others time out
+     * together; a task submitted as they time out must not wait for that worker's keep alive to run out.
+     */
+    @Test
+    public void aTaskSubmittedAsWorkersRetireRunsRightAway() throws InterruptedException {
+        long worst = 0;
+        for (int round = 0; round < 10; round++) {
+            WorkStealingPool pool = new WorkStealingPool(8, 1, 8, Long.MAX_VALUE, KEEP_ALIVE_NANOS);
+            try {
+                long start = System.nanoTime();
+                Thread.sleep(100);
+                CountDownLatch refreshed = new CountDownLatch(1);
+                pool.execute(refreshed::countDown);
+                assertTrue(refreshed.await(1, TimeUnit.SECONDS));
+
+                long submitAt = start + KEEP_ALIVE_NANOS + TimeUnit.MICROSECONDS.toNanos(300 * round);
+                while (System.nanoTime() < submitAt) {
+                    // spin, the workers that timed out may not have run yet
+                }
+                AtomicLong ranAt = new AtomicLong();
+                CountDownLatch ran = new CountDownLatch(1);
+                long submitted = System.nanoTime();
+                pool.execute(() -> {
+                    ranAt.set(System.nanoTime());
+                    ran.countDown();
+                });
+                assertTrue(ran.await(1, TimeUnit.SECONDS));
+                worst = Math.max(worst, ranAt.get() - submitted);
+            } finally {
+                pool.shutdown();
+            }
+        }
+        assertTrue(worst < TimeUnit.MILLISECONDS.toNanos(50), "a task waited " + worst / 1000 + " us");
+    }
+}
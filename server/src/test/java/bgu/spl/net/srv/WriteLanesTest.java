@@ -0,0 +1,120 @@
+package bgu.spl.net.srv;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WriteLanesTest {
+
+    /**
+     * Takes at most budget bytes per write call
+     */
+    private static class SlowChannel implements GatheringByteChannel {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        int budget;
+
+        SlowChannel(int budget) {
+            this.budget = budget;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) {
+            int left = budget;
+            for (int i = offset; i < offset + length && left > 0; i++) {
+                while (srcs[i].hasRemaining() && left > 0) {
+                    written.write(srcs[i].get());
+                    left--;
+                }
+            }
+            return budget - left;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            return (int) write(new ByteBuffer[] {src});
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        String text() {
+            return new String(written.toByteArray(), StandardCharsets.US_ASCII);
+        }
+    }
+
+    private static ByteBuffer buf(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    public void controlFramesOvertakeBulkFrames() throws Exception {
+        WriteLanes lanes = new WriteLanes(new ArrayDeque<>(), new ArrayDeque<>());
+        lanes.addBulk(buf("m1"));
+        lanes.addBulk(buf("m2"));
+        lanes.addControl(buf("R"));
+        SlowChannel chan = new SlowChannel(Integer.MAX_VALUE);
+        List<String> done = new ArrayList<>();
+
+        assertTrue(lanes.write(chan, (b, control) -> done.add((control ? "control " : "bulk ") + b.limit())));
+        assertEquals("Rm1m2", chan.text());
+        assertEquals(Arrays.asList("control 1", "bulk 2", "bulk 2"), done);
+        assertTrue(lanes.isEmpty());
+    }
+
+    @Test
+    public void aPartlyWrittenFrameIsFinishedFirst() throws Exception {
+        WriteLanes lanes = new WriteLanes(new ArrayDeque<>(), new ArrayDeque<>());
+        lanes.addBulk(buf("MESSAGE"));
+        SlowChannel chan = new SlowChannel(3);
+        List<Boolean> done = new ArrayList<>();
+
+        assertFalse(lanes.write(chan, (b, control) -> done.add(control)));
+        assertEquals("MES", chan.text());
+        assertTrue(done.isEmpty());
+
+        lanes.addControl(buf("ERR"));
+        chan.budget = Integer.MAX_VALUE;
+        assertTrue(lanes.write(chan, (b, control) -> done.add(control)));
+        assertEquals("MESSAGEERR", chan.text());
+        assertEquals(Arrays.asList(false, true), done);
+    }
+
+    @Test
+    public void gathersMoreBuffersThanOneWriteTakes() throws Exception {
+        WriteLanes lanes = new WriteLanes(new ArrayDeque<>(), new ArrayDeque<>());
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            lanes.addBulk(buf(i + ";"));
+            expected.append(i).append(';');
+        }
+        SlowChannel chan = new SlowChannel(5);
+        int[] count = {0};
+        while (!lanes.write(chan, (b, control) -> count[0]++)) {
+            // the channel took its budget
+        }
+        assertEquals(expected.toString(), chan.text());
+        assertEquals(200, count[0]);
+    }
+}